@@ -11,23 +11,29 @@ package fi.siika.bttagwriter;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.content.pm.PackageManager;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.text.Html;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
@@ -36,19 +42,47 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView;
 import android.widget.ProgressBar;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewFlipper;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+import fi.siika.bttagwriter.data.AddressRemap;
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.data.BtTagGenerator;
+import fi.siika.bttagwriter.data.DeviceRegistry;
+import fi.siika.bttagwriter.data.PairingCarrier;
 import fi.siika.bttagwriter.data.TagInformation;
 import fi.siika.bttagwriter.data.TagType;
+import fi.siika.bttagwriter.hce.HandoverApduService;
 import fi.siika.bttagwriter.managers.BluetoothManager;
+import fi.siika.bttagwriter.managers.DeviceFilter;
+import fi.siika.bttagwriter.managers.DiscoveredDevice;
+import fi.siika.bttagwriter.managers.NearestDeviceTracker;
 import fi.siika.bttagwriter.managers.NfcManager;
+import fi.siika.bttagwriter.managers.RadioScheduler;
+import fi.siika.bttagwriter.managers.SessionStore;
+import fi.siika.bttagwriter.managers.SettingsStore;
+import fi.siika.bttagwriter.managers.SystemLeScanner;
+import fi.siika.bttagwriter.ui.BatchMode;
 import fi.siika.bttagwriter.ui.BluetoothRow;
 import fi.siika.bttagwriter.ui.BluetoothRowAdapter;
 import fi.siika.bttagwriter.ui.Pages;
+import fi.siika.bttagwriter.writers.AuditResult;
+import fi.siika.bttagwriter.writers.AuditTechWriter;
+import fi.siika.bttagwriter.writers.CloneTechWriter;
+import fi.siika.bttagwriter.writers.RemapTechWriter;
 import fi.siika.bttagwriter.writers.TagWriter;
+import fi.siika.bttagwriter.writers.TapFilter;
 import fi.siika.bttagwriter.writers.WriteError;
+import fi.siika.bttagwriter.writers.WriteMetrics;
 
 /**
  * Main activity of BtTagWriter application
@@ -56,19 +90,89 @@ import fi.siika.bttagwriter.writers.WriteError;
  * @author Sami Viitanen <sami.viitanen@gmail.com>
  */
 public class WriterActivity extends Activity implements
-        BluetoothManager.DiscoveryListener {
+        BluetoothManager.BatchDiscoveryListener {
 
     private final static String TAG = "WriterActivity";
-    private final static String PREFS_NAME = "WriterPrefs";
-    private final static String PREF_FILTER = "filter-devices";
-    private final static String PREF_HANDOVER = "handover";
+
+    /**
+     * Devices not seen within this time are removed while discovery is active
+     */
+    private final static long DEVICE_AGE_OUT_MS = 2 * 60 * 1000;
+    private final static long DEVICE_AGE_OUT_CHECK_MS = 10 * 1000;
+    private final static int MAX_DEVICES = 200;
+
+    /*
+     * Containers and layouts of pages, indexed by page. Pages other than
+     * start page are inflated when those are shown first time.
+     */
+    private final static int[] PAGE_CONTAINERS = new int[]{0,
+            R.id.aboutPage, R.id.btSelectPage, R.id.extraOptionsPage,
+            R.id.tagPage, R.id.successPage, R.id.batchPage};
+    private final static int[] PAGE_LAYOUTS = new int[]{0,
+            R.layout.page_about, R.layout.page_bt_select,
+            R.layout.page_extra_options, R.layout.page_tag,
+            R.layout.page_success, R.layout.page_batch};
+    private final boolean[] mPageInflated = new boolean[PAGE_LAYOUTS.length];
+
+    private final static int[] ABOUT_STRINGS = new int[]{
+            R.string.about_info_str, R.string.about_tips_str,
+            R.string.about_credits_str, R.string.about_links_str};
+    private CharSequence[] mAboutTexts = null;
+    private long mCreateTime = 0;
+
+    /**
+     * Address mapping file of re-provisioning, in application files folder
+     */
+    private final static String REMAP_FILE = "remap.csv";
+
+    /**
+     * Device registry of audit (see RegistryCompiler tool), in application
+     * files folder
+     */
+    private final static String REGISTRY_FILE = "registry.bin";
+
+    /**
+     * Audit of single tag should not take longer than this
+     */
+    private final static long AUDIT_BUDGET_MS = 50;
+
+    // Status of audited tag, indexed by AuditResult
+    private final static int[] AUDIT_STRINGS = new int[]{
+            R.string.audit_ok_str, R.string.audit_wrong_device_str,
+            R.string.audit_unreadable_str, R.string.audit_unlocked_str,
+            R.string.audit_unknown_str};
 
     private TagWriter mTagWriter;
+    private TagWriter mBatchWriter;
+    private TapFilter mTapFilter;
+    private BatchMode mBatchMode = null;
+    private final TagInformation mBatchInfo = new TagInformation();
+    private RemapTechWriter mRemapWriter = null;
+    private CloneTechWriter mCloneWriter = null;
+    private AuditTechWriter mAuditWriter = null;
+    private final int[] mAuditCounts = new int[AuditResult.values().length];
+    private long mAuditMillis = 0;
+    private int mBatchDone = 0;
+    private int mBatchSkipped = 0;
+    private int mBatchFailed = 0;
     //private Handler mTagWriterHandler;
-    private final TagInformation mTagInfo = new TagInformation();
+    private TagInformation mTagInfo = new TagInformation();
     private BluetoothManager mBtMgr;
     private NfcManager mNfcMgr;
-    private SharedPreferences mSettings;
+    private RadioScheduler mRadioScheduler;
+    private boolean mResumeEmulation = false;
+    private final NearestDeviceTracker mNearestTracker = new NearestDeviceTracker();
+    private SettingsStore mSettings;
+    private SessionStore mSessionStore;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mAgeOutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mBtListAdapter.removeStale(DEVICE_AGE_OUT_MS);
+            mHandler.postDelayed(this, DEVICE_AGE_OUT_CHECK_MS);
+        }
+    };
 
     private void setCurrentPage(Pages page) {
         setCurrentPage(page.toInt());
@@ -77,12 +181,21 @@ public class WriterActivity extends Activity implements
     private void setCurrentPage(int page) {
         int pageWas = getCurrentPage();
         if (showFlipChild(page)) {
+            if (!mRadioScheduler.onPageChanged(Pages.fromInt(page))) {
+                showBluetoothFailedDialog();
+            }
             if (Pages.BT_SELECT.equal(page)) {
-                startBluetoothDiscovery();
-            } else if (Pages.TAG.equal(page)) {
-                mNfcMgr.enableTechDiscovered();
+                // Averages are kept over inquiry rounds, new device is
+                // chosen each time the page is entered
+                mNearestTracker.reset();
+            }
+            if (Pages.TAG.equal(page)) {
+                if (isTagEmulationEnabled()) {
+                    setTagEmulationEnabled(true);
+                }
             }
             invalidateOptionsMenu();
+            mSessionStore.save(page, mTagInfo);
         }
     }
 
@@ -97,29 +210,96 @@ public class WriterActivity extends Activity implements
     private void startBluetoothDiscovery() {
 
         if (!mBtMgr.startDiscovery(this)) {
-            showActionDialog(R.string.action_dialog_bluetooth_failed_str,
-                    new DialogInterface.OnClickListener() {
+            showBluetoothFailedDialog();
+        }
+    }
 
-                        public void onClick(DialogInterface dialog, int which) {
-                            setCurrentPage(Pages.START);
-                        }
+    /**
+     * Select device written to tag and move to next page
+     *
+     * @param row Row of device selected
+     */
+    private void selectDevice(BluetoothRow row) {
+        mBtListAdapter.setSelected(row);
+        mTagInfo.name = row.getName();
+        mTagInfo.address = row.getAddress();
+        mTagInfo.serviceUuids = mBtMgr.getServiceUuids(row.getAddress());
+        mTagInfo.setCompiledMessage(null);
+
+        showSelectedDevice();
+        setCurrentPage(Pages.EXTRA_OPTIONS);
+    }
+
+    private void showSelectedDevice() {
+        ensurePageInflated(Pages.EXTRA_OPTIONS.toInt());
+        TextView tview = (TextView) findViewById(
+                R.id.extraoptsSelectedDeviceValue);
+        if (tview != null) {
+            String text = mTagInfo.name + " (" + mTagInfo.address + ")";
+            tview.setText(text);
+        }
+    }
 
-                    }, false, null);
+    /**
+     * Generate full size message of current tag information, so it does
+     * not have to be generated again when tag is tapped or session is
+     * restored.
+     */
+    private void compileTagInformation() {
+        mTagInfo.setCompiledMessage(null);
+        try {
+            mTagInfo.setCompiledMessage(BtTagGenerator.generateNdefMessageForBtTag(
+                    mTagInfo, -1).toByteArray());
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to compile message: " + e.getMessage());
         }
     }
 
+    private final SessionStore.LoadListener mSessionLoadListener =
+            new SessionStore.LoadListener() {
+                @Override
+                public void sessionLoaded(int page, TagInformation info) {
+                    restoreSession(page, info);
+                }
+            };
+
     /**
-     * Function that will handle things that should be done after user moves
-     * away from different child views of flip. Called by showFlipChild.
+     * Restore session stored before process was killed. Pages from device
+     * selection to tag page are restored; discovered devices come back
+     * from discovery cache. Session is read in worker thread, so it is not
+     * restored if user has already left the start page.
      *
-     * @param index Index of child that was replaced with something else
+     * @param page Stored page
+     * @param info Stored tag information
      */
-    private void flipChildHidden(int index) {
-        if (Pages.BT_SELECT.equal(index)) {
-            mBtMgr.stopDiscovery();
-        } else if (Pages.TAG.equal(index)) {
-            mNfcMgr.disableForegroundDispatch();
+    private void restoreSession(int page, TagInformation info) {
+        if (!Pages.BT_SELECT.equal(page) && !Pages.EXTRA_OPTIONS.equal(page)
+                && !Pages.TAG.equal(page)) {
+            return;
+        } else if (!Pages.START.equal(getCurrentPage())) {
+            return;
+        }
+
+        mTagInfo = info;
+        if (mTagInfo.address != null) {
+            showSelectedDevice();
+        } else if (!Pages.BT_SELECT.equal(page)) {
+            return;
         }
+
+        Log.d(TAG, "Restoring session to page " + page);
+        setCurrentPage(page);
+    }
+
+    private void showBluetoothFailedDialog() {
+        showActionDialog(R.string.action_dialog_bluetooth_failed_str,
+                new DialogInterface.OnClickListener() {
+
+                    public void onClick(DialogInterface dialog, int which) {
+                        setCurrentPage(Pages.START);
+                    }
+
+                }, false, null);
     }
 
     /**
@@ -149,11 +329,129 @@ public class WriterActivity extends Activity implements
             flip.setOutAnimation(this, R.animator.out_left_anim);
         }
 
-        flipChildHidden(current);
+        ensurePageInflated(index);
         flip.setDisplayedChild(index);
         return true;
     }
 
+    /**
+     * Inflate page to its container if it is not inflated yet
+     *
+     * @param index Index of page
+     */
+    private void ensurePageInflated(int index) {
+        if (index < 0 || index >= PAGE_LAYOUTS.length || mPageInflated[index]) {
+            return;
+        }
+        mPageInflated[index] = true;
+        if (PAGE_LAYOUTS[index] == 0) {
+            return;
+        }
+
+        traceBegin("inflatePage");
+        try {
+            ViewGroup container = (ViewGroup) findViewById(PAGE_CONTAINERS[index]);
+            getLayoutInflater().inflate(PAGE_LAYOUTS[index], container, true);
+            onPageInflated(Pages.fromInt(index));
+        } finally {
+            traceEnd();
+        }
+    }
+
+    /**
+     * Connect views of page after it is inflated
+     *
+     * @param page Page inflated
+     */
+    private void onPageInflated(Pages page) {
+        if (page == Pages.ABOUT) {
+            CharSequence[] texts = getAboutTexts();
+            ((TextView) findViewById(R.id.appDescriptionTextView)).setText(texts[0]);
+            ((TextView) findViewById(R.id.limitationsTextView)).setText(texts[1]);
+            ((TextView) findViewById(R.id.creditsTextView)).setText(texts[2]);
+            ((TextView) findViewById(R.id.linksTextView)).setText(texts[3]);
+
+        } else if (page == Pages.BT_SELECT) {
+            ListView list = (ListView) findViewById(R.id.btDevicesList);
+            list.setAdapter(mBtListAdapter);
+            mBtListAdapter.setListView(list);
+            list.setOnItemClickListener(new OnItemClickListener() {
+                public void onItemClick(AdapterView<?> parent, View view,
+                                        int position, long id) {
+
+                    selectDevice(mBtListAdapter.getRow(position));
+                }
+            });
+
+            ImageButton ib = (ImageButton) findViewById(R.id.btRescanButton);
+            ib.setOnClickListener(mRescanButtonListener);
+
+        } else if (page == Pages.EXTRA_OPTIONS) {
+            Button button = (Button) findViewById(R.id.extraoptsReadyButton);
+            button.setOnClickListener(mExtraoptsReadyButtonListener);
+            restoreExtraOptions();
+
+        } else if (page == Pages.SUCCESS) {
+            Button button = (Button) findViewById(R.id.restartButton);
+            button.setOnClickListener(mExtraoptsReadyButtonListener);
+
+            button = (Button) findViewById(R.id.exitButton);
+            button.setOnClickListener(mExitButtonListener);
+        }
+    }
+
+    /**
+     * Get texts of about page. Setting HTML to text views has to be done in
+     * code, and parsing is slow, so it is done only when needed.
+     *
+     * @return Texts in order of ABOUT_STRINGS
+     */
+    private CharSequence[] getAboutTexts() {
+        if (mAboutTexts == null) {
+            traceBegin("parseAboutTexts");
+            CharSequence[] texts = new CharSequence[ABOUT_STRINGS.length];
+            for (int i = 0; i < texts.length; ++i) {
+                texts[i] = Html.fromHtml(getString(ABOUT_STRINGS[i]));
+            }
+            mAboutTexts = texts;
+            traceEnd();
+        }
+        return mAboutTexts;
+    }
+
+    /**
+     * Called in frame that draws first layout. Reports startup time and
+     * prepares about texts when main thread is idle.
+     */
+    private final Choreographer.FrameCallback mFirstFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    Log.d(TAG, "Startup: first frame "
+                            + (SystemClock.uptimeMillis() - mCreateTime) + " ms");
+
+                    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                        @Override
+                        public boolean queueIdle() {
+                            getAboutTexts();
+                            return false;
+                        }
+                    });
+                }
+            };
+
+    private static void traceBegin(String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(section);
+        }
+    }
+
+    private static void traceEnd() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
     private final OnClickListener mStartButtonListener = new OnClickListener() {
         public void onClick(View v) {
 
@@ -178,6 +476,7 @@ public class WriterActivity extends Activity implements
 
                     CheckBox cbox = (CheckBox) findViewById(R.id.readOnlycheckBox);
                     if (cbox != null) {
+                        mSettings.put(SettingsStore.READ_ONLY, cbox.isChecked());
                         mTagInfo.setReadOnly(cbox.isChecked());
                     } else {
                         mTagInfo.setReadOnly(false);
@@ -185,12 +484,22 @@ public class WriterActivity extends Activity implements
 
                     cbox = (CheckBox) findViewById(R.id.extraoptsCompatibilityCheckBox);
                     if (cbox != null) {
-                        mSettings.edit().putBoolean(PREF_HANDOVER, cbox.isChecked()).commit();
+                        mSettings.put(SettingsStore.HANDOVER, cbox.isChecked());
                         mTagInfo.setType(cbox.isChecked() ? TagType.HANDOVER : TagType.SIMPLIFIED);
                     } else {
                         mTagInfo.setType(TagType.SIMPLIFIED);
                     }
 
+                    Spinner carrierSpinner = (Spinner) findViewById(
+                            R.id.extraoptsCarrierSpinner);
+                    if (carrierSpinner != null) {
+                        int carrier = carrierSpinner.getSelectedItemPosition();
+                        mSettings.put(SettingsStore.CARRIER, carrier);
+                        mTagInfo.setCarrier(PairingCarrier.values()[carrier]);
+                    } else {
+                        mTagInfo.setCarrier(PairingCarrier.BR_EDR);
+                    }
+
                     EditText editText = (EditText) findViewById(R.id.extraoptsPinEdit);
                     if (editText != null) {
                         mTagInfo.pin = editText.getText().toString();
@@ -198,6 +507,7 @@ public class WriterActivity extends Activity implements
                         mTagInfo.pin = "";
                     }
 
+                    compileTagInformation();
                     setCurrentPage(Pages.TAG);
                 }
             };
@@ -212,20 +522,9 @@ public class WriterActivity extends Activity implements
     private BluetoothRowAdapter mBtListAdapter = null;
 
     protected void connectSignals() {
+        // Other pages are connected when inflated, see onPageInflated
         Button button = (Button) findViewById(R.id.startButton);
         button.setOnClickListener(mStartButtonListener);
-
-        button = (Button) findViewById(R.id.restartButton);
-        button.setOnClickListener(mExtraoptsReadyButtonListener);
-
-        button = (Button) findViewById(R.id.extraoptsReadyButton);
-        button.setOnClickListener(mExtraoptsReadyButtonListener);
-
-        button = (Button) findViewById(R.id.exitButton);
-        button.setOnClickListener(mExitButtonListener);
-
-        ImageButton ib = (ImageButton) findViewById(R.id.btRescanButton);
-        ib.setOnClickListener(mRescanButtonListener);
     }
 
     private final DialogInterface.OnClickListener mWriteFailedDialogListener =
@@ -236,22 +535,68 @@ public class WriterActivity extends Activity implements
 
             };
 
+    /*
+     * Part of resume that depends on settings. On cold start settings are
+     * still loading when activity is resumed, so this is run when those are
+     * available instead of blocking main thread.
+     */
+    private final Runnable mApplySettingsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            restoreExtraOptions();
+
+            // Filter outlives writers, tag intents pause and resume activity
+            mTapFilter.setWindow(mSettings.getInt(SettingsStore.REPEAT_TAP_WINDOW));
+            mBtMgr.setDeviceFilter(getDeviceFilter());
+            applyLeScan();
+            mRadioScheduler.setRepeatInquiry(getAutoSelect());
+            if (!mRadioScheduler.resume()) {
+                showBluetoothFailedDialog();
+            }
+            invalidateOptionsMenu();
+        }
+    };
+
     @Override
     public void onResume() {
         super.onResume();
 
-        mSettings = getSharedPreferences(PREFS_NAME, 0);
+        mTagWriter = new TagWriter(this, tagWriterListener);
+        mTagWriter.setTapFilter(mTapFilter);
+        mSettings.runWhenLoaded(mApplySettingsRunnable);
+        if (mResumeEmulation) {
+            mResumeEmulation = false;
+            setTagEmulationEnabled(true);
+        }
+    }
 
+    /**
+     * Restore stored extra options, if extra options page is inflated
+     */
+    private void restoreExtraOptions() {
         CheckBox compCB = (CheckBox) findViewById(R.id.extraoptsCompatibilityCheckBox);
-        compCB.setChecked(mSettings.getBoolean(PREF_HANDOVER, true));
+        if (compCB != null) {
+            compCB.setChecked(mSettings.getBoolean(SettingsStore.HANDOVER));
+        }
 
-        mTagWriter = new TagWriter(this, tagWriterListener);
+        CheckBox readOnlyCB = (CheckBox) findViewById(R.id.readOnlycheckBox);
+        if (readOnlyCB != null) {
+            readOnlyCB.setChecked(mSettings.getBoolean(SettingsStore.READ_ONLY));
+        }
+
+        Spinner carrierSpinner = (Spinner) findViewById(R.id.extraoptsCarrierSpinner);
+        if (carrierSpinner != null) {
+            carrierSpinner.setSelection(mSettings.getInt(SettingsStore.CARRIER));
+        }
     }
 
     protected TagWriter.TagWriterListener tagWriterListener = new TagWriter.TagWriterListener() {
 
         @Override
-        public void onSuccess() {
+        public void onSuccess(WriteMetrics metrics) {
+            Log.d(TAG, "Tag written: " + metrics.toString()
+                    + ", inquiry quiet " + mRadioScheduler.getInquiryQuietMillis()
+                    + " ms");
             setCurrentPage(Pages.SUCCESS);
         }
 
@@ -260,6 +605,9 @@ public class WriterActivity extends Activity implements
             if (error == WriteError.TOO_SMALL) {
                 showActionDialog(R.string.tag_is_too_small_str,
                         mWriteFailedDialogListener, false, null);
+            } else if (error == WriteError.VERIFICATION_FAILED) {
+                showActionDialog(R.string.tag_verify_failed_str,
+                        mWriteFailedDialogListener, false, null);
             } else if (error != WriteError.CANCELLED) {
                 Log.w(TAG, "Write failure received: " + error.toString());
                 showActionDialog(R.string.tag_write_failed_str,
@@ -270,61 +618,52 @@ public class WriterActivity extends Activity implements
 
     @Override
     public void onPause() {
+        // Tag is not served while application is not in foreground
+        mResumeEmulation = isTagEmulationEnabled();
+        if (mResumeEmulation) {
+            HandoverApduService.unpublish();
+        }
+        mSettings.cancelWhenLoaded(mApplySettingsRunnable);
+        mHandler.removeCallbacks(mAgeOutRunnable);
+        mRadioScheduler.pause();
         mBtMgr.releaseAdapter();
+        mSettings.flush();
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        mSessionStore.cancelLoad(mSessionLoadListener);
+        super.onDestroy();
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        mCreateTime = SystemClock.uptimeMillis();
+        traceBegin("WriterActivity.onCreate");
         super.onCreate(savedInstanceState);
+        mSettings = SettingsStore.getInstance(this);
+        mSessionStore = SessionStore.getInstance(this);
         setContentView(R.layout.main);
 
         mBtMgr = new BluetoothManager(this);
         mNfcMgr = new NfcManager(this);
+        mRadioScheduler = new RadioScheduler(mBtMgr, mNfcMgr, this);
+        mTapFilter = new TapFilter(TapFilter.DEFAULT_CAPACITY,
+                SettingsStore.REPEAT_TAP_WINDOW.defaultValue);
+        mBatchWriter = new TagWriter(this, mBatchWriterListener);
+        mBatchWriter.setTapFilter(mTapFilter);
 
         if (mBtListAdapter == null) {
             mBtListAdapter = new BluetoothRowAdapter(this);
+            mBtListAdapter.setMaxRows(MAX_DEVICES);
         }
-        ListView list = (ListView) findViewById(R.id.btDevicesList);
-        list.setAdapter(mBtListAdapter);
-
-        list.setOnItemClickListener(new OnItemClickListener() {
-            public void onItemClick(AdapterView<?> parent, View view,
-                                    int position, long id) {
-
-                BluetoothRow row = mBtListAdapter.getRow(position);
-                mTagInfo.name = row.getName();
-                mTagInfo.address = row.getAddress();
-
-                TextView tview = (TextView) findViewById(
-                        R.id.extraoptsSelectedDeviceValue);
-                if (tview != null) {
-                    String text = mBtListAdapter.getRow(position).getName() +
-                        " (" + mBtListAdapter.getRow(position).getAddress() + ")";
-                    tview.setText(text);
-                }
-
-                setCurrentPage(Pages.EXTRA_OPTIONS);
-            }
-        });
-
-        //Setting HTML to text views has to be done in code. Do it here.
-        TextView appTV = (TextView) findViewById(R.id.appDescriptionTextView);
-        appTV.setText(Html.fromHtml(getString(
-                R.string.about_info_str)));
-
-        TextView limitTV = (TextView) findViewById(R.id.limitationsTextView);
-        limitTV.setText(Html.fromHtml(getString(R.string.about_tips_str)));
-
-        TextView credsTV = (TextView) findViewById(R.id.creditsTextView);
-        credsTV.setText(Html.fromHtml(getString(
-                R.string.about_credits_str)));
-
-        TextView linksTV = (TextView) findViewById(R.id.linksTextView);
-        linksTV.setText(Html.fromHtml(getString(
-                R.string.about_links_str)));
-
         connectSignals();
+        ensurePageInflated(getCurrentPage());
+        mSessionStore.load(mSessionLoadListener);
+
+        Choreographer.getInstance().postFrameCallback(mFirstFrameCallback);
+        traceEnd();
     }
 
     @Override
@@ -354,6 +693,8 @@ public class WriterActivity extends Activity implements
             setCurrentPage(Pages.EXTRA_OPTIONS);
         } else if (Pages.SUCCESS.equal(curPage)) {
             setCurrentPage(Pages.TAG);
+        } else if (Pages.BATCH.equal(curPage)) {
+            setCurrentPage(Pages.START);
         } else {
             ret = false;
         }
@@ -369,7 +710,9 @@ public class WriterActivity extends Activity implements
 
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(action)) {
             Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-            if (!mTagWriter.writeToTag(tag, mTagInfo)) {
+            if (Pages.BATCH.equal(getCurrentPage())) {
+                onBatchTag(tag);
+            } else if (!mTagWriter.writeToTag(tag, mTagInfo)) {
                 showActionDialog(R.string.tag_unsupported_str,
                         mWriteFailedDialogListener, false, null);
             }
@@ -386,7 +729,7 @@ public class WriterActivity extends Activity implements
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.main_menu, menu);
 
-        menu.findItem(R.id.filterSearchitem).setChecked(mSettings.getBoolean(PREF_FILTER, true));
+        menu.findItem(R.id.filterSearchitem).setChecked(getFilterDevices());
 
         return true;
     }
@@ -397,6 +740,18 @@ public class WriterActivity extends Activity implements
         menu.findItem(R.id.aboutItem).setVisible(!Pages.ABOUT.equal(page));
         menu.findItem(R.id.filterSearchitem).setVisible(Pages.BT_SELECT.equal(page));
         menu.findItem(R.id.filterSearchitem).setChecked(getFilterDevices());
+        menu.findItem(R.id.filterRulesItem).setVisible(Pages.BT_SELECT.equal(page));
+        menu.findItem(R.id.autoSelectItem).setVisible(Pages.BT_SELECT.equal(page));
+        menu.findItem(R.id.autoSelectItem).setChecked(getAutoSelect());
+        menu.findItem(R.id.leScanItem).setVisible(Pages.BT_SELECT.equal(page)
+                && SystemLeScanner.isSupported());
+        menu.findItem(R.id.leScanItem).setChecked(getLeScan());
+        menu.findItem(R.id.emulateTagItem).setVisible(Pages.TAG.equal(page)
+                && isTagEmulationSupported());
+        menu.findItem(R.id.emulateTagItem).setChecked(isTagEmulationEnabled());
+        menu.findItem(R.id.remapItem).setVisible(Pages.START.equal(page));
+        menu.findItem(R.id.cloneItem).setVisible(Pages.START.equal(page));
+        menu.findItem(R.id.auditItem).setVisible(Pages.START.equal(page));
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -410,6 +765,31 @@ public class WriterActivity extends Activity implements
                 item.setChecked(!item.isChecked());
                 setFilterDevicesEnabled(item.isChecked());
                 return true;
+            case R.id.autoSelectItem:
+                item.setChecked(!item.isChecked());
+                setAutoSelectEnabled(item.isChecked());
+                return true;
+            case R.id.leScanItem:
+                item.setChecked(!item.isChecked());
+                setLeScanEnabled(item.isChecked());
+                return true;
+            case R.id.filterRulesItem:
+                showFilterRulesDialog();
+                return true;
+            case R.id.emulateTagItem:
+                item.setChecked(!item.isChecked());
+                setTagEmulationEnabled(item.isChecked());
+                return true;
+            case R.id.remapItem:
+                loadRemap();
+                return true;
+            case R.id.cloneItem:
+                mCloneWriter = new CloneTechWriter();
+                startBatch(BatchMode.CLONE);
+                return true;
+            case R.id.auditItem:
+                loadRegistry();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -418,20 +798,341 @@ public class WriterActivity extends Activity implements
     private void setFilterDevicesEnabled(boolean enabled) {
         if (getFilterDevices() != enabled) {
 
-            Editor editor = mSettings.edit();
-            editor.putBoolean(PREF_FILTER, enabled);
-            editor.commit();
+            mSettings.put(SettingsStore.FILTER, enabled);
+
+            deviceFilterChanged();
+        }
+    }
+
+    private void setAutoSelectEnabled(boolean enabled) {
+        mSettings.put(SettingsStore.AUTO_SELECT, enabled);
+
+        mNearestTracker.reset();
+        mRadioScheduler.setRepeatInquiry(enabled);
+    }
+
+    private void setLeScanEnabled(boolean enabled) {
+        mSettings.put(SettingsStore.LE_SCAN, enabled);
+
+        applyLeScan();
+        if (Pages.BT_SELECT.equal(this.getCurrentPage())) {
+            startBluetoothDiscovery();
+        }
+    }
+
+    /**
+     * Select between LE scan and classic discovery
+     */
+    private void applyLeScan() {
+        if (getLeScan() && SystemLeScanner.isSupported()
+                && mBtMgr.getBluetoothAdapter() != null) {
+            mBtMgr.setLeScanner(new SystemLeScanner(mBtMgr.getBluetoothAdapter()));
+        } else {
+            mBtMgr.setLeScanner(null);
+        }
+    }
+
+    /**
+     * Apply changed device filter. List is filled again from cache, paired
+     * devices and discovery.
+     */
+    private void deviceFilterChanged() {
+        mBtMgr.setDeviceFilter(getDeviceFilter());
+        mBtListAdapter.clear();
+
+        if (Pages.BT_SELECT.equal(this.getCurrentPage())) {
+            startBluetoothDiscovery();
+        }
+    }
+
+    /**
+     * Show dialog where user can edit rules used to filter devices
+     */
+    private void showFilterRulesDialog() {
+        final EditText edit = new EditText(this);
+        edit.setText(mSettings.get(SettingsStore.FILTER_RULES));
+        edit.setHint(R.string.filter_rules_hint_str);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_rules_str);
+        builder.setView(edit);
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setPositiveButton(R.string.action_dialog_ok,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String rules = edit.getText().toString();
+                        try {
+                            DeviceFilter.parse(rules);
+                        } catch (IllegalArgumentException e) {
+                            Toast.makeText(WriterActivity.this,
+                                    getString(R.string.filter_rules_invalid_str,
+                                            e.getMessage()),
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+
+                        mSettings.put(SettingsStore.FILTER_RULES, rules);
+                        mSettings.put(SettingsStore.FILTER,
+                                rules.trim().length() > 0 || getFilterDevices());
+
+                        deviceFilterChanged();
+                    }
+                });
+        builder.create().show();
+    }
+
+    /**
+     * Check if device can emulate tags
+     *
+     * @return true if host card emulation is supported
+     */
+    private boolean isTagEmulationSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && getPackageManager().hasSystemFeature(
+                PackageManager.FEATURE_NFC_HOST_CARD_EMULATION);
+    }
+
+    private boolean isTagEmulationEnabled() {
+        return isTagEmulationSupported() && HandoverApduService.isPublished();
+    }
+
+    /**
+     * Start or stop serving current tag information with host card emulation
+     *
+     * @param enabled true to serve, false to stop
+     */
+    private void setTagEmulationEnabled(boolean enabled) {
+        if (!isTagEmulationSupported()) {
+            return;
+        }
+
+        if (enabled) {
+            try {
+                HandoverApduService.publish(mTagInfo);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to emulate tag: " + e.getMessage());
+                HandoverApduService.unpublish();
+            }
+        } else {
+            HandoverApduService.unpublish();
+        }
+    }
+
+    /**
+     * Read address mapping in background and start re-provisioning when it
+     * is loaded
+     */
+    private void loadRemap() {
+        final File file = new File(getExternalFilesDir(null), REMAP_FILE);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AddressRemap remap = null;
+                try {
+                    Reader reader = new InputStreamReader(
+                            new FileInputStream(file), "UTF-8");
+                    try {
+                        remap = AddressRemap.read(reader);
+                    } finally {
+                        reader.close();
+                    }
+                    Log.d(TAG, "Loaded " + remap.size() + " address mappings");
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read mapping: " + e.getMessage());
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Invalid mapping: " + e.getMessage());
+                }
 
-            if (enabled) {
-                mBtListAdapter.clearNonAudio();
+                final AddressRemap loaded = remap;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loaded == null || loaded.size() == 0) {
+                            Toast.makeText(WriterActivity.this,
+                                    getString(R.string.remap_load_failed_str,
+                                            file.getPath()),
+                                    Toast.LENGTH_LONG).show();
+                        } else {
+                            mRemapWriter = new RemapTechWriter(loaded);
+                            startBatch(BatchMode.REMAP);
+                        }
+                    }
+                });
             }
+        }).start();
+    }
 
-            if (Pages.BT_SELECT.equal(this.getCurrentPage())) {
-                startBluetoothDiscovery();
+    /**
+     * Open device registry in background and start audit when it is opened
+     */
+    private void loadRegistry() {
+        final File file = new File(getExternalFilesDir(null), REGISTRY_FILE);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DeviceRegistry registry = null;
+                try {
+                    registry = DeviceRegistry.open(file);
+                    Log.d(TAG, "Opened registry of " + registry.size() + " devices");
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to open registry: " + e.getMessage());
+                }
+
+                final DeviceRegistry opened = registry;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (opened == null) {
+                            Toast.makeText(WriterActivity.this,
+                                    getString(R.string.audit_load_failed_str,
+                                            file.getPath()),
+                                    Toast.LENGTH_LONG).show();
+                        } else {
+                            mAuditWriter = new AuditTechWriter(opened);
+                            startBatch(BatchMode.AUDIT);
+                        }
+                    }
+                });
             }
+        }).start();
+    }
+
+    /**
+     * Reset counters and show batch page in given mode
+     *
+     * @param mode Batch mode started
+     */
+    private void startBatch(BatchMode mode) {
+        mBatchMode = mode;
+        mBatchDone = 0;
+        mBatchSkipped = 0;
+        mBatchFailed = 0;
+        for (int i = 0; i < mAuditCounts.length; ++i) {
+            mAuditCounts[i] = 0;
+        }
+        mAuditMillis = 0;
+        mBatchInfo.setReadOnly(mSettings.getBoolean(SettingsStore.READ_ONLY));
+
+        ensurePageInflated(Pages.BATCH.toInt());
+        ((TextView) findViewById(R.id.batchTitleTextView)).setText(mode.getTitle());
+        ((TextView) findViewById(R.id.batchGuideTextView)).setText(mode.getGuide());
+        showBatchStatus(getString(mode == BatchMode.CLONE
+                ? R.string.clone_source_str : R.string.batch_waiting_str));
+        setCurrentPage(Pages.BATCH);
+    }
+
+    /**
+     * Handle tag tapped on batch page. Taps while previous tag is still
+     * processed are ignored.
+     *
+     * @param tag Tag tapped
+     */
+    private void onBatchTag(Tag tag) {
+        boolean started = false;
+        if (mBatchMode == BatchMode.REMAP) {
+            started = mBatchWriter.writeToTag(tag, mBatchInfo, mRemapWriter);
+        } else if (mBatchMode == BatchMode.CLONE) {
+            started = mBatchWriter.writeToTag(tag, mBatchInfo, mCloneWriter);
+        } else if (mBatchMode == BatchMode.AUDIT) {
+            started = mBatchWriter.writeToTag(tag, mBatchInfo, mAuditWriter);
+        }
+        if (!started) {
+            Log.d(TAG, "Batch tag ignored");
+        }
+    }
+
+    private void showBatchStatus(CharSequence status) {
+        ((TextView) findViewById(R.id.batchStatusTextView)).setText(status);
+
+        String counts;
+        if (mBatchMode == BatchMode.AUDIT) {
+            int audited = 0;
+            for (int count : mAuditCounts) {
+                audited += count;
+            }
+            counts = getString(R.string.audit_counts_str,
+                    mAuditCounts[AuditResult.OK.ordinal()],
+                    mAuditCounts[AuditResult.WRONG_DEVICE.ordinal()],
+                    mAuditCounts[AuditResult.UNREADABLE.ordinal()],
+                    mAuditCounts[AuditResult.UNLOCKED.ordinal()],
+                    mAuditCounts[AuditResult.UNKNOWN.ordinal()],
+                    audited > 0 ? mAuditMillis / audited : 0);
+        } else {
+            counts = getString(R.string.batch_counts_str, mBatchDone,
+                    mBatchSkipped, mBatchFailed);
+        }
+        ((TextView) findViewById(R.id.batchCountsTextView)).setText(counts);
+    }
+
+    /**
+     * Count and show result of audited tag
+     *
+     * @param millis Time used to read the tag
+     */
+    private void onTagAudited(long millis) {
+        AuditResult result = mAuditWriter.getResult();
+        ++mAuditCounts[result.ordinal()];
+        mAuditMillis += millis;
+        if (millis > AUDIT_BUDGET_MS) {
+            Log.w(TAG, "Audit took " + millis + " ms");
         }
+
+        String device = BtAddress.unpack(mAuditWriter.getAddress());
+        int slot = mAuditWriter.getSlot();
+        if (slot != DeviceRegistry.NOT_FOUND) {
+            device = mAuditWriter.getRegistry().getName(slot) + " (" + device + ")";
+        }
+        showBatchStatus(getString(R.string.audit_latency_str,
+                getString(AUDIT_STRINGS[result.ordinal()], device), millis));
     }
 
+    private final TagWriter.TagWriterListener mBatchWriterListener =
+            new TagWriter.TagWriterListener() {
+
+                @Override
+                public void onSuccess(WriteMetrics metrics) {
+                    Log.d(TAG, "Batch tag done: " + metrics.toString());
+                    if (mBatchMode == BatchMode.AUDIT) {
+                        onTagAudited(metrics.getTotalMillis());
+                        return;
+                    } else if (mBatchMode == BatchMode.CLONE && mCloneWriter.wasCaptured()) {
+                        showBatchStatus(getString(R.string.clone_captured_str,
+                                mCloneWriter.getRequiredBytes()));
+                        return;
+                    }
+
+                    ++mBatchDone;
+                    if (mBatchMode == BatchMode.REMAP) {
+                        showBatchStatus(getString(R.string.remap_done_str,
+                                BtAddress.unpack(mRemapWriter.getOldAddress()),
+                                BtAddress.unpack(mRemapWriter.getNewAddress())));
+                    } else {
+                        showBatchStatus(getString(R.string.clone_done_str,
+                                metrics.getTotalMillis()));
+                    }
+                }
+
+                @Override
+                public void onFailure(WriteError error) {
+                    if (error == WriteError.CANCELLED) {
+                        return;
+                    } else if (error == WriteError.TAG_NOT_ACCEPTED) {
+                        ++mBatchSkipped;
+                        showBatchStatus(getString(mBatchMode == BatchMode.CLONE
+                                ? R.string.clone_no_source_str
+                                : R.string.remap_skipped_str));
+                    } else if (error == WriteError.WRITE_PROTECTED) {
+                        // Locked tags are expected in the field, not errors
+                        ++mBatchSkipped;
+                        showBatchStatus(getString(R.string.batch_read_only_str));
+                    } else {
+                        ++mBatchFailed;
+                        showBatchStatus(getString(R.string.batch_failed_str,
+                                error.toString()));
+                    }
+                }
+            };
+
     private void showActionDialog(int textResId,
                                   DialogInterface.OnClickListener clickListener,
                                   boolean cancelable,
@@ -465,20 +1166,43 @@ public class WriterActivity extends Activity implements
      */
     public void bluetoothDeviceFound(BluetoothDevice device, boolean fromPaired) {
 
-        if (getFilterDevices()) {
-            if (!device.getBluetoothClass().hasService(BluetoothClass.Service.AUDIO)) {
-                return;
-            }
-        }
-
+        // Devices are already filtered by BluetoothManager
         mBtListAdapter.addDeviceIfNotPresent(device, !fromPaired);
 
     }
 
+    /* (non-Javadoc)
+     * @see fi.siika.bttagwriter.BluetoothManager.BatchDiscoveryListener#bluetoothDevicesFound(java.util.List)
+     */
+    public void bluetoothDevicesFound(List<DiscoveredDevice> devices) {
+
+        // Devices are already filtered by BluetoothManager
+        mBtListAdapter.addDevices(devices);
+
+        if (getAutoSelect() && Pages.BT_SELECT.equal(getCurrentPage())) {
+            DiscoveredDevice nearest = mNearestTracker.addSamples(devices);
+            if (nearest != null) {
+                BluetoothRow row = mBtListAdapter.findRow(nearest.getKey());
+                if (row != null) {
+                    Log.d(TAG, "Nearest device selected: " + row.getAddress());
+                    selectDevice(row);
+                }
+            }
+        }
+    }
+
     /* (non-Javadoc)
      * @see fi.siika.bttagwriter.BluetoothManager.Listener#bluetoothDiscoveryStateChanged(boolean)
      */
     public void bluetoothDiscoveryStateChanged(boolean active) {
+        mRadioScheduler.onInquiryStateChanged(active);
+
+        mHandler.removeCallbacks(mAgeOutRunnable);
+        if (active) {
+            mHandler.postDelayed(mAgeOutRunnable, DEVICE_AGE_OUT_CHECK_MS);
+        }
+
+        ensurePageInflated(Pages.BT_SELECT.toInt());
         ProgressBar pb = (ProgressBar) findViewById(R.id.btScanProgressBar);
         pb.setIndeterminate(active);
 
@@ -503,7 +1227,7 @@ public class WriterActivity extends Activity implements
             flip.setDisplayedChild(1);
             pb.setVisibility(View.INVISIBLE);
 
-            if (this.mBtListAdapter.getCount() == 0) {
+            if (this.mBtListAdapter.getDeviceCount() == 0) {
                 TextView nodevText = (TextView) findViewById(
                         R.id.btScanNoDevicesFoundText);
                 if (nodevText != null) {
@@ -521,7 +1245,47 @@ public class WriterActivity extends Activity implements
      * @return true to filter, false to not filter
      */
     private boolean getFilterDevices() {
-        return mSettings.getBoolean(PREF_FILTER, false);
+        return mSettings.getBoolean(SettingsStore.FILTER);
+    }
+
+    /**
+     * Get option if nearest device should be selected automatically
+     *
+     * @return true to select automatically
+     */
+    private boolean getAutoSelect() {
+        return mSettings.getBoolean(SettingsStore.AUTO_SELECT);
+    }
+
+    /**
+     * Get option if Bluetooth LE scan is used instead of classic discovery
+     *
+     * @return true to use LE scan
+     */
+    private boolean getLeScan() {
+        return mSettings.getBoolean(SettingsStore.LE_SCAN);
+    }
+
+    /**
+     * Get filter used for found devices. User defined rules are used if
+     * given, otherwise only audio devices are shown.
+     *
+     * @return Compiled filter, or null if devices are not filtered
+     */
+    private DeviceFilter getDeviceFilter() {
+        if (!getFilterDevices()) {
+            return null;
+        }
+
+        String rules = mSettings.get(SettingsStore.FILTER_RULES);
+        if (rules.trim().length() > 0) {
+            try {
+                return DeviceFilter.parse(rules);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid filter rules: " + e.getMessage());
+            }
+        }
+        return DeviceFilter.audioOnly();
     }
 
 
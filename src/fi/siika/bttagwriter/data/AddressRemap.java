@@ -0,0 +1,153 @@
+/*
+ * AddressRemap.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Mapping from old device addresses to new ones, used when Bluetooth
+ * modules of devices are replaced. Addresses are kept packed (see
+ * BtAddress) in open addressed primitive arrays, so lookups do not
+ * allocate.
+ */
+public class AddressRemap {
+
+    private final static int MIN_CAPACITY = 16;
+
+    // Keys are stored with OCCUPIED bit, 0 is empty slot
+    private final static long OCCUPIED = 1L << 48;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private int mSize = 0;
+
+    public AddressRemap() {
+        mKeys = new long[MIN_CAPACITY];
+        mValues = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * Read mapping with one "old,new" address pair per line. Empty lines
+     * and lines starting with '#' are skipped.
+     *
+     * @param reader Reader of mapping
+     * @return Mapping
+     * @throws IOException              If reading fails
+     * @throws IllegalArgumentException If line is not valid
+     */
+    public static AddressRemap read(Reader reader) throws IOException {
+        AddressRemap remap = new AddressRemap();
+        BufferedReader in = new BufferedReader(reader);
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            ++lineNumber;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+
+            int comma = line.indexOf(',');
+            long from = BtAddress.INVALID;
+            long to = BtAddress.INVALID;
+            if (comma > 0) {
+                from = BtAddress.pack(line.substring(0, comma).trim());
+                to = BtAddress.pack(line.substring(comma + 1).trim());
+            }
+            if (from == BtAddress.INVALID || to == BtAddress.INVALID) {
+                throw new IllegalArgumentException("Invalid line "
+                        + lineNumber + ": " + line);
+            }
+            remap.put(from, to);
+        }
+        return remap;
+    }
+
+    /**
+     * Add mapping. Earlier mapping of same address is replaced.
+     *
+     * @param from Packed old address
+     * @param to   Packed new address
+     */
+    public void put(long from, long to) {
+        if ((mSize + 1) * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+        if (insert(mKeys, mValues, from, to)) {
+            ++mSize;
+        }
+    }
+
+    /**
+     * Get new address
+     *
+     * @param from Packed old address
+     * @return Packed new address, or BtAddress.INVALID if address is not
+     * mapped
+     */
+    public long get(long from) {
+        if (from == BtAddress.INVALID) {
+            return BtAddress.INVALID;
+        }
+        long key = from | OCCUPIED;
+        int mask = mKeys.length - 1;
+        int slot = hash(from) & mask;
+        long stored;
+        while ((stored = mKeys[slot]) != 0) {
+            if (stored == key) {
+                return mValues[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return BtAddress.INVALID;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return true if value was added, false if existing value was replaced
+     */
+    private static boolean insert(long[] keys, long[] values, long from,
+                                  long to) {
+        long key = from | OCCUPIED;
+        int mask = keys.length - 1;
+        int slot = hash(from) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = to;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = to;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        long[] keys = new long[capacity];
+        long[] values = new long[capacity];
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mKeys[i] != 0) {
+                insert(keys, values, mKeys[i] & ~OCCUPIED, mValues[i]);
+            }
+        }
+        mKeys = keys;
+        mValues = values;
+    }
+
+    private static int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * BtAddress.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+/**
+ * Conversions between Bluetooth address strings and 48 bit addresses packed
+ * to long values. Packed value of "12:34:56:78:9A:BC" is 0x123456789ABCL.
+ */
+public class BtAddress {
+
+    /**
+     * Value returned for invalid addresses
+     */
+    public final static long INVALID = -1L;
+
+    private final static int ADDRESS_LENGTH = 17;
+    private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private BtAddress() {
+    }
+
+    /**
+     * Pack address string to long. Does not allocate memory.
+     *
+     * @param address Address in "00:00:00:00:00:00" format, both lower and
+     *                upper case letters accepted
+     * @return Packed address, or INVALID if address is not valid
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH) {
+            return INVALID;
+        }
+
+        long ret = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; ++i) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            ret = (ret << 4) | digit;
+        }
+        return ret;
+    }
+
+    /**
+     * Convert packed address back to string
+     *
+     * @param packed Packed address
+     * @return Address in "00:00:00:00:00:00" format
+     */
+    public static String unpack(long packed) {
+        char[] chars = new char[ADDRESS_LENGTH];
+        for (int i = 0; i < 6; ++i) {
+            int value = (int) (packed >> (8 * (5 - i))) & 0xFF;
+            chars[i * 3] = HEX_DIGITS[value >> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[value & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
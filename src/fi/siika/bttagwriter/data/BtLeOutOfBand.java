@@ -0,0 +1,234 @@
+/*
+ * BtLeOutOfBand.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+
+/**
+ * Class providing generate function for Bluetooth Low Energy out-of-band
+ * pairing binaries. Binary is list of AD structures (length, type, data),
+ * without length and address header used by BR/EDR pairing data.
+ */
+public class BtLeOutOfBand {
+
+    /**
+     * Mime type of LE out-of-band data
+     */
+    public final static String MIME_TYPE = "application/vnd.bluetooth.le.oob";
+
+    /**
+     * Value of appearance when it is not known
+     */
+    public final static int APPEARANCE_UNKNOWN = -1;
+
+    public final static byte ADDRESS_TYPE_PUBLIC = 0x00;
+    public final static byte ADDRESS_TYPE_RANDOM = 0x01;
+
+    public final static byte ROLE_PERIPHERAL_ONLY = 0x00;
+    public final static byte ROLE_CENTRAL_ONLY = 0x01;
+    public final static byte ROLE_PERIPHERAL_PREFERRED = 0x02;
+    public final static byte ROLE_CENTRAL_PREFERRED = 0x03;
+
+    /**
+     * LE General Discoverable Mode
+     */
+    public final static byte FLAG_GENERAL_DISCOVERABLE = 0x02;
+    /**
+     * BR/EDR Not Supported
+     */
+    public final static byte FLAG_BR_EDR_NOT_SUPPORTED = 0x04;
+    /**
+     * Simultaneous LE and BR/EDR (controller and host)
+     */
+    public final static byte FLAG_SIMULTANEOUS_LE_BR_EDR = 0x18;
+
+    /*
+     * Magic values are from:
+     * https://www.bluetooth.org/Technical/AssignedNumbers/generic_access_profile.htm
+     */
+    private final static byte BYTE_FLAGS = 0x01;
+    private final static byte BYTE_SHORTENED_LOCAL_NAME = 0x08;
+    private final static byte BYTE_COMPLETE_LOCAL_NAME = 0x09;
+    private final static byte BYTE_APPEARANCE = 0x19;
+    private final static byte BYTE_LE_DEVICE_ADDRESS = 0x1B;
+    private final static byte BYTE_LE_ROLE = 0x1C;
+
+    private final static int MAX_NAME_BYTES = 254;
+
+    private final static short SPACE_ADDRESS_BYTES = 2 + 7;
+    private final static short SPACE_ROLE_BYTES = 2 + 1;
+    private final static short SPACE_FLAGS_BYTES = 2 + 1;
+    private final static short SPACE_APPEARANCE_BYTES = 2 + 2;
+
+    /**
+     * Minimum space needed in bytes (address and role are mandatory)
+     */
+    public final static short MIN_SIZE_IN_BYTES =
+            SPACE_ADDRESS_BYTES + SPACE_ROLE_BYTES;
+
+    /**
+     * Class containing the data we care about
+     */
+    public static class Data {
+        private String mName = "";
+        private long mAddress = 0;
+        private byte mAddressType = ADDRESS_TYPE_PUBLIC;
+        private byte mRole = ROLE_PERIPHERAL_ONLY;
+        private int mAppearance = APPEARANCE_UNKNOWN;
+        private byte mFlags = FLAG_GENERAL_DISCOVERABLE | FLAG_BR_EDR_NOT_SUPPORTED;
+
+        /**
+         * Set name of device. Only printable ASCII characters are kept.
+         *
+         * @param name Name of device
+         */
+        public void setName(String name) {
+            mName = name != null ? name.replaceAll("[^\\x20-\\x7e]", "") : "";
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Will only accept valid addresses. Both lower and upper case letters
+         * are accepted.
+         *
+         * @param address Address in string format (e.g. "00:00:00:00:00:00")
+         * @param type    ADDRESS_TYPE_PUBLIC or ADDRESS_TYPE_RANDOM
+         */
+        public void setAddress(String address, byte type) {
+            long packed = BtAddress.pack(address);
+            if (packed != BtAddress.INVALID) {
+                mAddress = packed;
+                mAddressType = type;
+            }
+        }
+
+        public String getAddress() {
+            return BtAddress.unpack(mAddress);
+        }
+
+        public byte getAddressType() {
+            return mAddressType;
+        }
+
+        /**
+         * @param role One of ROLE_ values
+         */
+        public void setRole(byte role) {
+            mRole = role;
+        }
+
+        public byte getRole() {
+            return mRole;
+        }
+
+        /**
+         * @param appearance GAP appearance value or APPEARANCE_UNKNOWN
+         */
+        public void setAppearance(int appearance) {
+            mAppearance = appearance;
+        }
+
+        public int getAppearance() {
+            return mAppearance;
+        }
+
+        /**
+         * @param flags Combination of FLAG_ values
+         */
+        public void setFlags(byte flags) {
+            mFlags = flags;
+        }
+
+        public byte getFlags() {
+            return mFlags;
+        }
+    }
+
+    /**
+     * Generate binary LE out-of-band content. Address and role are always
+     * included, flags, appearance and name only if those fit (in that
+     * order). Name is shortened if complete name does not fit. Only the
+     * returned array is allocated.
+     *
+     * @param input     Information stored to binary output
+     * @param maxLength How big byte array can be returned
+     * @return Return binary content
+     * @throws OutOfSpaceException If mandatory content does not fit
+     */
+    public static byte[] generate(Data input, short maxLength)
+            throws OutOfSpaceException {
+
+        int len = MIN_SIZE_IN_BYTES;
+        if (len > maxLength) {
+            throw new OutOfSpaceException("Not enough space for LE OOB data");
+        }
+
+        boolean flags = false;
+        if (len + SPACE_FLAGS_BYTES <= maxLength) {
+            flags = true;
+            len += SPACE_FLAGS_BYTES;
+        }
+
+        boolean appearance = false;
+        if (input.getAppearance() != APPEARANCE_UNKNOWN
+                && len + SPACE_APPEARANCE_BYTES <= maxLength) {
+            appearance = true;
+            len += SPACE_APPEARANCE_BYTES;
+        }
+
+        String name = input.getName();
+        int nameLen = Math.min(Math.min(name.length(), MAX_NAME_BYTES),
+                maxLength - len - 2);
+        if (nameLen > 0) {
+            len += 2 + nameLen;
+        }
+
+        byte[] data = new byte[len];
+        int index = 0;
+
+        // LE device address, little endian followed by type
+        data[index++] = 8;
+        data[index++] = BYTE_LE_DEVICE_ADDRESS;
+        for (int i = 0; i < 6; ++i) {
+            data[index++] = (byte) (input.mAddress >> (8 * i));
+        }
+        data[index++] = input.getAddressType();
+
+        data[index++] = 2;
+        data[index++] = BYTE_LE_ROLE;
+        data[index++] = input.getRole();
+
+        if (flags) {
+            data[index++] = 2;
+            data[index++] = BYTE_FLAGS;
+            data[index++] = input.getFlags();
+        }
+
+        if (appearance) {
+            data[index++] = 3;
+            data[index++] = BYTE_APPEARANCE;
+            data[index++] = (byte) input.getAppearance();
+            data[index++] = (byte) (input.getAppearance() >> 8);
+        }
+
+        if (nameLen > 0) {
+            data[index++] = (byte) (nameLen + 1);
+            data[index++] = nameLen < name.length() ? BYTE_SHORTENED_LOCAL_NAME
+                    : BYTE_COMPLETE_LOCAL_NAME;
+            for (int i = 0; i < nameLen; ++i) {
+                data[index++] = (byte) name.charAt(i);
+            }
+        }
+
+        return data;
+    }
+}
@@ -8,11 +8,12 @@
  */
 package fi.siika.bttagwriter.data;
 
-import android.bluetooth.BluetoothAdapter;
-import android.util.Log;
-
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
 
 import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
 
@@ -56,8 +57,6 @@ public class BtSecureSimplePairing {
     private final static byte BYTE_SIMPLE_PAIRING_RANDOMIZER = 0x0F;
     private final static byte BYTE_MANUFACTURER_SPECIFIC_DATA = -1; //-1 = 0xFF
 
-    private final static String TAG = "BtSecureSimplePairing";
-
     private final static short SPACE_TOTAL_LEN_BYTES = 2;
     private final static short SPACE_ADDRESS_BYTES = 6;
 
@@ -77,6 +76,7 @@ public class BtSecureSimplePairing {
         private byte[] mHash;
         private final byte[] mRandomizer;
         private byte[] mManufacturerData;
+        private final List<UUID> mServiceUuids = new ArrayList<UUID>();
 
         public Data() {
             mName = "";
@@ -135,7 +135,7 @@ public class BtSecureSimplePairing {
          */
         public void setAddress(String address) {
             String modAddress = address.toUpperCase();
-            if (BluetoothAdapter.checkBluetoothAddress(modAddress)) {
+            if (BtAddress.pack(modAddress) != BtAddress.INVALID) {
                 mAddress = modAddress;
             }
         }
@@ -166,8 +166,6 @@ public class BtSecureSimplePairing {
         public void setDeviceClass(byte[] deviceClass) {
             if (deviceClass.length == 3) {
                 mDeviceClass = deviceClass;
-            } else {
-                Log.e(TAG, "Length of device class not accepted: " + deviceClass.length);
             }
         }
 
@@ -203,6 +201,23 @@ public class BtSecureSimplePairing {
             return mManufacturerData;
         }
 
+        /**
+         * Set service class UUIDs of device. Those are written in shortest
+         * form possible, if there is space left.
+         *
+         * @param uuids Service class UUIDs
+         */
+        public void setServiceUuids(Collection<UUID> uuids) {
+            mServiceUuids.clear();
+            if (uuids != null) {
+                mServiceUuids.addAll(uuids);
+            }
+        }
+
+        public List<UUID> getServiceUuids() {
+            return mServiceUuids;
+        }
+
     }
 
 	/*
@@ -273,9 +288,15 @@ public class BtSecureSimplePairing {
             }
         }
 
+        // Service UUIDs use what is left
+        BtServiceUuids uuids = null;
+        if (len < maxLength && !input.getServiceUuids().isEmpty()) {
+            uuids = new BtServiceUuids(input.getServiceUuids());
+            len += uuids.fit(maxLength - len);
+        }
+
         //Still check that we are inside the limits
         if (len > maxLength) {
-            Log.w(TAG, "Not enough space in tag for content");
             throw new OutOfSpaceException("Not enough space for BT data");
         }
 
@@ -302,6 +323,11 @@ public class BtSecureSimplePairing {
         // class of device
         index = addPart(index, data, classBytes, BYTE_CLASS_OF_DEVICE);
 
+        // service class UUIDs
+        if (uuids != null) {
+            index = uuids.write(data, index);
+        }
+
         return data;
     }
 
@@ -385,14 +411,11 @@ public class BtSecureSimplePairing {
                     break;
                 default:
                     //There are many known elements we ignore here
-                    Log.w(TAG, "Unknown element: " + dataType);
+                    break;
             }
 
         }
 
-        Log.d(TAG, "Parsed data: '" + data.getAddress() + "' '"
-                + data.getName() + "'");
-
         return data;
     }
 }
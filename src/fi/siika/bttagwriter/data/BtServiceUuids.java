@@ -0,0 +1,198 @@
+/*
+ * BtServiceUuids.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Encoder of service class UUID lists used in Bluetooth pairing data. UUIDs
+ * derived from Bluetooth base UUID are written in 16 or 32 bit form, others
+ * in 128 bit form. Lists are marked complete when all UUIDs of that size fit
+ * the byte budget, otherwise as many as fit are written as incomplete list.
+ * <p/>
+ * Use fit to decide what is written and then write to write it.
+ */
+public class BtServiceUuids {
+
+    /*
+     * Magic values are from:
+     * https://www.bluetooth.org/Technical/AssignedNumbers/generic_access_profile.htm
+     */
+    private final static byte BYTE_INCOMPLETE_16 = 0x02;
+    private final static byte BYTE_COMPLETE_16 = 0x03;
+    private final static byte BYTE_INCOMPLETE_32 = 0x04;
+    private final static byte BYTE_COMPLETE_32 = 0x05;
+    private final static byte BYTE_INCOMPLETE_128 = 0x06;
+    private final static byte BYTE_COMPLETE_128 = 0x07;
+
+    /**
+     * Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB
+     */
+    private final static long BASE_MSB_LOW = 0x0000000000001000L;
+    private final static long BASE_MSB_MASK = 0x00000000FFFFFFFFL;
+    private final static long BASE_LSB = 0x800000805F9B34FBL;
+
+    // Max number of UUIDs in one structure (data length fits in one byte)
+    private final static int MAX_16 = 127;
+    private final static int MAX_32 = 63;
+    private final static int MAX_128 = 15;
+
+    private final int[] mShort16;
+    private final int[] mShort32;
+    private final UUID[] mLong128;
+    private int mFit16 = 0;
+    private int mFit32 = 0;
+    private int mFit128 = 0;
+
+    /**
+     * @param uuids Service class UUIDs, duplicates are ignored
+     */
+    public BtServiceUuids(Collection<UUID> uuids) {
+        int count16 = 0;
+        int count32 = 0;
+        int count128 = 0;
+        int[] short16 = new int[uuids.size()];
+        int[] short32 = new int[uuids.size()];
+        UUID[] long128 = new UUID[uuids.size()];
+
+        for (UUID uuid : uuids) {
+            if (uuid == null) {
+                continue;
+            }
+            if (isBaseUuid(uuid)) {
+                int value = (int) (uuid.getMostSignificantBits() >>> 32);
+                if ((value & 0xFFFF0000) == 0) {
+                    if (!contains(short16, count16, value)) {
+                        short16[count16++] = value;
+                    }
+                } else if (!contains(short32, count32, value)) {
+                    short32[count32++] = value;
+                }
+            } else if (!contains(long128, count128, uuid)) {
+                long128[count128++] = uuid;
+            }
+        }
+
+        mShort16 = copyOf(short16, count16);
+        mShort32 = copyOf(short32, count32);
+        mLong128 = new UUID[count128];
+        System.arraycopy(long128, 0, mLong128, 0, count128);
+    }
+
+    /**
+     * @return true if there are no UUIDs
+     */
+    public boolean isEmpty() {
+        return mShort16.length == 0 && mShort32.length == 0
+                && mLong128.length == 0;
+    }
+
+    /**
+     * Decide how many UUIDs are written inside the budget. Shorter forms are
+     * written first.
+     *
+     * @param budget Bytes available
+     * @return Bytes used
+     */
+    public int fit(int budget) {
+        int used = 0;
+        mFit16 = fitCount(mShort16.length, MAX_16, 2, budget - used);
+        used += size(mFit16, 2);
+        mFit32 = fitCount(mShort32.length, MAX_32, 4, budget - used);
+        used += size(mFit32, 4);
+        mFit128 = fitCount(mLong128.length, MAX_128, 16, budget - used);
+        used += size(mFit128, 16);
+        return used;
+    }
+
+    /**
+     * Write UUIDs decided by previous fit call
+     *
+     * @param dest  Destination buffer
+     * @param index Index where written
+     * @return New position index
+     */
+    public int write(byte[] dest, int index) {
+        if (mFit16 > 0) {
+            dest[index++] = (byte) (mFit16 * 2 + 1);
+            dest[index++] = mFit16 == mShort16.length ? BYTE_COMPLETE_16
+                    : BYTE_INCOMPLETE_16;
+            for (int i = 0; i < mFit16; ++i) {
+                index = writeLittleEndian(dest, index, mShort16[i], 2);
+            }
+        }
+        if (mFit32 > 0) {
+            dest[index++] = (byte) (mFit32 * 4 + 1);
+            dest[index++] = mFit32 == mShort32.length ? BYTE_COMPLETE_32
+                    : BYTE_INCOMPLETE_32;
+            for (int i = 0; i < mFit32; ++i) {
+                index = writeLittleEndian(dest, index, mShort32[i], 4);
+            }
+        }
+        if (mFit128 > 0) {
+            dest[index++] = (byte) (mFit128 * 16 + 1);
+            dest[index++] = mFit128 == mLong128.length ? BYTE_COMPLETE_128
+                    : BYTE_INCOMPLETE_128;
+            for (int i = 0; i < mFit128; ++i) {
+                UUID uuid = mLong128[i];
+                index = writeLittleEndian(dest, index,
+                        uuid.getLeastSignificantBits(), 8);
+                index = writeLittleEndian(dest, index,
+                        uuid.getMostSignificantBits(), 8);
+            }
+        }
+        return index;
+    }
+
+    private static boolean isBaseUuid(UUID uuid) {
+        return uuid.getLeastSignificantBits() == BASE_LSB
+                && (uuid.getMostSignificantBits() & BASE_MSB_MASK) == BASE_MSB_LOW;
+    }
+
+    private static int fitCount(int count, int max, int unit, int budget) {
+        return Math.max(0, Math.min(Math.min(count, max), (budget - 2) / unit));
+    }
+
+    private static int size(int count, int unit) {
+        return count > 0 ? 2 + count * unit : 0;
+    }
+
+    private static int writeLittleEndian(byte[] dest, int index, long value,
+                                         int bytes) {
+        for (int i = 0; i < bytes; ++i) {
+            dest[index++] = (byte) (value >> (8 * i));
+        }
+        return index;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; ++i) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(UUID[] values, int count, UUID value) {
+        for (int i = 0; i < count; ++i) {
+            if (values[i].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] copyOf(int[] values, int count) {
+        int[] ret = new int[count];
+        System.arraycopy(values, 0, ret, 0, count);
+        return ret;
+    }
+}
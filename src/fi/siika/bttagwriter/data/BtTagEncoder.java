@@ -0,0 +1,215 @@
+/*
+ * BtTagEncoder.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+
+/**
+ * Encodes binary NDEF messages written to the tags. Does not depend on
+ * Android, so same encoding is used by application (via BtTagGenerator)
+ * and by desktop tools.
+ */
+public class BtTagEncoder {
+
+    /**
+     * Let's use "0" (0x30) as our Record ID in Handover's Alt. Carrier
+     */
+    private final static byte RECORD_ID_BYTE = 0x30;
+
+    /**
+     * Bytes used by record around type and payload: header, type length,
+     * payload length, ID length and ID (and one spare byte)
+     */
+    private final static int RECORD_OVERHEAD = 6;
+
+    /**
+     * Safe max size of payload when size is not limited
+     */
+    private final static int MAX_PAYLOAD_SIZE = 1020;
+
+    private final static byte[] BR_MIME = ascii(BtSecureSimplePairing.MIME_TYPE);
+    private final static byte[] LE_MIME = ascii(BtLeOutOfBand.MIME_TYPE);
+
+    private BtTagEncoder() {
+    }
+
+    /**
+     * Encode pairing message. Compiled message of information is returned
+     * as is if it fits the limit.
+     *
+     * @param info      Tag information written
+     * @param sizeLimit Will try to keep size of message lower than this limit.
+     *                  If -1 will not do any size check and will generate full size message.
+     * @return Binary NDEF message
+     * @throws OutOfSpaceException Size limit too small for content
+     */
+    public static byte[] encode(TagInformation info, int sizeLimit)
+            throws OutOfSpaceException {
+
+        if (info.getType() == null) {
+            throw new IllegalArgumentException("Type missing");
+        }
+
+        byte[] compiled = info.getCompiledMessage();
+        if (compiled != null && (sizeLimit < 0 || compiled.length <= sizeLimit)) {
+            return compiled;
+        }
+
+        PairingCarrier carrier = info.getCarrier();
+        boolean handover = info.getType() == TagType.HANDOVER;
+
+        // Record IDs are only used if we use full handover format
+        byte[] brRecordId = null;
+        byte[] leRecordId = null;
+        List<byte[]> carrierIds = new ArrayList<byte[]>(2);
+        if (handover) {
+            if (carrier.includesBrEdr()) {
+                brRecordId = new byte[]{RECORD_ID_BYTE};
+                carrierIds.add(brRecordId);
+            }
+            if (carrier.includesLe()) {
+                leRecordId = new byte[]{(byte) (RECORD_ID_BYTE + carrierIds.size())};
+                carrierIds.add(leRecordId);
+            }
+        }
+
+        NdefEncoder.Record handoverRecord = null;
+        int remaining = MAX_PAYLOAD_SIZE;
+        if (handover) {
+            handoverRecord = generateHandoverSelectRecord(carrierIds);
+        }
+        if (sizeLimit > 0) {
+            remaining = sizeLimit;
+            if (handoverRecord != null) {
+                remaining -= handoverRecord.getSize();
+            }
+        }
+
+        int brMinSize = 0;
+        if (carrier.includesBrEdr()) {
+            brMinSize = RECORD_OVERHEAD + BR_MIME.length
+                    + BtSecureSimplePairing.MIN_SIZE_IN_BYTES;
+        }
+        int leMinSize = 0;
+        if (carrier.includesLe()) {
+            leMinSize = RECORD_OVERHEAD + LE_MIME.length
+                    + BtLeOutOfBand.MIN_SIZE_IN_BYTES;
+        }
+        if (sizeLimit > 0 && brMinSize + leMinSize > remaining) {
+            throw new OutOfSpaceException(
+                    "Tag is too small for NDEF content: "
+                            + (brMinSize + leMinSize) + " > " + remaining);
+        }
+
+        // LE record is generated first, as with both carriers the LE record
+        // is the one newer devices use. BR/EDR gets the space left.
+        NdefEncoder.Record leRecord = null;
+        if (carrier.includesLe()) {
+            BtLeOutOfBand.Data content = new BtLeOutOfBand.Data();
+            content.setName(info.name);
+            content.setAddress(info.address, BtLeOutOfBand.ADDRESS_TYPE_PUBLIC);
+            content.setAppearance(info.appearance);
+            content.setFlags((byte) (carrier.includesBrEdr()
+                    ? BtLeOutOfBand.FLAG_GENERAL_DISCOVERABLE
+                    | BtLeOutOfBand.FLAG_SIMULTANEOUS_LE_BR_EDR
+                    : BtLeOutOfBand.FLAG_GENERAL_DISCOVERABLE
+                    | BtLeOutOfBand.FLAG_BR_EDR_NOT_SUPPORTED));
+
+            int payloadLimit = remaining - brMinSize - RECORD_OVERHEAD
+                    - LE_MIME.length;
+            byte[] payload = BtLeOutOfBand.generate(content,
+                    (short) Math.min(payloadLimit, MAX_PAYLOAD_SIZE));
+            leRecord = new NdefEncoder.Record(NdefEncoder.TNF_MIME_MEDIA,
+                    LE_MIME, leRecordId, payload);
+            if (sizeLimit > 0) {
+                remaining -= RECORD_OVERHEAD + LE_MIME.length + payload.length;
+            }
+        }
+
+        NdefEncoder.Record brRecord = null;
+        if (carrier.includesBrEdr()) {
+            BtSecureSimplePairing.Data content = new BtSecureSimplePairing.Data();
+            content.setName(info.name);
+            content.setAddress(info.address);
+            if (info.deviceClass != null) {
+                content.setDeviceClass(info.deviceClass);
+            }
+            content.setServiceUuids(info.serviceUuids);
+            // TODO: Pin (if possible)
+
+            int payloadLimit = remaining - RECORD_OVERHEAD - BR_MIME.length;
+            brRecord = new NdefEncoder.Record(NdefEncoder.TNF_MIME_MEDIA,
+                    BR_MIME, brRecordId, BtSecureSimplePairing.generate(content,
+                    (short) Math.min(payloadLimit, MAX_PAYLOAD_SIZE)));
+        }
+
+        List<NdefEncoder.Record> records = new ArrayList<NdefEncoder.Record>(3);
+        if (handoverRecord != null) {
+            records.add(handoverRecord);
+        }
+        if (brRecord != null) {
+            records.add(brRecord);
+        }
+        if (leRecord != null) {
+            records.add(leRecord);
+        }
+        return NdefEncoder.encode(records.toArray(
+                new NdefEncoder.Record[records.size()]));
+    }
+
+    /**
+     * Generate Handover Select record with alternative carrier for each
+     * carrier record
+     *
+     * @param carrierIds Record IDs of carrier records
+     * @return Handover Select record
+     */
+    private static NdefEncoder.Record generateHandoverSelectRecord(
+            List<byte[]> carrierIds) {
+        NdefEncoder.Record[] acRecords = new NdefEncoder.Record[carrierIds.size()];
+        for (int i = 0; i < acRecords.length; ++i) {
+            acRecords[i] = new NdefEncoder.Record(NdefEncoder.TNF_WELL_KNOWN,
+                    NdefEncoder.RTD_ALTERNATIVE_CARRIER, null,
+                    generateAlternativeCarrierData(carrierIds.get(i)[0]));
+        }
+        byte[] ac = NdefEncoder.encode(acRecords);
+
+        byte[] data = new byte[1 + ac.length];
+        data[0] = 0x12;
+        System.arraycopy(ac, 0, data, 1, ac.length);
+
+        return new NdefEncoder.Record(NdefEncoder.TNF_WELL_KNOWN,
+                NdefEncoder.RTD_HANDOVER_SELECT, null, data);
+    }
+
+    /**
+     * Generates AC data used in Handover
+     *
+     * @param recordId ID of carrier record
+     * @return Alternative carrier data
+     */
+    private static byte[] generateAlternativeCarrierData(byte recordId) {
+        //1st byte: 0x01 = active target
+        //2nd byte: 0x01 = ndef record id
+        //3rd byte: ID of record (eg. 0x30 == "0")
+        //4th byte: 0x00 = RFU
+        return new byte[]{0x01, 0x01, recordId, 0x00};
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] ret = new byte[text.length()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = (byte) text.charAt(i);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * DeviceRegistry.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Read only registry of devices stored in memory mapped file. Devices are
+ * in open addressed hash table keyed by packed address (see BtAddress), so
+ * lookups do not allocate and registry of millions of devices does not use
+ * heap. Registry files are created with Builder.
+ * <p/>
+ * File format (big endian):
+ * <pre>
+ * header  32 bytes: magic, version, slot count, device count,
+ *                   names offset, names length
+ * slots   slot count * 24 bytes: key (address | OCCUPIED, 0 if empty),
+ *                   name offset, appearance, class of device (3 bytes),
+ *                   type, carrier, flags, name length (2 bytes)
+ * names   UTF-8 names of devices
+ * </pre>
+ * Lookups return slot index that is then used to read fields of device.
+ */
+public class DeviceRegistry {
+
+    private final static int MAGIC = 0x42544452; // "BTDR"
+    private final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 32;
+    private final static int SLOT_SIZE = 24;
+    private final static long OCCUPIED = 1L << 48;
+
+    private final static int OFFSET_NAME = 8;
+    private final static int OFFSET_APPEARANCE = 12;
+    private final static int OFFSET_CLASS = 16;
+    private final static int OFFSET_TYPE = 19;
+    private final static int OFFSET_CARRIER = 20;
+    private final static int OFFSET_FLAGS = 21;
+    private final static int OFFSET_NAME_LENGTH = 22;
+
+    /**
+     * Device flag: tag of device should be read only
+     */
+    public final static int FLAG_READ_ONLY = 0x01;
+
+    /**
+     * Returned by find if device is not in registry
+     */
+    public final static int NOT_FOUND = -1;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static TagType[] TYPES = TagType.values();
+    private final static PairingCarrier[] CARRIERS = PairingCarrier.values();
+
+    private final ByteBuffer mBuffer;
+    private final int mMask;
+    private final int mSize;
+    private final int mNamesOffset;
+
+    private DeviceRegistry(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a device registry");
+        }
+        int slots = buffer.getInt(8);
+        mSize = buffer.getInt(12);
+        mNamesOffset = buffer.getInt(16);
+        int namesLength = buffer.getInt(20);
+        if (slots <= 0 || Integer.bitCount(slots) != 1
+                || mNamesOffset != HEADER_SIZE + (long) slots * SLOT_SIZE
+                || (long) mNamesOffset + namesLength > buffer.capacity()) {
+            throw new IOException("Invalid device registry");
+        }
+        mMask = slots - 1;
+    }
+
+    /**
+     * Open registry file. File is mapped, not read, so this returns
+     * immediately for any size of registry.
+     *
+     * @param file Registry file
+     * @return Registry
+     * @throws IOException If file can not be mapped or is not valid
+     */
+    public static DeviceRegistry open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Registry too large");
+            }
+            // Mapping stays valid after file is closed
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new DeviceRegistry(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Use registry already in memory
+     *
+     * @param data Content of registry file
+     * @return Registry
+     * @throws IOException If data is not valid
+     */
+    public static DeviceRegistry wrap(byte[] data) throws IOException {
+        return new DeviceRegistry(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return Number of devices in registry
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Find device. Does not allocate memory.
+     *
+     * @param address Packed address
+     * @return Slot of device, or NOT_FOUND
+     */
+    public int find(long address) {
+        if (address == BtAddress.INVALID) {
+            return NOT_FOUND;
+        }
+        long key = address | OCCUPIED;
+        int slot = hash(address) & mMask;
+        while (true) {
+            long stored = mBuffer.getLong(slotOffset(slot));
+            if (stored == key) {
+                return slot;
+            } else if (stored == 0) {
+                return NOT_FOUND;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    public boolean contains(long address) {
+        return find(address) != NOT_FOUND;
+    }
+
+    public long getAddress(int slot) {
+        return mBuffer.getLong(slotOffset(slot)) & ~OCCUPIED;
+    }
+
+    /**
+     * @return Class of device as 24 bit value, 0 if not known
+     */
+    public int getDeviceClass(int slot) {
+        int offset = slotOffset(slot) + OFFSET_CLASS;
+        return (mBuffer.get(offset) & 0xFF) << 16
+                | (mBuffer.get(offset + 1) & 0xFF) << 8
+                | (mBuffer.get(offset + 2) & 0xFF);
+    }
+
+    public int getAppearance(int slot) {
+        return mBuffer.getInt(slotOffset(slot) + OFFSET_APPEARANCE);
+    }
+
+    public TagType getType(int slot) {
+        return TYPES[mBuffer.get(slotOffset(slot) + OFFSET_TYPE)];
+    }
+
+    public PairingCarrier getCarrier(int slot) {
+        return CARRIERS[mBuffer.get(slotOffset(slot) + OFFSET_CARRIER)];
+    }
+
+    public int getFlags(int slot) {
+        return mBuffer.get(slotOffset(slot) + OFFSET_FLAGS) & 0xFF;
+    }
+
+    public boolean isReadOnly(int slot) {
+        return (getFlags(slot) & FLAG_READ_ONLY) != 0;
+    }
+
+    /**
+     * @return Length of UTF-8 encoded name in bytes
+     */
+    public int getNameLength(int slot) {
+        return mBuffer.getShort(slotOffset(slot) + OFFSET_NAME_LENGTH) & 0xFFFF;
+    }
+
+    /**
+     * Copy UTF-8 encoded name without allocating
+     *
+     * @param slot Slot of device
+     * @param dest Array where name is copied, getNameLength bytes are used
+     * @return Length of name
+     */
+    public int copyName(int slot, byte[] dest) {
+        int offset = mNamesOffset + mBuffer.getInt(slotOffset(slot) + OFFSET_NAME);
+        int length = getNameLength(slot);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = mBuffer.get(offset + i);
+        }
+        return length;
+    }
+
+    /**
+     * Compare name of device to name read from a tag without allocating.
+     * Encoders write names as printable ASCII only, so other characters of
+     * device name are skipped in comparison.
+     *
+     * @param slot   Slot of device
+     * @param data   Array containing name
+     * @param offset Offset of name in array
+     * @param length Length of name
+     * @param prefix If true, name given may be shortened from start of
+     *               device name
+     * @return true if name matches
+     */
+    public boolean nameMatches(int slot, byte[] data, int offset, int length,
+                               boolean prefix) {
+        int nameOffset = mNamesOffset
+                + mBuffer.getInt(slotOffset(slot) + OFFSET_NAME);
+        int nameEnd = nameOffset + getNameLength(slot);
+        int pos = nameOffset;
+        for (int i = 0; i < length; ++i) {
+            while (pos < nameEnd && !isPrintable(mBuffer.get(pos))) {
+                ++pos;
+            }
+            if (pos == nameEnd || mBuffer.get(pos) != data[offset + i]) {
+                return false;
+            }
+            ++pos;
+        }
+        if (!prefix) {
+            for (; pos < nameEnd; ++pos) {
+                if (isPrintable(mBuffer.get(pos))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Bytes of multi-byte UTF-8 characters are all above ASCII range
+     */
+    private static boolean isPrintable(byte b) {
+        return b >= 0x20 && b <= 0x7E;
+    }
+
+    public String getName(int slot) {
+        byte[] name = new byte[getNameLength(slot)];
+        copyName(slot, name);
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Fill tag information of device
+     *
+     * @param slot Slot of device
+     * @param info Information where values are written
+     */
+    public void fill(int slot, TagInformation info) {
+        info.address = BtAddress.unpack(getAddress(slot));
+        info.name = getName(slot);
+        int deviceClass = getDeviceClass(slot);
+        // Class of device is little endian in EIR data
+        info.deviceClass = deviceClass == 0 ? null : new byte[]{
+                (byte) deviceClass, (byte) (deviceClass >> 8),
+                (byte) (deviceClass >> 16)};
+        info.appearance = getAppearance(slot);
+        info.setType(getType(slot));
+        info.setCarrier(getCarrier(slot));
+        info.setReadOnly(isReadOnly(slot));
+        info.setCompiledMessage(null);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /*
+     * Addresses of one vendor share upper bits, so all bits are mixed
+     */
+    private static int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Collects devices and writes registry file. Builder keeps devices in
+     * primitive arrays, so it can be used with large manifests.
+     */
+    public static class Builder {
+        private long[] mAddresses = new long[64];
+        private int[] mClasses = new int[64];
+        private int[] mAppearances = new int[64];
+        private byte[] mTypes = new byte[64];
+        private byte[] mCarriers = new byte[64];
+        private byte[] mFlags = new byte[64];
+        private int[] mNameOffsets = new int[64];
+        private short[] mNameLengths = new short[64];
+        private byte[] mNames = new byte[1024];
+        private int mNamesLength = 0;
+        private int mCount = 0;
+
+        /**
+         * Add device. Devices must be unique.
+         *
+         * @param info Information of device, address must be valid
+         * @throws IllegalArgumentException If address is not valid
+         */
+        public void add(TagInformation info) {
+            long address = BtAddress.pack(info.address);
+            if (address == BtAddress.INVALID) {
+                throw new IllegalArgumentException("Invalid address: "
+                        + info.address);
+            }
+            int deviceClass = 0;
+            if (info.deviceClass != null && info.deviceClass.length == 3) {
+                deviceClass = (info.deviceClass[2] & 0xFF) << 16
+                        | (info.deviceClass[1] & 0xFF) << 8
+                        | (info.deviceClass[0] & 0xFF);
+            }
+            add(address, info.name, deviceClass, info.appearance,
+                    info.getType(), info.getCarrier(),
+                    info.isReadOnly() ? FLAG_READ_ONLY : 0);
+        }
+
+        /**
+         * Add device. Devices must be unique.
+         *
+         * @param address     Packed address
+         * @param name        Name of device or null
+         * @param deviceClass Class of device as 24 bit value
+         * @param appearance  GAP appearance
+         * @param type        Type of tag
+         * @param carrier     Carrier of tag
+         * @param flags       Flags of device
+         */
+        public void add(long address, String name, int deviceClass,
+                        int appearance, TagType type, PairingCarrier carrier,
+                        int flags) {
+            if (mCount == mAddresses.length) {
+                int capacity = mCount * 2;
+                mAddresses = Arrays.copyOf(mAddresses, capacity);
+                mClasses = Arrays.copyOf(mClasses, capacity);
+                mAppearances = Arrays.copyOf(mAppearances, capacity);
+                mTypes = Arrays.copyOf(mTypes, capacity);
+                mCarriers = Arrays.copyOf(mCarriers, capacity);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+                mNameOffsets = Arrays.copyOf(mNameOffsets, capacity);
+                mNameLengths = Arrays.copyOf(mNameLengths, capacity);
+            }
+
+            byte[] encoded = name != null ? name.getBytes(UTF8) : new byte[0];
+            int length = Math.min(encoded.length, 0xFFFF);
+            if (mNamesLength + length > mNames.length) {
+                mNames = Arrays.copyOf(mNames,
+                        Math.max(mNames.length * 2, mNamesLength + length));
+            }
+            System.arraycopy(encoded, 0, mNames, mNamesLength, length);
+
+            mAddresses[mCount] = address;
+            mClasses[mCount] = deviceClass & 0xFFFFFF;
+            mAppearances[mCount] = appearance;
+            mTypes[mCount] = (byte) type.ordinal();
+            mCarriers[mCount] = (byte) carrier.ordinal();
+            mFlags[mCount] = (byte) flags;
+            mNameOffsets[mCount] = mNamesLength;
+            mNameLengths[mCount] = (short) length;
+            mNamesLength += length;
+            ++mCount;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * Build registry file content
+         *
+         * @return Content of registry file
+         * @throws IllegalArgumentException If same address was added twice
+         */
+        public byte[] build() {
+            // Load factor of at most 0.5 keeps probe sequences short
+            int slots = Integer.highestOneBit(Math.max(mCount, 1) * 2);
+            if (slots < mCount * 2) {
+                slots <<= 1;
+            }
+            long size = HEADER_SIZE + (long) slots * SLOT_SIZE + mNamesLength;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many devices");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            int namesOffset = HEADER_SIZE + slots * SLOT_SIZE;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, slots);
+            buffer.putInt(12, mCount);
+            buffer.putInt(16, namesOffset);
+            buffer.putInt(20, mNamesLength);
+
+            int mask = slots - 1;
+            for (int i = 0; i < mCount; ++i) {
+                long key = mAddresses[i] | OCCUPIED;
+                int slot = hash(mAddresses[i]) & mask;
+                long stored;
+                while ((stored = buffer.getLong(slotOffset(slot))) != 0) {
+                    if (stored == key) {
+                        throw new IllegalArgumentException("Duplicate address: "
+                                + BtAddress.unpack(mAddresses[i]));
+                    }
+                    slot = (slot + 1) & mask;
+                }
+
+                int offset = slotOffset(slot);
+                buffer.putLong(offset, key);
+                buffer.putInt(offset + OFFSET_NAME, mNameOffsets[i]);
+                buffer.putInt(offset + OFFSET_APPEARANCE, mAppearances[i]);
+                buffer.put(offset + OFFSET_CLASS, (byte) (mClasses[i] >> 16));
+                buffer.put(offset + OFFSET_CLASS + 1, (byte) (mClasses[i] >> 8));
+                buffer.put(offset + OFFSET_CLASS + 2, (byte) mClasses[i]);
+                buffer.put(offset + OFFSET_TYPE, mTypes[i]);
+                buffer.put(offset + OFFSET_CARRIER, mCarriers[i]);
+                buffer.put(offset + OFFSET_FLAGS, mFlags[i]);
+                buffer.putShort(offset + OFFSET_NAME_LENGTH, mNameLengths[i]);
+            }
+
+            buffer.position(namesOffset);
+            buffer.put(mNames, 0, mNamesLength);
+            return buffer.array();
+        }
+
+        /**
+         * Write registry file. File is written to temporary file first and
+         * renamed when complete.
+         *
+         * @param file Registry file
+         * @throws IOException If file can not be written
+         */
+        public void write(File file) throws IOException {
+            byte[] data = build();
+            File temp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                raf.setLength(0);
+                raf.write(data);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+}
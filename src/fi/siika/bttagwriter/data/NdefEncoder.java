@@ -0,0 +1,128 @@
+/*
+ * NdefEncoder.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+/**
+ * Binary encoding of NDEF records and messages. Output is the same as with
+ * android.nfc.NdefMessage.toByteArray, but this class does not depend on
+ * Android, so it can be used outside of the application.
+ */
+public class NdefEncoder {
+
+    public final static short TNF_WELL_KNOWN = 0x01;
+    public final static short TNF_MIME_MEDIA = 0x02;
+
+    public final static byte[] RTD_HANDOVER_SELECT = new byte[]{0x48, 0x73}; // "Hs"
+    public final static byte[] RTD_ALTERNATIVE_CARRIER = new byte[]{0x61, 0x63}; // "ac"
+
+    private final static byte FLAG_MB = (byte) 0x80;
+    private final static byte FLAG_ME = 0x40;
+    private final static byte FLAG_SR = 0x10;
+    private final static byte FLAG_IL = 0x08;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    /**
+     * Record of message
+     */
+    public static class Record {
+        public final short tnf;
+        public final byte[] type;
+        public final byte[] id;
+        public final byte[] payload;
+
+        /**
+         * @param tnf     Type name format
+         * @param type    Type of record
+         * @param id      ID of record or null
+         * @param payload Payload of record
+         */
+        public Record(short tnf, byte[] type, byte[] id, byte[] payload) {
+            this.tnf = tnf;
+            this.type = type != null ? type : EMPTY;
+            this.id = id != null ? id : EMPTY;
+            this.payload = payload != null ? payload : EMPTY;
+        }
+
+        /**
+         * Get size of encoded record
+         *
+         * @return Size in bytes
+         */
+        public int getSize() {
+            return 2 + (payload.length < 256 ? 1 : 4)
+                    + (id.length > 0 ? 1 : 0)
+                    + type.length + id.length + payload.length;
+        }
+    }
+
+    private NdefEncoder() {
+    }
+
+    /**
+     * Encode records to message
+     *
+     * @param records Records of message, at least one
+     * @return Binary message
+     */
+    public static byte[] encode(Record... records) {
+        int size = 0;
+        for (Record record : records) {
+            size += record.getSize();
+        }
+
+        byte[] data = new byte[size];
+        int index = 0;
+        for (int i = 0; i < records.length; ++i) {
+            index = encode(records[i], i == 0, i == records.length - 1, data,
+                    index);
+        }
+        return data;
+    }
+
+    private static int encode(Record record, boolean first, boolean last,
+                              byte[] dest, int index) {
+        boolean shortRecord = record.payload.length < 256;
+        byte flags = (byte) record.tnf;
+        if (first) {
+            flags |= FLAG_MB;
+        }
+        if (last) {
+            flags |= FLAG_ME;
+        }
+        if (shortRecord) {
+            flags |= FLAG_SR;
+        }
+        if (record.id.length > 0) {
+            flags |= FLAG_IL;
+        }
+
+        dest[index++] = flags;
+        dest[index++] = (byte) record.type.length;
+        if (shortRecord) {
+            dest[index++] = (byte) record.payload.length;
+        } else {
+            int length = record.payload.length;
+            dest[index++] = (byte) (length >> 24);
+            dest[index++] = (byte) (length >> 16);
+            dest[index++] = (byte) (length >> 8);
+            dest[index++] = (byte) length;
+        }
+        if (record.id.length > 0) {
+            dest[index++] = (byte) record.id.length;
+        }
+
+        System.arraycopy(record.type, 0, dest, index, record.type.length);
+        index += record.type.length;
+        System.arraycopy(record.id, 0, dest, index, record.id.length);
+        index += record.id.length;
+        System.arraycopy(record.payload, 0, dest, index, record.payload.length);
+        return index + record.payload.length;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * OobScanner.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+/**
+ * Finds Bluetooth addresses and names from pairing records of binary NDEF
+ * message without parsing the whole message. Both BR/EDR (address after
+ * length field, EIR structures after it) and LE (AD structures) records are
+ * handled. Does not allocate memory, and stops at first malformed record.
+ */
+public class OobScanner {
+
+    /**
+     * Result of scan. Same instance can be reused for every message.
+     */
+    public static class Result {
+        /**
+         * Packed address of first pairing record
+         */
+        public long address = BtAddress.INVALID;
+
+        /**
+         * Offset of local name in message array, -1 if record has no name
+         */
+        public int nameOffset = -1;
+
+        public int nameLength = 0;
+
+        /**
+         * true if name is shortened local name
+         */
+        public boolean nameShortened = false;
+    }
+
+    private final static byte[] BR_MIME = ascii(BtSecureSimplePairing.MIME_TYPE);
+    private final static byte[] LE_MIME = ascii(BtLeOutOfBand.MIME_TYPE);
+
+    private final static int TNF_MASK = 0x07;
+    private final static int FLAG_SR = 0x10;
+    private final static int FLAG_IL = 0x08;
+    private final static byte AD_SHORTENED_LOCAL_NAME = 0x08;
+    private final static byte AD_COMPLETE_LOCAL_NAME = 0x09;
+    private final static byte AD_LE_DEVICE_ADDRESS = 0x1B;
+
+    // Length field of BR/EDR pairing data before address
+    private final static int BR_LENGTH_BYTES = 2;
+    private final static int ADDRESS_BYTES = 6;
+    private final static long NOT_FOUND = -1L;
+
+    // Set in result of nextRecord for LE records
+    private final static long LE_RECORD = 1L << 62;
+    private final static long OFFSET_MASK = (1L << 30) - 1;
+
+    private OobScanner() {
+    }
+
+    /**
+     * Read address of first pairing record
+     *
+     * @param message Binary NDEF message
+     * @param offset  Start of message in array
+     * @param length  Length of message
+     * @return Packed address, or BtAddress.INVALID if message does not have
+     * pairing records
+     */
+    public static long readAddress(byte[] message, int offset, int length) {
+        int end = offset + length;
+        long record;
+        while ((record = nextRecord(message, offset, end)) != NOT_FOUND) {
+            int address = findAddress(message, record);
+            if (address >= 0) {
+                return getAddress(message, address);
+            }
+            offset = (int) record;
+        }
+        return BtAddress.INVALID;
+    }
+
+    /**
+     * Read address and local name of first pairing record
+     *
+     * @param message Binary NDEF message
+     * @param offset  Start of message in array
+     * @param length  Length of message
+     * @param result  Result filled
+     * @return true if pairing record with address was found
+     */
+    public static boolean scan(byte[] message, int offset, int length,
+                               Result result) {
+        result.address = BtAddress.INVALID;
+        result.nameOffset = -1;
+        result.nameLength = 0;
+        result.nameShortened = false;
+
+        int end = offset + length;
+        long record;
+        while ((record = nextRecord(message, offset, end)) != NOT_FOUND) {
+            int address = findAddress(message, record);
+            if (address >= 0) {
+                result.address = getAddress(message, address);
+
+                int next = (int) record;
+                int start = (record & LE_RECORD) != 0 ? payloadOffset(record)
+                        : address + ADDRESS_BYTES;
+                int name = findAd(message, start, next, AD_COMPLETE_LOCAL_NAME);
+                if (name < 0) {
+                    name = findAd(message, start, next, AD_SHORTENED_LOCAL_NAME);
+                    result.nameShortened = name >= 0;
+                }
+                if (name >= 0) {
+                    result.nameOffset = name + 2;
+                    result.nameLength = (message[name] & 0xFF) - 1;
+                }
+                return true;
+            }
+            offset = (int) record;
+        }
+        return false;
+    }
+
+    /**
+     * Replace address in all pairing records where it is found. Length of
+     * message does not change.
+     *
+     * @param message Binary NDEF message, modified in place
+     * @param offset  Start of message in array
+     * @param length  Length of message
+     * @param from    Packed address replaced
+     * @param to      Packed new address
+     * @return Number of addresses replaced
+     */
+    public static int replaceAddress(byte[] message, int offset, int length,
+                                     long from, long to) {
+        int end = offset + length;
+        int replaced = 0;
+        long record;
+        while ((record = nextRecord(message, offset, end)) != NOT_FOUND) {
+            int address = findAddress(message, record);
+            if (address >= 0 && getAddress(message, address) == from) {
+                for (int i = 0; i < ADDRESS_BYTES; ++i) {
+                    message[address + i] = (byte) (to >> (8 * i));
+                }
+                ++replaced;
+            }
+            offset = (int) record;
+        }
+        return replaced;
+    }
+
+    /*
+     * Addresses are little endian in pairing data
+     */
+    private static long getAddress(byte[] data, int offset) {
+        long address = 0;
+        for (int i = ADDRESS_BYTES - 1; i >= 0; --i) {
+            address = (address << 8) | (data[offset + i] & 0xFF);
+        }
+        return address;
+    }
+
+    private static int payloadOffset(long record) {
+        return (int) ((record >>> 32) & OFFSET_MASK);
+    }
+
+    /**
+     * @param record Result of nextRecord
+     * @return Offset of address, or -1 if record does not have it
+     */
+    private static int findAddress(byte[] data, long record) {
+        int payload = payloadOffset(record);
+        int next = (int) record;
+        if ((record & LE_RECORD) != 0) {
+            int ad = findAd(data, payload, next, AD_LE_DEVICE_ADDRESS);
+            if (ad >= 0 && (data[ad] & 0xFF) >= 1 + ADDRESS_BYTES) {
+                return ad + 2;
+            }
+            return -1;
+        }
+        return next - payload >= BR_LENGTH_BYTES + ADDRESS_BYTES
+                ? payload + BR_LENGTH_BYTES : -1;
+    }
+
+    /**
+     * Find next pairing record
+     *
+     * @param data   Message
+     * @param offset Start of record where search starts
+     * @param end    End of message
+     * @return Offset of payload in upper bits (with LE_RECORD flag) and
+     * offset of record after it in lower 32 bits, or NOT_FOUND
+     */
+    private static long nextRecord(byte[] data, int offset, int end) {
+        while (offset + 3 <= end) {
+            int flags = data[offset] & 0xFF;
+            int typeLength = data[offset + 1] & 0xFF;
+            int index = offset + 2;
+            long payloadLength;
+            if ((flags & FLAG_SR) != 0) {
+                payloadLength = data[index++] & 0xFF;
+            } else {
+                if (index + 4 > end) {
+                    return NOT_FOUND;
+                }
+                payloadLength = ((long) (data[index] & 0xFF) << 24)
+                        | ((data[index + 1] & 0xFF) << 16)
+                        | ((data[index + 2] & 0xFF) << 8)
+                        | (data[index + 3] & 0xFF);
+                index += 4;
+            }
+            int idLength = 0;
+            if ((flags & FLAG_IL) != 0) {
+                if (index >= end) {
+                    return NOT_FOUND;
+                }
+                idLength = data[index++] & 0xFF;
+            }
+
+            int typeOffset = index;
+            int payloadOffset = typeOffset + typeLength + idLength;
+            if (payloadOffset + payloadLength > end) {
+                return NOT_FOUND;
+            }
+            int next = payloadOffset + (int) payloadLength;
+
+            if ((flags & TNF_MASK) == NdefEncoder.TNF_MIME_MEDIA) {
+                long record = ((long) payloadOffset << 32) | next;
+                if (typeEquals(data, typeOffset, typeLength, BR_MIME)) {
+                    return record;
+                } else if (typeEquals(data, typeOffset, typeLength, LE_MIME)) {
+                    return record | LE_RECORD;
+                }
+            }
+            offset = next;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Find EIR or AD structure of given type
+     *
+     * @return Offset of length byte of structure, or -1
+     */
+    private static int findAd(byte[] data, int offset, int end, byte type) {
+        while (offset + 1 < end) {
+            int length = data[offset] & 0xFF;
+            if (length == 0 || offset + 1 + length > end) {
+                return -1;
+            }
+            if (data[offset + 1] == type) {
+                return offset;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+    private static boolean typeEquals(byte[] data, int offset, int length,
+                                      byte[] type) {
+        if (length != type.length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (data[offset + i] != type[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] ret = new byte[text.length()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = (byte) text.charAt(i);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * PairingCarrier.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.data;
+
+/**
+ * Bluetooth transports described in pairing data written to tags
+ */
+public enum PairingCarrier {
+    /**
+     * Classic Bluetooth (application/vnd.bluetooth.ep.oob)
+     */
+    BR_EDR,
+
+    /**
+     * Bluetooth Low Energy (application/vnd.bluetooth.le.oob)
+     */
+    LE,
+
+    /**
+     * Both records, for dual mode devices
+     */
+    BOTH;
+
+    public boolean includesBrEdr() {
+        return this != LE;
+    }
+
+    public boolean includesLe() {
+        return this != BR_EDR;
+    }
+}
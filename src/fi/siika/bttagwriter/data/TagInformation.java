@@ -8,6 +8,9 @@
  */
 package fi.siika.bttagwriter.data;
 
+import java.util.List;
+import java.util.UUID;
+
 /**
  * Data class for information stored to tags
  */
@@ -27,21 +30,46 @@ public class TagInformation implements Cloneable {
      */
     public byte[] deviceClass;
 
+    /**
+     * Service class UUIDs of device, or null if not known
+     */
+    public List<UUID> serviceUuids;
+
+    /**
+     * GAP appearance of LE device, or BtLeOutOfBand.APPEARANCE_UNKNOWN
+     */
+    public int appearance = BtLeOutOfBand.APPEARANCE_UNKNOWN;
+
     /**
      * If true writer will try to write protected the tag
      */
     private boolean readOnly = false;
 
+    /**
+     * If true writer will read written data back and compare it
+     */
+    private boolean verify = true;
+
     /**
      * Format used to write information
      */
     private TagType type = TagType.SIMPLIFIED;
 
+    /**
+     * Bluetooth transports described in pairing data
+     */
+    private PairingCarrier carrier = PairingCarrier.BR_EDR;
+
     /**
      * Pin code or if empty no pin code (Not yet supported)
      */
     public String pin;
 
+    /**
+     * Full size NDEF message generated from this information, or null
+     */
+    private byte[] compiledMessage = null;
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         return super.clone();
@@ -55,6 +83,14 @@ public class TagInformation implements Cloneable {
         this.type = type;
     }
 
+    public PairingCarrier getCarrier() {
+        return carrier;
+    }
+
+    public void setCarrier(PairingCarrier carrier) {
+        this.carrier = carrier;
+    }
+
     public boolean isReadOnly() {
         return readOnly;
     }
@@ -62,4 +98,26 @@ public class TagInformation implements Cloneable {
     public void setReadOnly(boolean readonly) {
         readOnly = readonly;
     }
+
+    /**
+     * Get NDEF message compiled earlier. Caller has to clear it when
+     * information is changed.
+     *
+     * @return Binary NDEF message or null
+     */
+    public byte[] getCompiledMessage() {
+        return compiledMessage;
+    }
+
+    public void setCompiledMessage(byte[] message) {
+        compiledMessage = message;
+    }
+
+    public boolean isVerifyEnabled() {
+        return verify;
+    }
+
+    public void setVerifyEnabled(boolean enabled) {
+        verify = enabled;
+    }
 }
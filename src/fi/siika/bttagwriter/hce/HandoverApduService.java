@@ -0,0 +1,77 @@
+/*
+ * HandoverApduService.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.hce;
+
+import android.annotation.TargetApi;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+
+import fi.siika.bttagwriter.data.BtTagGenerator;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+
+/**
+ * Host card emulation service that serves Bluetooth pairing message as Type 4
+ * tag. Allows other devices to read the message directly from this device,
+ * without writing physical tag.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class HandoverApduService extends HostApduService {
+
+    private final static String TAG = "HandoverApduService";
+
+    private final static Type4TagEmulator sEmulator = new Type4TagEmulator();
+
+    /**
+     * Start serving message generated from given information. Replaces
+     * message served earlier.
+     *
+     * @param info Information served
+     * @throws OutOfSpaceException Content can not be generated
+     * @throws UnsupportedEncodingException Encoding issues
+     */
+    public static void publish(TagInformation info) throws OutOfSpaceException,
+            UnsupportedEncodingException {
+        byte[] message = BtTagGenerator.generateNdefMessageForBtTag(info, -1)
+                .toByteArray();
+        sEmulator.setNdefMessage(message);
+        Log.d(TAG, "Serving " + message.length + " bytes for " + info.address);
+    }
+
+    /**
+     * Stop serving the message
+     */
+    public static void unpublish() {
+        sEmulator.setNdefMessage(null);
+    }
+
+    /**
+     * Check if message is being served
+     *
+     * @return true if message is served
+     */
+    public static boolean isPublished() {
+        return sEmulator.hasNdefMessage();
+    }
+
+    @Override
+    public byte[] processCommandApdu(byte[] apdu, Bundle extras) {
+        return sEmulator.processCommand(apdu);
+    }
+
+    @Override
+    public void onDeactivated(int reason) {
+        sEmulator.reset();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Type4TagEmulator.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.hce;
+
+/**
+ * Emulates read only NFC Forum Type 4 tag containing single NDEF message.
+ * Answers SELECT and READ BINARY commands from prebuilt in-memory image.
+ * Class does not depend on Android APIs, so it can be driven by any reader
+ * implementation.
+ * <p/>
+ * Responses are cached per offset, so after first round reads of same reader
+ * do not allocate memory. Returned arrays are shared and must not be modified
+ * by the caller.
+ */
+public class Type4TagEmulator {
+
+    private final static byte INS_SELECT = (byte) 0xA4;
+    private final static byte INS_READ_BINARY = (byte) 0xB0;
+    private final static byte INS_UPDATE_BINARY = (byte) 0xD6;
+    private final static byte P1_SELECT_BY_NAME = 0x04;
+    private final static byte P1_SELECT_BY_ID = 0x00;
+
+    private final static byte[] NDEF_APP_AID = new byte[]{
+            (byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01};
+    private final static short CC_FILE_ID = (short) 0xE103;
+    private final static short NDEF_FILE_ID = (short) 0xE104;
+
+    private final static int NLEN_SIZE = 2;
+    private final static int MAX_READ_LENGTH = 0xFF;
+
+    private final static byte[] SW_OK = new byte[]{(byte) 0x90, 0x00};
+    private final static byte[] SW_NOT_FOUND = new byte[]{0x6A, (byte) 0x82};
+    private final static byte[] SW_WRONG_OFFSET = new byte[]{0x6B, 0x00};
+    private final static byte[] SW_WRONG_LENGTH = new byte[]{0x67, 0x00};
+    private final static byte[] SW_SECURITY = new byte[]{0x69, (byte) 0x82};
+    private final static byte[] SW_INS_NOT_SUPPORTED = new byte[]{0x6D, 0x00};
+    private final static byte[] SW_CLA_NOT_SUPPORTED = new byte[]{0x6E, 0x00};
+
+    /**
+     * Emulated file with cached READ BINARY responses
+     */
+    private static class EmulatedFile {
+        private final byte[] mContent;
+        private final byte[][] mResponses;
+
+        EmulatedFile(byte[] content) {
+            mContent = content;
+            mResponses = new byte[content.length][];
+        }
+
+        byte[] read(int offset, int len) {
+            if (offset >= mContent.length) {
+                return SW_WRONG_OFFSET;
+            }
+            len = Math.min(len, mContent.length - offset);
+
+            byte[] res = mResponses[offset];
+            if (res == null || res.length != len + SW_OK.length) {
+                res = new byte[len + SW_OK.length];
+                System.arraycopy(mContent, offset, res, 0, len);
+                System.arraycopy(SW_OK, 0, res, len, SW_OK.length);
+                mResponses[offset] = res;
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Prebuilt CC and NDEF files of one message
+     */
+    private static class Image {
+        final EmulatedFile cc;
+        final EmulatedFile ndef;
+
+        Image(byte[] message) {
+            int fileSize = NLEN_SIZE + message.length;
+
+            byte[] ndefFile = new byte[fileSize];
+            ndefFile[0] = (byte) (message.length >> 8);
+            ndefFile[1] = (byte) message.length;
+            System.arraycopy(message, 0, ndefFile, NLEN_SIZE, message.length);
+            ndef = new EmulatedFile(ndefFile);
+
+            cc = new EmulatedFile(new byte[]{
+                    0x00, 0x0F, // CCLEN
+                    0x20, // Mapping version 2.0
+                    0x00, (byte) MAX_READ_LENGTH, // MLe
+                    0x00, (byte) MAX_READ_LENGTH, // MLc
+                    0x04, 0x06, // NDEF File Control TLV
+                    (byte) (NDEF_FILE_ID >> 8), (byte) NDEF_FILE_ID,
+                    (byte) (fileSize >> 8), (byte) fileSize,
+                    0x00, // Read access granted
+                    (byte) 0xFF // No write access
+            });
+        }
+    }
+
+    private volatile Image mImage = null;
+    private boolean mAppSelected = false;
+    private EmulatedFile mSelected = null;
+
+    /**
+     * Set NDEF message served. Switching message only swaps the image
+     * reference, so it can be called while reader is active.
+     *
+     * @param message Binary NDEF message, or null to stop serving
+     */
+    public void setNdefMessage(byte[] message) {
+        if (message == null) {
+            mImage = null;
+        } else {
+            mImage = new Image(message);
+        }
+    }
+
+    /**
+     * Check if message is currently served
+     *
+     * @return true if message is set
+     */
+    public boolean hasNdefMessage() {
+        return mImage != null;
+    }
+
+    /**
+     * Forget selections of current reader session
+     */
+    public void reset() {
+        mAppSelected = false;
+        mSelected = null;
+    }
+
+    /**
+     * Process command APDU received from reader
+     *
+     * @param apdu Command APDU
+     * @return Response APDU (shared array, do not modify)
+     */
+    public byte[] processCommand(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return SW_WRONG_LENGTH;
+        }
+        if (apdu[0] != 0x00) {
+            return SW_CLA_NOT_SUPPORTED;
+        }
+
+        Image image = mImage;
+        if (image == null) {
+            reset();
+            return SW_NOT_FOUND;
+        }
+
+        switch (apdu[1]) {
+            case INS_SELECT:
+                return select(image, apdu);
+            case INS_READ_BINARY:
+                return readBinary(apdu);
+            case INS_UPDATE_BINARY:
+                return SW_SECURITY;
+            default:
+                return SW_INS_NOT_SUPPORTED;
+        }
+    }
+
+    private byte[] select(Image image, byte[] apdu) {
+        if (apdu.length < 5) {
+            return SW_WRONG_LENGTH;
+        }
+        int lc = apdu[4] & 0xFF;
+        if (apdu.length < 5 + lc) {
+            return SW_WRONG_LENGTH;
+        }
+
+        if (apdu[2] == P1_SELECT_BY_NAME) {
+            mAppSelected = matches(apdu, 5, lc, NDEF_APP_AID);
+            mSelected = null;
+            return mAppSelected ? SW_OK : SW_NOT_FOUND;
+        } else if (apdu[2] == P1_SELECT_BY_ID && lc == 2 && mAppSelected) {
+            short fileId = (short) (((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF));
+            if (fileId == CC_FILE_ID) {
+                mSelected = image.cc;
+            } else if (fileId == NDEF_FILE_ID) {
+                mSelected = image.ndef;
+            } else {
+                mSelected = null;
+            }
+            return mSelected != null ? SW_OK : SW_NOT_FOUND;
+        }
+
+        return SW_NOT_FOUND;
+    }
+
+    private byte[] readBinary(byte[] apdu) {
+        // Files of previous image are still served if message was switched
+        // in middle of the session
+        if (mSelected == null) {
+            return SW_NOT_FOUND;
+        }
+        if (apdu.length < 5) {
+            return SW_WRONG_LENGTH;
+        }
+
+        int offset = ((apdu[2] & 0x7F) << 8) | (apdu[3] & 0xFF);
+        int le = apdu[4] & 0xFF;
+        if (le == 0) {
+            le = 256;
+        }
+        return mSelected.read(offset, le);
+    }
+
+    private static boolean matches(byte[] data, int start, int len,
+                                   byte[] expected) {
+        if (len != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (data[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
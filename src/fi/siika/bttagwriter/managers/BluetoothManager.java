@@ -9,18 +9,29 @@
 package fi.siika.bttagwriter.managers;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.Process;
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.Toast;
 
-import java.util.Iterator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import fi.siika.bttagwriter.R;
+import fi.siika.bttagwriter.data.BtAddress;
 
 /**
  *
@@ -37,15 +48,92 @@ public class BluetoothManager {
         public void bluetoothDiscoveryStateChanged(boolean active);
     }
 
+    /**
+     * Listener that receives found devices in batches. Devices in batch are
+     * unique by address.
+     */
+    public interface BatchDiscoveryListener extends DiscoveryListener {
+        /**
+         * @param devices Devices found since last batch
+         */
+        public void bluetoothDevicesFound(List<DiscoveredDevice> devices);
+    }
+
     private Context mContext = null;
     private BluetoothAdapter mBtAdapter = null;
-    private boolean mEnabledBt = false;
-    private DiscoveryListener mDiscoveryListener = null;
+    private volatile boolean mEnabledBt = false;
+    private volatile DiscoveryListener mDiscoveryListener = null;
+    private volatile boolean mDiscoveryWanted = false;
     private boolean mReceiverConnected = false;
     private final static String TAG = "BluetoothManager";
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer mChoreographer;
+    private HandlerThread mWorkerThread = null;
+    private volatile Handler mWorkerHandler = null;
+
+    // Devices waiting for delivery
+    private final DeviceBatch<DiscoveredDevice> mPending =
+            new DeviceBatch<DiscoveredDevice>(
+                    new DeviceBatch.Merger<DiscoveredDevice>() {
+                        @Override
+                        public DiscoveredDevice merge(DiscoveredDevice newer,
+                                                      DiscoveredDevice older) {
+                            return newer.mergeWith(older);
+                        }
+                    });
+    private volatile long mDeliveryInterval = 0;
+
+    private final static String CACHE_FILE = "discovery.cache";
+    private DiscoveryCache mCache = null;
+    private volatile DeviceFilter mDeviceFilter = null;
+
+    /**
+     * How long LE scan is run when discovery is started
+     */
+    public final static long LE_SCAN_DURATION_MS = 10 * 1000;
+    private LeScanner mLeScanner = null;
+    private boolean mLeScanning = false;
+
+    /**
+     * Construct new manager. Has to be called from main thread.
+     */
     public BluetoothManager(Context context) {
         mContext = context;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Set how often found devices are delivered to listener
+     *
+     * @param millis Interval in milliseconds, 0 to deliver at most once per
+     *               frame
+     */
+    public void setDeliveryInterval(long millis) {
+        mDeliveryInterval = millis;
+    }
+
+    /**
+     * Set filter of devices delivered to listener. Filter is run in worker
+     * thread before devices are queued for delivery.
+     *
+     * @param filter Filter or null to deliver all devices
+     */
+    public void setDeviceFilter(DeviceFilter filter) {
+        mDeviceFilter = filter;
+    }
+
+    /**
+     * Use LE scanner instead of classic discovery. Filters of LE scan are
+     * taken from device filter.
+     *
+     * @param scanner Scanner used or null to use classic discovery
+     */
+    public void setLeScanner(LeScanner scanner) {
+        if (mLeScanning) {
+            stopLeScan();
+        }
+        mLeScanner = scanner;
     }
 
     private void connectReceiver() {
@@ -56,7 +144,15 @@ public class BluetoothManager {
             filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
             filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
             filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-            mContext.registerReceiver(mBCReceiver, filter);
+
+            // Broadcasts are handled in worker thread, so main thread only
+            // receives ready batches
+            mWorkerThread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper());
+
+            mContext.registerReceiver(mBCReceiver, filter, null, mWorkerHandler);
             mReceiverConnected = true;
         }
     }
@@ -65,6 +161,25 @@ public class BluetoothManager {
         if (mReceiverConnected) {
             mContext.unregisterReceiver(mBCReceiver);
             mReceiverConnected = false;
+            if (mLeScanning) {
+                mLeScanner.stop();
+                mLeScanning = false;
+            }
+
+            // Save cache and stop worker after work already posted to it
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    getCache().save();
+                    Looper.myLooper().quit();
+                }
+            });
+            mWorkerThread = null;
+            mWorkerHandler = null;
+
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mMainHandler.removeCallbacksAndMessages(null);
+            mPending.clear();
         }
     }
 
@@ -81,6 +196,29 @@ public class BluetoothManager {
         return mBtAdapter;
     }
 
+    /**
+     * Get service class UUIDs system has cached for device (from SDP or
+     * previous pairing).
+     *
+     * @param address Address of device
+     * @return UUIDs, empty if not known
+     */
+    public List<UUID> getServiceUuids(String address) {
+        List<UUID> uuids = new ArrayList<UUID>();
+        BluetoothAdapter adapter = getBluetoothAdapter();
+        if (adapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return uuids;
+        }
+
+        ParcelUuid[] parcels = adapter.getRemoteDevice(address).getUuids();
+        if (parcels != null) {
+            for (ParcelUuid parcel : parcels) {
+                uuids.add(parcel.getUuid());
+            }
+        }
+        return uuids;
+    }
+
     /**
      * Is bluetooth connectivity enabled.
      *
@@ -113,10 +251,246 @@ public class BluetoothManager {
         Set<BluetoothDevice> paired = adapter.getBondedDevices();
 
         for (BluetoothDevice device : paired) {
-            if (mDiscoveryListener != null) {
-                mDiscoveryListener.bluetoothDeviceFound(device, true);
+            queueDevice(device, device.getName(),
+                    DiscoveredDevice.toClassBits(device.getBluetoothClass()),
+                    DiscoveredDevice.RSSI_UNKNOWN,
+                    DiscoveredDevice.Source.PAIRED);
+        }
+    }
+
+    private final Runnable mBrowsePairedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            browsePairedDevices();
+        }
+    };
+
+    /**
+     * Get discovery cache, loads it when called first time. Should not be
+     * called in main thread.
+     */
+    private synchronized DiscoveryCache getCache() {
+        if (mCache == null) {
+            mCache = new DiscoveryCache(new File(mContext.getFilesDir(),
+                    CACHE_FILE));
+        }
+        mCache.load();
+        return mCache;
+    }
+
+    /**
+     * Deliver recently seen devices from cache, so those are shown before
+     * discovery finds them. Called in worker thread.
+     */
+    private void browseCachedDevices() {
+        BluetoothAdapter adapter = mBtAdapter;
+        for (DiscoveryCache.Entry entry : getCache().getEntries()) {
+            BluetoothDevice device = adapter.getRemoteDevice(
+                    BtAddress.unpack(entry.key));
+            queueDevice(device, entry.name, entry.classBits, entry.rssi,
+                    DiscoveredDevice.Source.CACHE);
+        }
+    }
+
+    private final Runnable mBrowseCachedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            browseCachedDevices();
+        }
+    };
+
+    /**
+     * Start LE scan, or classic discovery if LE scanner is not set. Called
+     * in main thread.
+     */
+    private void startScan() {
+        if (mLeScanner == null) {
+            if (!mBtAdapter.isDiscovering()) {
+                mBtAdapter.startDiscovery();
+            }
+            return;
+        }
+
+        if (mLeScanning) {
+            return;
+        }
+
+        DeviceFilter filter = mDeviceFilter;
+        List<LeScanner.Filter> filters = filter != null
+                ? filter.getLeScanFilters()
+                : new ArrayList<LeScanner.Filter>();
+        if (mLeScanner.start(filters, mLeCallback)) {
+            mLeScanning = true;
+            mMainHandler.postDelayed(mStopLeScanRunnable, LE_SCAN_DURATION_MS);
+            postDiscoveryStateChanged(true);
+        } else {
+            Log.w(TAG, "Failed to start LE scan");
+        }
+    }
+
+    /**
+     * Stop LE scan if active. Called in main thread.
+     *
+     * @return true if scan was active
+     */
+    private boolean stopLeScan() {
+        mMainHandler.removeCallbacks(mStopLeScanRunnable);
+        if (!mLeScanning) {
+            return false;
+        }
+        mLeScanner.stop();
+        mLeScanning = false;
+        postDiscoveryStateChanged(false);
+        Handler worker = mWorkerHandler;
+        if (worker != null) {
+            worker.post(mSaveCacheRunnable);
+        }
+        return true;
+    }
+
+    private final Runnable mStartScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mDiscoveryWanted) {
+                startScan();
             }
         }
+    };
+
+    private final Runnable mStopLeScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopLeScan();
+        }
+    };
+
+    private final Runnable mSaveCacheRunnable = new Runnable() {
+        @Override
+        public void run() {
+            getCache().save();
+        }
+    };
+
+    private final LeScanner.Callback mLeCallback = new LeScanner.Callback() {
+        @Override
+        public void leDevicesFound(final List<LeScanner.Result> results) {
+            // Bond state is asked from every device, so handle results in
+            // worker thread
+            Handler worker = mWorkerHandler;
+            if (worker == null) {
+                return;
+            }
+            worker.post(new Runnable() {
+                @Override
+                public void run() {
+                    BluetoothAdapter adapter = mBtAdapter;
+                    for (LeScanner.Result result : results) {
+                        if (BtAddress.pack(result.address) == BtAddress.INVALID) {
+                            continue;
+                        }
+                        queueDevice(adapter.getRemoteDevice(result.address),
+                                result.name, DiscoveredDevice.CLASS_UNKNOWN,
+                                result.rssi, DiscoveredDevice.Source.DISCOVERY);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void leScanStopped(int error) {
+            mMainHandler.post(mStopLeScanRunnable);
+        }
+    };
+
+    /**
+     * Add device to batch waiting for delivery. Can be called from any
+     * thread.
+     */
+    private void queueDevice(BluetoothDevice device, String name,
+                             int classBits, short rssi,
+                             DiscoveredDevice.Source source) {
+
+        long key = BtAddress.pack(device.getAddress());
+        if (key == BtAddress.INVALID) {
+            return;
+        }
+
+        // Cached devices are delivered as is, without asking bond state
+        // from Bluetooth service. Paired list will correct it.
+        boolean bonded = false;
+        if (source != DiscoveredDevice.Source.CACHE) {
+            bonded = device.getBondState() == BluetoothDevice.BOND_BONDED;
+            getCache().remember(key, name, classBits, rssi);
+        }
+
+        DeviceFilter filter = mDeviceFilter;
+        if (filter != null && !filter.matches(key, name, classBits, rssi)) {
+            return;
+        }
+
+        DiscoveredDevice found = new DiscoveredDevice(device, key, name,
+                classBits, rssi, source, bonded);
+
+        if (mPending.add(key, found)) {
+            long interval = mDeliveryInterval;
+            if (interval > 0) {
+                mMainHandler.postDelayed(mFlushRunnable, interval);
+            } else {
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    /**
+     * Deliver devices waiting in batch to listener. Called in main thread.
+     */
+    private void flushDevices() {
+        List<DiscoveredDevice> batch = mPending.take();
+        if (batch == null) {
+            return;
+        }
+
+        DiscoveryListener listener = mDiscoveryListener;
+        if (listener instanceof BatchDiscoveryListener) {
+            ((BatchDiscoveryListener) listener).bluetoothDevicesFound(batch);
+        } else if (listener != null) {
+            for (DiscoveredDevice found : batch) {
+                listener.bluetoothDeviceFound(found.getDevice(),
+                        found.isFromPaired());
+            }
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushDevices();
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    flushDevices();
+                }
+            };
+
+    /**
+     * Deliver pending devices and then discovery state to listener in main
+     * thread
+     */
+    private void postDiscoveryStateChanged(final boolean active) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushDevices();
+                DiscoveryListener listener = mDiscoveryListener;
+                if (listener != null) {
+                    listener.bluetoothDiscoveryStateChanged(active);
+                }
+            }
+        });
     }
 
     /*
@@ -124,19 +498,27 @@ public class BluetoothManager {
      */
     public boolean startDiscovery(DiscoveryListener listener) {
         mDiscoveryListener = listener;
+        mDiscoveryWanted = true;
         BluetoothAdapter adapter = getBluetoothAdapter();
         boolean success = true;
 
         if (adapter == null) {
             success = false;
-        } else if (!adapter.isEnabled()) {
+            return success;
+        }
+
+        // Cached devices are shown while Bluetooth is being enabled and
+        // discovery is running
+        mWorkerHandler.post(mBrowseCachedRunnable);
+
+        if (!adapter.isEnabled()) {
             enable();
             Toast toast = Toast.makeText(mContext,
                     R.string.toast_bluetooth_enabled_str, Toast.LENGTH_LONG);
             toast.show();
-        } else if (!adapter.isDiscovering()) {
-            adapter.startDiscovery();
-            browsePairedDevices();
+        } else {
+            startScan();
+            mWorkerHandler.post(mBrowsePairedRunnable);
         }
 
         return success;
@@ -156,12 +538,26 @@ public class BluetoothManager {
     }
 
     public void stopDiscovery() {
-        if (mBtAdapter != null) {
-            if (mBtAdapter.isDiscovering()) {
-                mBtAdapter.cancelDiscovery();
-            }
-            disableIfEnabled();
+        cancelDiscovery();
+        disableIfEnabled();
+    }
+
+    /**
+     * Stop Bluetooth discovery, but leave Bluetooth enabled. Discovery is
+     * not started when Bluetooth enabled earlier is ready.
+     *
+     * @return true if discovery was active
+     */
+    public boolean cancelDiscovery() {
+        mDiscoveryWanted = false;
+        if (stopLeScan()) {
+            return true;
+        }
+        if (mBtAdapter != null && mBtAdapter.isDiscovering()) {
+            mBtAdapter.cancelDiscovery();
+            return true;
         }
+        return false;
     }
 
     private final BroadcastReceiver mBCReceiver = new BroadcastReceiver() {
@@ -173,8 +569,25 @@ public class BluetoothManager {
                 BluetoothDevice device = intent.getParcelableExtra(
                         BluetoothDevice.EXTRA_DEVICE);
 
-                if (mDiscoveryListener != null) {
-                    mDiscoveryListener.bluetoothDeviceFound(device, false);
+                if (device != null && mDiscoveryListener != null) {
+                    // Name and class are given with the intent, use those
+                    // instead of asking them from the device
+                    String name = intent.getStringExtra(
+                            BluetoothDevice.EXTRA_NAME);
+                    BluetoothClass btClass = intent.getParcelableExtra(
+                            BluetoothDevice.EXTRA_CLASS);
+                    if (name == null) {
+                        name = device.getName();
+                    }
+                    if (btClass == null) {
+                        btClass = device.getBluetoothClass();
+                    }
+                    short rssi = intent.getShortExtra(
+                            BluetoothDevice.EXTRA_RSSI,
+                            DiscoveredDevice.RSSI_UNKNOWN);
+                    queueDevice(device, name,
+                            DiscoveredDevice.toClassBits(btClass), rssi,
+                            DiscoveredDevice.Source.DISCOVERY);
                 }
 
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(
@@ -184,21 +597,17 @@ public class BluetoothManager {
                 //Bluetooth was just enabled.
                 //browsePairedDevices();
 
-                if (mDiscoveryListener != null) {
-                    mDiscoveryListener.bluetoothDiscoveryStateChanged(false);
-                }
-                disableIfEnabled();
+                postDiscoveryStateChanged(false);
+                getCache().save();
             } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-                if (mDiscoveryListener != null) {
-                    mDiscoveryListener.bluetoothDiscoveryStateChanged(true);
-                }
+                postDiscoveryStateChanged(true);
             } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
                 int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
                         BluetoothAdapter.STATE_OFF);
                 if (state == BluetoothAdapter.STATE_ON) {
-                    if (mDiscoveryListener != null) {
+                    if (mDiscoveryListener != null && mDiscoveryWanted) {
                         browsePairedDevices();
-                        getBluetoothAdapter().startDiscovery();
+                        mMainHandler.post(mStartScanRunnable);
                     }
                 } else if (state == BluetoothAdapter.STATE_OFF) {
                     mEnabledBt = false;
@@ -0,0 +1,148 @@
+/*
+ * DeviceBatch.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Devices waiting for delivery. Results of same device are merged, so each
+ * batch taken has every device only once. Devices are added from worker
+ * threads and batches are taken in main thread; add tells when first device
+ * of new batch arrives, so caller knows when to schedule delivery.
+ * <p/>
+ * Does not use Android APIs. Devices are indexed by packed address in open
+ * addressed primitive array.
+ *
+ * @param <T> Type of device
+ */
+public class DeviceBatch<T> {
+
+    /**
+     * Merges two results of same device
+     */
+    public interface Merger<T> {
+        /**
+         * @param newer Result added now
+         * @param older Result already waiting
+         * @return Result kept in batch
+         */
+        public T merge(T newer, T older);
+    }
+
+    private final static int MIN_CAPACITY = 16;
+
+    // Keys are stored with OCCUPIED bit, 0 is empty slot
+    private final static long OCCUPIED = 1L << 48;
+
+    private final Merger<T> mMerger;
+    private long[] mKeys = new long[MIN_CAPACITY];
+    private int[] mIndexes = new int[MIN_CAPACITY];
+    private final ArrayList<T> mDevices = new ArrayList<T>();
+    private boolean mScheduled = false;
+
+    /**
+     * @param merger Merger of results of same device
+     */
+    public DeviceBatch(Merger<T> merger) {
+        mMerger = merger;
+    }
+
+    /**
+     * Add device to batch, merging it with earlier result of same device
+     *
+     * @param key    Packed address of device
+     * @param device Device
+     * @return true if batch was empty and delivery has to be scheduled
+     */
+    public synchronized boolean add(long key, T device) {
+        int mask = mKeys.length - 1;
+        long stored = key | OCCUPIED;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != 0) {
+            if (mKeys[slot] == stored) {
+                int index = mIndexes[slot];
+                mDevices.set(index, mMerger.merge(device, mDevices.get(index)));
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        mKeys[slot] = stored;
+        mIndexes[slot] = mDevices.size();
+        mDevices.add(device);
+        if (mDevices.size() * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    /**
+     * Take devices waiting. Next device added starts new batch.
+     *
+     * @return Devices in order of arrival, or null if there are none
+     */
+    public synchronized List<T> take() {
+        mScheduled = false;
+        if (mDevices.isEmpty()) {
+            return null;
+        }
+        List<T> batch = new ArrayList<T>(mDevices);
+        clearDevices();
+        return batch;
+    }
+
+    /**
+     * Drop devices waiting
+     */
+    public synchronized void clear() {
+        mScheduled = false;
+        clearDevices();
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    private void clearDevices() {
+        if (!mDevices.isEmpty()) {
+            Arrays.fill(mKeys, 0);
+            mDevices.clear();
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] keys = new long[capacity];
+        int[] indexes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mKeys[i] != 0) {
+                int slot = hash(mKeys[i] & ~OCCUPIED) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = mKeys[i];
+                indexes[slot] = mIndexes[i];
+            }
+        }
+        mKeys = keys;
+        mIndexes = indexes;
+    }
+
+    private static int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
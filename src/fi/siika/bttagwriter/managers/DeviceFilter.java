@@ -0,0 +1,335 @@
+/*
+ * DeviceFilter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.bluetooth.BluetoothClass;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import fi.siika.bttagwriter.data.BtAddress;
+
+/**
+ * Filter of discovered Bluetooth devices. Rules are compiled once to class
+ * bit masks and address ranges, so matching a device is mostly integer
+ * comparisons. Device passes the filter if it matches any of the rules, and
+ * matches a rule if it matches all conditions of the rule.
+ * <p/>
+ * Rules can be given as text, one rule per line. Rule is list of conditions
+ * separated with ';', e.g. "service=audio;oui=00:11:22-00:11:2F;rssi=-70".
+ * Conditions are:
+ * <ul>
+ * <li>major=N - major device class (e.g. 0x400 for audio/video)</li>
+ * <li>class=N - major and minor device class (e.g. 0x418 for headphones)</li>
+ * <li>service=name|N - required service, can be given multiple times</li>
+ * <li>prefix=text - name starts with text (case ignored)</li>
+ * <li>regex=pattern - name matches regular expression</li>
+ * <li>oui=XX:XX:XX[-XX:XX:XX] - address prefix or range of prefixes</li>
+ * <li>rssi=N - minimum RSSI, devices with unknown RSSI pass</li>
+ * <li>manufacturer=N - company identifier in LE manufacturer data</li>
+ * <li>uuid=UUID - service UUID advertised over LE</li>
+ * </ul>
+ * Manufacturer and UUID conditions are only checked by Bluetooth controller
+ * when LE scan is used (see getLeScanFilters). LE scan does not report class
+ * of device, so class and service conditions pass devices with unknown
+ * class, as RSSI condition does.
+ * Empty lines and lines starting with '#' are ignored.
+ */
+public class DeviceFilter {
+
+    /**
+     * Value of rule fields not used
+     */
+    public final static int ANY = -1;
+
+    private final static int MAJOR_MASK = 0x1F00;
+    private final static int DEVICE_MASK = 0x1FFC;
+    private final static long ADDRESS_MAX = 0xFFFFFFFFFFFFL;
+
+    private final static String[] SERVICE_NAMES = new String[]{
+            "limited_discoverability", "positioning", "networking", "render",
+            "capture", "object_transfer", "audio", "telephony", "information"};
+    private final static int[] SERVICE_BITS = new int[]{
+            BluetoothClass.Service.LIMITED_DISCOVERABILITY,
+            BluetoothClass.Service.POSITIONING,
+            BluetoothClass.Service.NETWORKING,
+            BluetoothClass.Service.RENDER,
+            BluetoothClass.Service.CAPTURE,
+            BluetoothClass.Service.OBJECT_TRANSFER,
+            BluetoothClass.Service.AUDIO,
+            BluetoothClass.Service.TELEPHONY,
+            BluetoothClass.Service.INFORMATION};
+
+    /**
+     * Filter rule before it is compiled
+     */
+    public static class Rule {
+        public int majorClass = ANY;
+        public int deviceClass = ANY;
+        public int services = 0;
+        public String namePrefix = null;
+        public String nameRegex = null;
+        public int ouiFirst = ANY;
+        public int ouiLast = ANY;
+        public short minRssi = DiscoveredDevice.RSSI_UNKNOWN;
+        public int manufacturerId = LeScanner.Filter.ANY_MANUFACTURER;
+        public UUID serviceUuid = null;
+
+        /**
+         * Parse rule from text
+         *
+         * @param text Conditions separated with ';'
+         * @return Rule parsed
+         * @throws IllegalArgumentException If text is not valid
+         */
+        public static Rule parse(String text) throws IllegalArgumentException {
+            Rule rule = new Rule();
+            for (String condition : text.split(";")) {
+                condition = condition.trim();
+                if (condition.length() == 0) {
+                    continue;
+                }
+                int split = condition.indexOf('=');
+                if (split <= 0) {
+                    throw new IllegalArgumentException(condition);
+                }
+                String key = condition.substring(0, split).trim()
+                        .toLowerCase(Locale.US);
+                String value = condition.substring(split + 1).trim();
+
+                if ("major".equals(key)) {
+                    rule.majorClass = parseInt(value) & MAJOR_MASK;
+                } else if ("class".equals(key)) {
+                    rule.deviceClass = parseInt(value) & DEVICE_MASK;
+                } else if ("service".equals(key)) {
+                    rule.services |= parseService(value);
+                } else if ("prefix".equals(key)) {
+                    rule.namePrefix = value;
+                } else if ("regex".equals(key)) {
+                    Pattern.compile(value);
+                    rule.nameRegex = value;
+                } else if ("oui".equals(key)) {
+                    int range = value.indexOf('-');
+                    if (range < 0) {
+                        rule.ouiFirst = parseOui(value);
+                        rule.ouiLast = rule.ouiFirst;
+                    } else {
+                        rule.ouiFirst = parseOui(value.substring(0, range));
+                        rule.ouiLast = parseOui(value.substring(range + 1));
+                    }
+                } else if ("rssi".equals(key)) {
+                    rule.minRssi = (short) parseInt(value);
+                } else if ("manufacturer".equals(key)) {
+                    rule.manufacturerId = parseInt(value) & 0xFFFF;
+                } else if ("uuid".equals(key)) {
+                    rule.serviceUuid = UUID.fromString(value);
+                } else {
+                    throw new IllegalArgumentException(condition);
+                }
+            }
+            return rule;
+        }
+
+        private static int parseInt(String value) {
+            try {
+                return Integer.decode(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(value);
+            }
+        }
+
+        private static int parseService(String value) {
+            String name = value.toLowerCase(Locale.US);
+            for (int i = 0; i < SERVICE_NAMES.length; ++i) {
+                if (SERVICE_NAMES[i].equals(name)) {
+                    return SERVICE_BITS[i];
+                }
+            }
+            return parseInt(value);
+        }
+
+        private static int parseOui(String value) {
+            long packed = BtAddress.pack(value.trim() + ":00:00:00");
+            if (packed == BtAddress.INVALID) {
+                throw new IllegalArgumentException(value);
+            }
+            return (int) (packed >>> 24);
+        }
+    }
+
+    // Compiled rules, one array index per rule
+    private final int[] mClassMask;
+    private final int[] mClassValue;
+    private final long[] mKeyFirst;
+    private final long[] mKeyLast;
+    private final short[] mMinRssi;
+    private final String[] mPrefix;
+    private final Pattern[] mPattern;
+    private final List<LeScanner.Filter> mLeFilters;
+
+    private DeviceFilter(List<Rule> rules) {
+        int count = rules.size();
+        mClassMask = new int[count];
+        mClassValue = new int[count];
+        mKeyFirst = new long[count];
+        mKeyLast = new long[count];
+        mMinRssi = new short[count];
+        mPrefix = new String[count];
+        mPattern = new Pattern[count];
+        mLeFilters = new ArrayList<LeScanner.Filter>(count);
+        boolean leFiltered = true;
+
+        for (int i = 0; i < count; ++i) {
+            Rule rule = rules.get(i);
+
+            int mask = rule.services;
+            int value = rule.services;
+            if (rule.deviceClass != ANY) {
+                mask |= DEVICE_MASK;
+                value |= rule.deviceClass;
+            } else if (rule.majorClass != ANY) {
+                mask |= MAJOR_MASK;
+                value |= rule.majorClass;
+            }
+            mClassMask[i] = mask;
+            mClassValue[i] = value;
+
+            if (rule.ouiFirst != ANY) {
+                mKeyFirst[i] = (long) rule.ouiFirst << 24;
+                mKeyLast[i] = ((long) rule.ouiLast << 24) | 0xFFFFFFL;
+            } else {
+                mKeyFirst[i] = 0;
+                mKeyLast[i] = ADDRESS_MAX;
+            }
+
+            mMinRssi[i] = rule.minRssi;
+            mPrefix[i] = rule.namePrefix;
+            mPattern[i] = rule.nameRegex != null
+                    ? Pattern.compile(rule.nameRegex) : null;
+
+            if (rule.manufacturerId != LeScanner.Filter.ANY_MANUFACTURER
+                    || rule.serviceUuid != null) {
+                mLeFilters.add(new LeScanner.Filter(rule.manufacturerId,
+                        rule.serviceUuid));
+            } else {
+                leFiltered = false;
+            }
+        }
+
+        // Controller can only filter if every rule can be filtered there
+        if (!leFiltered) {
+            mLeFilters.clear();
+        }
+    }
+
+    /**
+     * Compile rules to filter
+     *
+     * @param rules Rules, device has to match one of these
+     * @return Compiled filter
+     */
+    public static DeviceFilter compile(List<Rule> rules) {
+        return new DeviceFilter(rules);
+    }
+
+    /**
+     * Parse and compile rules given as text
+     *
+     * @param text Rules, one per line
+     * @return Compiled filter
+     * @throws IllegalArgumentException If some of the rules is not valid
+     */
+    public static DeviceFilter parse(String text) throws IllegalArgumentException {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            rules.add(Rule.parse(line));
+        }
+        return compile(rules);
+    }
+
+    /**
+     * Get filter that only passes audio devices
+     *
+     * @return Compiled filter
+     */
+    public static DeviceFilter audioOnly() {
+        Rule rule = new Rule();
+        rule.services = BluetoothClass.Service.AUDIO;
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(rule);
+        return compile(rules);
+    }
+
+    /**
+     * Get filters given to Bluetooth controller in LE scan
+     *
+     * @return Filters, or empty list if all devices have to be scanned
+     */
+    public List<LeScanner.Filter> getLeScanFilters() {
+        return new ArrayList<LeScanner.Filter>(mLeFilters);
+    }
+
+    /**
+     * Check if device passes the filter. Filter without rules passes all
+     * devices.
+     *
+     * @param device Device checked
+     * @return true if device passes
+     */
+    public boolean matches(DiscoveredDevice device) {
+        return matches(device.getKey(), device.getName(),
+                device.getClassBits(), device.getRssi());
+    }
+
+    /**
+     * Check if device passes the filter
+     *
+     * @param key       Packed address
+     * @param name      Name or null
+     * @param classBits Class bits or DiscoveredDevice.CLASS_UNKNOWN
+     * @param rssi      RSSI or DiscoveredDevice.RSSI_UNKNOWN
+     * @return true if device passes
+     */
+    public boolean matches(long key, String name, int classBits, short rssi) {
+        int count = mClassMask.length;
+        if (count == 0) {
+            return true;
+        }
+
+        for (int i = 0; i < count; ++i) {
+            if (classBits != DiscoveredDevice.CLASS_UNKNOWN
+                    && (classBits & mClassMask[i]) != mClassValue[i]) {
+                continue;
+            }
+            if (key < mKeyFirst[i] || key > mKeyLast[i]) {
+                continue;
+            }
+            if (rssi != DiscoveredDevice.RSSI_UNKNOWN && rssi < mMinRssi[i]) {
+                continue;
+            }
+            if (mPrefix[i] != null && (name == null || !name.regionMatches(
+                    true, 0, mPrefix[i], 0, mPrefix[i].length()))) {
+                continue;
+            }
+            if (mPattern[i] != null && (name == null
+                    || !mPattern[i].matcher(name).find())) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+}
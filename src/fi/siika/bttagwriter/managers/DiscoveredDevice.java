@@ -0,0 +1,183 @@
+/*
+ * DiscoveredDevice.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Bluetooth device found by discovery, from paired list or from discovery
+ * cache. Values are resolved when device is found, so those can be read
+ * without further calls to Bluetooth service.
+ */
+public class DiscoveredDevice {
+
+    /**
+     * Value of RSSI when it is not known
+     */
+    public final static short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    /**
+     * Value of class bits when class is not known
+     */
+    public final static int CLASS_UNKNOWN = -1;
+
+    /**
+     * Where device information came from
+     */
+    public enum Source {
+        DISCOVERY, PAIRED, CACHE
+    }
+
+    private final static int[] SERVICES = new int[]{
+            BluetoothClass.Service.LIMITED_DISCOVERABILITY,
+            BluetoothClass.Service.POSITIONING,
+            BluetoothClass.Service.NETWORKING,
+            BluetoothClass.Service.RENDER,
+            BluetoothClass.Service.CAPTURE,
+            BluetoothClass.Service.OBJECT_TRANSFER,
+            BluetoothClass.Service.AUDIO,
+            BluetoothClass.Service.TELEPHONY,
+            BluetoothClass.Service.INFORMATION};
+
+    private final BluetoothDevice mDevice;
+    private final long mKey;
+    private final String mName;
+    private final int mClassBits;
+    private final short mRssi;
+    private final Source mSource;
+    private final boolean mBonded;
+
+    /**
+     * @param device    Device found
+     * @param key       Address of device packed to long
+     * @param name      Name of device
+     * @param classBits Class of device bits, or CLASS_UNKNOWN
+     * @param rssi      RSSI of discovery result, or RSSI_UNKNOWN
+     * @param source    Where device information came from
+     * @param bonded    true if device is paired
+     */
+    public DiscoveredDevice(BluetoothDevice device, long key, String name,
+                            int classBits, short rssi, Source source,
+                            boolean bonded) {
+        mDevice = device;
+        mKey = key;
+        mName = name;
+        mClassBits = classBits;
+        mRssi = rssi;
+        mSource = source;
+        mBonded = bonded;
+    }
+
+    /**
+     * Convert Bluetooth class to class of device bits (service, major and
+     * minor classes)
+     *
+     * @param btClass Bluetooth class, can be null
+     * @return Class bits or CLASS_UNKNOWN
+     */
+    public static int toClassBits(BluetoothClass btClass) {
+        if (btClass == null) {
+            return CLASS_UNKNOWN;
+        }
+        int bits = btClass.getDeviceClass();
+        for (int service : SERVICES) {
+            if (btClass.hasService(service)) {
+                bits |= service;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Merge two results of same device. Discovery results win over paired
+     * list and cache, and known values win over unknown ones.
+     *
+     * @param older Earlier result of same device
+     * @return Merged result
+     */
+    DiscoveredDevice mergeWith(DiscoveredDevice older) {
+        if (older == null) {
+            return this;
+        }
+        Source source = mSource;
+        if (older.getSource().ordinal() < source.ordinal()) {
+            source = older.getSource();
+        }
+        return new DiscoveredDevice(mDevice, mKey,
+                mName != null ? mName : older.getName(),
+                mClassBits != CLASS_UNKNOWN ? mClassBits : older.getClassBits(),
+                mRssi != RSSI_UNKNOWN ? mRssi : older.getRssi(),
+                source, mBonded || older.isBonded());
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Get address packed to long
+     *
+     * @return Packed address
+     */
+    public long getKey() {
+        return mKey;
+    }
+
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get class of device bits (service, major and minor classes)
+     *
+     * @return Class bits or CLASS_UNKNOWN
+     */
+    public int getClassBits() {
+        return mClassBits;
+    }
+
+    public short getRssi() {
+        return mRssi;
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return true if device was from paired list (and not proper discovery)
+     */
+    public boolean isFromPaired() {
+        return mSource == Source.PAIRED;
+    }
+
+    /**
+     * @return true if device was found by discovery now
+     */
+    public boolean isVisible() {
+        return mSource == Source.DISCOVERY;
+    }
+
+    public boolean isBonded() {
+        return mBonded;
+    }
+
+    public boolean hasService(int service) {
+        return mClassBits != CLASS_UNKNOWN && (mClassBits & service) != 0;
+    }
+
+    public boolean isAudio() {
+        return hasService(BluetoothClass.Service.AUDIO);
+    }
+}
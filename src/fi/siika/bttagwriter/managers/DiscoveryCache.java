@@ -0,0 +1,251 @@
+/*
+ * DiscoveryCache.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of recently seen Bluetooth devices stored to a small binary file.
+ * Used to show known devices before discovery has found them. Methods do
+ * file access and should not be called in main thread.
+ * <p/>
+ * File format (big endian): magic, version, entry count and then for each
+ * entry 48 bit address, name (modified UTF-8, empty if unknown), class bits,
+ * RSSI and last seen time (wall clock milliseconds).
+ */
+public class DiscoveryCache {
+
+    private final static String TAG = "DiscoveryCache";
+
+    private final static int MAGIC = 0x42544443; // "BTDC"
+    private final static byte VERSION = 1;
+
+    /**
+     * Maximum number of devices stored
+     */
+    public final static int MAX_ENTRIES = 64;
+
+    /**
+     * Devices not seen in this time are dropped from cache
+     */
+    public final static long MAX_AGE_MS = 14L * 24L * 60L * 60L * 1000L;
+
+    /**
+     * Cached device
+     */
+    public static class Entry {
+        public final long key;
+        public final String name;
+        public final int classBits;
+        public final short rssi;
+        public final long lastSeen;
+
+        Entry(long key, String name, int classBits, short rssi,
+              long lastSeen) {
+            this.key = key;
+            this.name = name;
+            this.classBits = classBits;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final File mFile;
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<Entry>();
+    private boolean mLoaded = false;
+    private boolean mDirty = false;
+
+    /**
+     * @param file File where cache is stored
+     */
+    public DiscoveryCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read cache from file if not read yet. Broken file is ignored.
+     */
+    public synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Unknown cache file");
+            }
+            long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                long key = ((long) (in.readShort() & 0xFFFF) << 32)
+                        | (in.readInt() & 0xFFFFFFFFL);
+                String name = in.readUTF();
+                int classBits = in.readInt();
+                short rssi = in.readShort();
+                long lastSeen = in.readLong();
+                if (lastSeen >= oldest) {
+                    mEntries.put(key, new Entry(key,
+                            name.length() > 0 ? name : null, classBits, rssi,
+                            lastSeen));
+                }
+            }
+            Log.d(TAG, "Loaded " + mEntries.size() + " cached devices");
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cache: " + e.getMessage());
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Get cached devices. Devices older than MAX_AGE_MS are dropped.
+     *
+     * @return Devices in cache
+     */
+    public synchronized List<Entry> getEntries() {
+        prune(System.currentTimeMillis());
+        List<Entry> ret = new ArrayList<Entry>(mEntries.size());
+        for (int i = 0; i < mEntries.size(); ++i) {
+            ret.add(mEntries.valueAt(i));
+        }
+        return ret;
+    }
+
+    /**
+     * Add or update device in cache. Unknown values do not replace values
+     * already cached. If cache is full, least recently seen device is
+     * dropped.
+     *
+     * @param key       Packed address
+     * @param name      Name or null
+     * @param classBits Class bits or DiscoveredDevice.CLASS_UNKNOWN
+     * @param rssi      RSSI or DiscoveredDevice.RSSI_UNKNOWN
+     */
+    public synchronized void remember(long key, String name, int classBits,
+                                      short rssi) {
+        Entry old = mEntries.get(key);
+        if (old != null) {
+            if (name == null) {
+                name = old.name;
+            }
+            if (classBits == DiscoveredDevice.CLASS_UNKNOWN) {
+                classBits = old.classBits;
+            }
+            if (rssi == DiscoveredDevice.RSSI_UNKNOWN) {
+                rssi = old.rssi;
+            }
+        }
+        long now = System.currentTimeMillis();
+        mEntries.put(key, new Entry(key, name, classBits, rssi, now));
+        mDirty = true;
+        if (mEntries.size() > MAX_ENTRIES) {
+            prune(now);
+        }
+    }
+
+    /*
+     * Drop expired devices, and then oldest devices until cache fits to
+     * MAX_ENTRIES
+     */
+    private void prune(long now) {
+        long oldest = now - MAX_AGE_MS;
+        for (int i = mEntries.size() - 1; i >= 0; --i) {
+            if (mEntries.valueAt(i).lastSeen < oldest) {
+                mEntries.removeAt(i);
+                mDirty = true;
+            }
+        }
+        while (mEntries.size() > MAX_ENTRIES) {
+            int index = 0;
+            for (int i = 1; i < mEntries.size(); ++i) {
+                if (mEntries.valueAt(i).lastSeen
+                        < mEntries.valueAt(index).lastSeen) {
+                    index = i;
+                }
+            }
+            mEntries.removeAt(index);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write cache to file if it has changed. File is replaced only after it
+     * has been written completely.
+     */
+    public synchronized void save() {
+        List<Entry> entries = getEntries();
+        if (!mDirty) {
+            return;
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeShort((int) (entry.key >>> 32));
+                out.writeInt((int) entry.key);
+                out.writeUTF(entry.name != null ? entry.name : "");
+                out.writeInt(entry.classBits);
+                out.writeShort(entry.rssi);
+                out.writeLong(entry.lastSeen);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Failed to replace " + mFile);
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache: " + e.getMessage());
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
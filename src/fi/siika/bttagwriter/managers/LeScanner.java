@@ -0,0 +1,92 @@
+/*
+ * LeScanner.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bluetooth Low Energy scanner. Interface only uses plain Java types, so
+ * implementations can be replaced with scripted ones (see
+ * ScriptedLeScanner) when radio is not available.
+ */
+public interface LeScanner {
+
+    /**
+     * Scan result
+     */
+    public static class Result {
+        public final String address;
+        public final String name;
+        public final short rssi;
+
+        public Result(String address, String name, short rssi) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * Filter applied by scanner (if possible in Bluetooth controller). Device
+     * passes if it matches any of the filters given.
+     */
+    public static class Filter {
+        /**
+         * Value of manufacturerId when not used
+         */
+        public final static int ANY_MANUFACTURER = -1;
+
+        public final int manufacturerId;
+        public final UUID serviceUuid;
+
+        /**
+         * @param manufacturerId Bluetooth SIG company identifier in
+         *                       manufacturer specific data, or
+         *                       ANY_MANUFACTURER
+         * @param serviceUuid    Advertised service UUID, or null
+         */
+        public Filter(int manufacturerId, UUID serviceUuid) {
+            this.manufacturerId = manufacturerId;
+            this.serviceUuid = serviceUuid;
+        }
+    }
+
+    /**
+     * Receiver of scan results. Called in scanner's own thread.
+     */
+    public interface Callback {
+        /**
+         * @param results Results found, same device can be listed multiple
+         *                times
+         */
+        public void leDevicesFound(List<Result> results);
+
+        /**
+         * Scan failed or was stopped by scanner
+         *
+         * @param error Error code of implementation, 0 if scan just ended
+         */
+        public void leScanStopped(int error);
+    }
+
+    /**
+     * Start scanning
+     *
+     * @param filters  Filters, empty list to find all devices
+     * @param callback Receiver of results
+     * @return false if scan could not be started
+     */
+    public boolean start(List<Filter> filters, Callback callback);
+
+    /**
+     * Stop scanning. Callback is not called after this.
+     */
+    public void stop();
+}
@@ -0,0 +1,161 @@
+/*
+ * NearestDeviceTracker.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.util.LongSparseArray;
+
+import java.util.List;
+
+/**
+ * Finds device nearest to phone from discovery results. RSSI of each device
+ * is smoothed with exponentially weighted moving average. Device is chosen
+ * when its smoothed RSSI has been above the next device by given margin
+ * for given number of its own samples in a row.
+ */
+public class NearestDeviceTracker {
+
+    public final static float DEFAULT_ALPHA = 0.4f;
+    public final static int DEFAULT_MARGIN = 10;
+    public final static int DEFAULT_SAMPLES = 3;
+    public final static int DEFAULT_MIN_RSSI = -70;
+
+    private static class Average {
+        float value;
+        DiscoveredDevice device;
+    }
+
+    private final LongSparseArray<Average> mAverages =
+            new LongSparseArray<Average>();
+    private float mAlpha = DEFAULT_ALPHA;
+    private int mMargin = DEFAULT_MARGIN;
+    private int mRequiredSamples = DEFAULT_SAMPLES;
+    private int mMinRssi = DEFAULT_MIN_RSSI;
+
+    private long mLeader = 0;
+    private int mStreak = 0;
+    private boolean mDone = false;
+
+    /**
+     * @param alpha Weight of new sample in moving average (0.0 - 1.0)
+     */
+    public void setAlpha(float alpha) {
+        mAlpha = alpha;
+    }
+
+    /**
+     * @param margin How many dBm nearest device has to be above the next one
+     */
+    public void setMargin(int margin) {
+        mMargin = margin;
+    }
+
+    /**
+     * @param samples How many samples in a row device has to be nearest
+     */
+    public void setRequiredSamples(int samples) {
+        mRequiredSamples = samples;
+    }
+
+    /**
+     * @param rssi Smoothed RSSI device has to have at least. Used also when
+     *             there is only one device.
+     */
+    public void setMinRssi(int rssi) {
+        mMinRssi = rssi;
+    }
+
+    /**
+     * Forget all samples. After reset new device can be chosen.
+     */
+    public void reset() {
+        mAverages.clear();
+        mStreak = 0;
+        mDone = false;
+    }
+
+    /**
+     * Add discovery results. Only results of discovery with known RSSI are
+     * used.
+     *
+     * @param devices Devices found
+     * @return Device chosen, or null if none is chosen yet. Device is
+     * returned only once until reset is called.
+     */
+    public DiscoveredDevice addSamples(List<DiscoveredDevice> devices) {
+        for (DiscoveredDevice device : devices) {
+            DiscoveredDevice chosen = addSample(device);
+            if (chosen != null) {
+                return chosen;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add discovery result
+     *
+     * @param device Device found
+     * @return Device chosen, or null if none is chosen yet. Device is
+     * returned only once until reset is called.
+     */
+    public DiscoveredDevice addSample(DiscoveredDevice device) {
+        if (mDone || !device.isVisible()
+                || device.getRssi() == DiscoveredDevice.RSSI_UNKNOWN) {
+            return null;
+        }
+
+        Average average = mAverages.get(device.getKey());
+        if (average == null) {
+            average = new Average();
+            average.value = device.getRssi();
+            mAverages.put(device.getKey(), average);
+        } else {
+            average.value += mAlpha * (device.getRssi() - average.value);
+        }
+        average.device = device;
+
+        // Find best and second best averages
+        int best = -1;
+        float second = mMinRssi - mMargin;
+        for (int i = 0; i < mAverages.size(); ++i) {
+            float value = mAverages.valueAt(i).value;
+            if (best < 0 || value > mAverages.valueAt(best).value) {
+                if (best >= 0) {
+                    second = Math.max(second, mAverages.valueAt(best).value);
+                }
+                best = i;
+            } else {
+                second = Math.max(second, value);
+            }
+        }
+
+        Average leader = mAverages.valueAt(best);
+        if (leader.value - second < mMargin) {
+            mStreak = 0;
+            return null;
+        }
+
+        // Only samples of the leader itself count, so other devices
+        // reporting often do not choose a device heard once
+        long key = mAverages.keyAt(best);
+        if (mStreak == 0 || key != mLeader) {
+            mLeader = key;
+            mStreak = 0;
+        }
+        if (device.getKey() == key) {
+            ++mStreak;
+        }
+
+        if (mStreak >= mRequiredSamples) {
+            mDone = true;
+            return leader.device;
+        }
+        return null;
+    }
+}
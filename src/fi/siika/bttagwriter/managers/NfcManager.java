@@ -14,6 +14,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
 import android.nfc.NfcAdapter;
+import android.nfc.tech.IsoDep;
 import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.Ndef;
 import android.nfc.tech.NdefFormatable;
@@ -97,7 +98,8 @@ public class NfcManager {
         String[][] techList = new String[][]{new String[]{
                 MifareUltralight.class.getName()}, new String[]{
                 Ndef.class.getName()}, new String[]{
-                NdefFormatable.class.getName()}};
+                NdefFormatable.class.getName()}, new String[]{
+                IsoDep.class.getName()}};
 
         nfcAdapter.enableForegroundDispatch(mActivity, mPendingIntent,
                 new IntentFilter[]{tech}, techList);
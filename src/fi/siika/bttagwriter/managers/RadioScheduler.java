@@ -0,0 +1,270 @@
+/*
+ * RadioScheduler.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.siika.bttagwriter.ui.Pages;
+
+/**
+ * Keeps radios active only on pages that need them. Bluetooth inquiry runs
+ * only on BT_SELECT page and NFC dispatch is armed only on TAG and BATCH
+ * pages, so inquiry does not slow down tag writing. Bluetooth enabled by
+ * application is powered off only after a delay, so moving back and forth
+ * between pages does not cycle the radio.
+ * <p/>
+ * Timing of each page transition is recorded.
+ */
+public class RadioScheduler {
+
+    private final static String TAG = "RadioScheduler";
+
+    /**
+     * Delay before Bluetooth enabled by application is powered off after
+     * leaving BT_SELECT page
+     */
+    public final static long BT_POWER_OFF_DELAY_MS = 10 * 1000;
+
+    private final static int MAX_TRANSITIONS = 16;
+
+    /**
+     * Timing of page transition
+     */
+    public static class Transition {
+        public final Pages from;
+        public final Pages to;
+
+        /**
+         * Time of transition in milliseconds (elapsed realtime)
+         */
+        public final long time;
+
+        /**
+         * Time used by radio calls in microseconds
+         */
+        public final long switchMicros;
+
+        /**
+         * Time from transition until inquiry was reported stopped in
+         * milliseconds, -1 if inquiry was not stopped by transition or not
+         * reported yet
+         */
+        public long inquiryStopMillis = -1;
+
+        Transition(Pages from, Pages to, long time, long switchMicros) {
+            this.from = from;
+            this.to = to;
+            this.time = time;
+            this.switchMicros = switchMicros;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + ": radio calls " + switchMicros
+                    + " us, inquiry stopped " + inquiryStopMillis + " ms";
+        }
+    }
+
+    private final BluetoothManager mBtMgr;
+    private final NfcManager mNfcMgr;
+    private final BluetoothManager.DiscoveryListener mDiscoveryListener;
+    private final Handler mHandler = new Handler();
+    private final List<Transition> mTransitions = new ArrayList<Transition>();
+
+    private Pages mPage = Pages.START;
+    private boolean mResumed = false;
+    private boolean mInquiryActive = false;
+    private boolean mRepeatInquiry = false;
+    private Transition mStoppingTransition = null;
+    private long mInquiryStopped = -1;
+
+    /**
+     * @param btMgr    Bluetooth manager
+     * @param nfcMgr   NFC manager
+     * @param listener Listener given to Bluetooth discovery
+     */
+    public RadioScheduler(BluetoothManager btMgr, NfcManager nfcMgr,
+                          BluetoothManager.DiscoveryListener listener) {
+        mBtMgr = btMgr;
+        mNfcMgr = nfcMgr;
+        mDiscoveryListener = listener;
+    }
+
+    private final Runnable mPowerOffRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!Pages.BT_SELECT.equals(mPage) || !mResumed) {
+                mBtMgr.disableIfEnabled();
+            }
+        }
+    };
+
+    private final Runnable mRepeatInquiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isInquiryRepeated() && !mInquiryActive) {
+                mBtMgr.startDiscovery(mDiscoveryListener);
+            }
+        }
+    };
+
+    /**
+     * Set if Bluetooth inquiry is started again when it finishes on
+     * BT_SELECT page. Classic inquiry reports each device about once, so
+     * choosing nearest device needs several rounds.
+     *
+     * @param repeat true to repeat inquiry
+     */
+    public void setRepeatInquiry(boolean repeat) {
+        mRepeatInquiry = repeat;
+        mHandler.removeCallbacks(mRepeatInquiryRunnable);
+        if (isInquiryRepeated() && !mInquiryActive) {
+            mHandler.post(mRepeatInquiryRunnable);
+        }
+    }
+
+    private boolean isInquiryRepeated() {
+        return mRepeatInquiry && mResumed && Pages.BT_SELECT.equals(mPage);
+    }
+
+    /**
+     * Call when shown page changes
+     *
+     * @param page Page shown
+     * @return false if radio needed by page could not be started
+     */
+    public boolean onPageChanged(Pages page) {
+        Pages from = mPage;
+        mPage = page;
+        if (!mResumed || from == page) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        boolean stoppedInquiry = leave(from);
+        boolean success = enter(page);
+        long micros = (System.nanoTime() - start) / 1000L;
+
+        Transition transition = new Transition(from, page,
+                SystemClock.elapsedRealtime(), micros);
+        if (stoppedInquiry) {
+            mStoppingTransition = transition;
+        }
+        record(transition);
+        return success;
+    }
+
+    /**
+     * Call when activity is resumed. Radios needed by current page are
+     * started again.
+     *
+     * @return false if radio needed by page could not be started
+     */
+    public boolean resume() {
+        mResumed = true;
+        return enter(mPage);
+    }
+
+    /**
+     * Call when activity is paused. All radios are stopped.
+     */
+    public void pause() {
+        // Resume waits for settings, activity can be paused before that
+        if (mResumed) {
+            leave(mPage);
+        }
+        mResumed = false;
+    }
+
+    /**
+     * Call when Bluetooth discovery state changes
+     *
+     * @param active true if discovery is active
+     */
+    public void onInquiryStateChanged(boolean active) {
+        mInquiryActive = active;
+        if (active) {
+            mInquiryStopped = -1;
+            return;
+        }
+
+        mInquiryStopped = SystemClock.elapsedRealtime();
+        if (mStoppingTransition != null) {
+            mStoppingTransition.inquiryStopMillis =
+                    mInquiryStopped - mStoppingTransition.time;
+            Log.d(TAG, mStoppingTransition.toString());
+            mStoppingTransition = null;
+        }
+
+        // Posted, so page change or pause handled first does not restart it
+        if (isInquiryRepeated()) {
+            mHandler.post(mRepeatInquiryRunnable);
+        }
+    }
+
+    /**
+     * Get how long radio has been free of Bluetooth inquiry
+     *
+     * @return Time in milliseconds, or -1 if inquiry is active or state is
+     * not known
+     */
+    public long getInquiryQuietMillis() {
+        if (mInquiryActive || mInquiryStopped < 0) {
+            return -1;
+        }
+        return SystemClock.elapsedRealtime() - mInquiryStopped;
+    }
+
+    /**
+     * Get recorded page transitions, oldest first
+     *
+     * @return Copy of transitions recorded
+     */
+    public List<Transition> getTransitions() {
+        return new ArrayList<Transition>(mTransitions);
+    }
+
+    private boolean enter(Pages page) {
+        if (Pages.BT_SELECT.equals(page)) {
+            mHandler.removeCallbacks(mPowerOffRunnable);
+            return mBtMgr.startDiscovery(mDiscoveryListener);
+        } else if (Pages.TAG.equals(page) || Pages.BATCH.equals(page)) {
+            mNfcMgr.enableTechDiscovered();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if inquiry was stopped
+     */
+    private boolean leave(Pages page) {
+        boolean stoppedInquiry = false;
+        if (Pages.BT_SELECT.equals(page)) {
+            stoppedInquiry = mBtMgr.cancelDiscovery();
+            mHandler.removeCallbacks(mPowerOffRunnable);
+            mHandler.postDelayed(mPowerOffRunnable, BT_POWER_OFF_DELAY_MS);
+        } else if (Pages.TAG.equals(page) || Pages.BATCH.equals(page)) {
+            mNfcMgr.disableForegroundDispatch();
+        }
+        return stoppedInquiry;
+    }
+
+    private void record(Transition transition) {
+        if (mTransitions.size() >= MAX_TRANSITIONS) {
+            mTransitions.remove(0);
+        }
+        mTransitions.add(transition);
+        Log.d(TAG, transition.toString());
+    }
+}
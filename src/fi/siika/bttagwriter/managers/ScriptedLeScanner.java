@@ -0,0 +1,112 @@
+/*
+ * ScriptedLeScanner.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LE scanner that replays scripted result batches instead of using radio.
+ * Does not use Android APIs, so it can be used to exercise and benchmark
+ * result handling without devices. Filters are ignored.
+ */
+public class ScriptedLeScanner implements LeScanner {
+
+    private static class Step {
+        final long delay;
+        final List<Result> results;
+
+        Step(long delay, List<Result> results) {
+            this.delay = delay;
+            this.results = results;
+        }
+    }
+
+    private final List<Step> mSteps = new ArrayList<Step>();
+    private Thread mThread = null;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Add batch of results to script
+     *
+     * @param delayMillis Delay after previous batch (or start of scan)
+     * @param results     Results delivered
+     * @return This scanner
+     */
+    public ScriptedLeScanner addBatch(long delayMillis, List<Result> results) {
+        synchronized (mSteps) {
+            mSteps.add(new Step(delayMillis, new ArrayList<Result>(results)));
+        }
+        return this;
+    }
+
+    /**
+     * Add single result to script
+     *
+     * @param delayMillis Delay after previous batch (or start of scan)
+     * @param address     Address of device
+     * @param name        Name of device
+     * @param rssi        RSSI of result
+     * @return This scanner
+     */
+    public ScriptedLeScanner addResult(long delayMillis, String address,
+                                       String name, int rssi) {
+        List<Result> results = new ArrayList<Result>(1);
+        results.add(new Result(address, name, (short) rssi));
+        return addBatch(delayMillis, results);
+    }
+
+    @Override
+    public synchronized boolean start(List<Filter> filters,
+                                      final Callback callback) {
+        if (mRunning) {
+            return false;
+        }
+
+        final List<Step> steps;
+        synchronized (mSteps) {
+            steps = new ArrayList<Step>(mSteps);
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Step step : steps) {
+                        if (step.delay > 0) {
+                            Thread.sleep(step.delay);
+                        }
+                        if (!mRunning) {
+                            return;
+                        }
+                        callback.leDevicesFound(step.results);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mRunning) {
+                    mRunning = false;
+                    callback.leScanStopped(0);
+                }
+            }
+        }, "ScriptedLeScanner");
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * SessionStore.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import fi.siika.bttagwriter.data.PairingCarrier;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.data.TagType;
+
+/**
+ * Stores the active session (current page and tag information, including
+ * compiled message) to a small binary file, so it can be restored after
+ * process has been killed. Session is serialized in calling thread and
+ * written in worker thread; only the newest pending session is written.
+ * Stored session is read in worker thread and given to main thread.
+ * <p/>
+ * Store is shared by the process, get it with getInstance.
+ */
+public class SessionStore {
+
+    private final static String TAG = "SessionStore";
+    private final static String FILE_NAME = "session.bin";
+
+    private final static int MAGIC = 0x42545353; // "BTSS"
+    private final static byte VERSION = 1;
+
+    /**
+     * Sessions older than this are not restored
+     */
+    public final static long MAX_AGE_MS = 12L * 60L * 60L * 1000L;
+
+    /**
+     * Given to LoadListener when there is no session to restore
+     */
+    public final static int NO_SESSION = -1;
+
+    private final static byte FLAG_READ_ONLY = 0x01;
+    private final static byte FLAG_VERIFY = 0x02;
+
+    /**
+     * Receives session read by load
+     */
+    public interface LoadListener {
+        /**
+         * Called in main thread
+         *
+         * @param page Index of stored page, or NO_SESSION if there is no
+         *             recent session
+         * @param info Stored tag information, or null if there is no session
+         */
+        public void sessionLoaded(int page, TagInformation info);
+    }
+
+    private static SessionStore sInstance = null;
+
+    private final File mFile;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private byte[] mPending = null;
+    private boolean mWriteScheduled = false;
+    private final List<LoadListener> mLoadListeners =
+            new ArrayList<LoadListener>();
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data;
+            synchronized (SessionStore.this) {
+                mWriteScheduled = false;
+                data = mPending;
+                mPending = null;
+            }
+            if (data != null) {
+                write(data);
+            }
+        }
+    };
+
+    private SessionStore(File file) {
+        mFile = file;
+
+        HandlerThread thread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Get store of process
+     *
+     * @param context Context used
+     * @return Store
+     */
+    public static synchronized SessionStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SessionStore(new File(context.getFilesDir(),
+                    FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Store session. Returns without waiting for the write.
+     *
+     * @param page Index of current page
+     * @param info Tag information of session
+     */
+    public void save(int page, TagInformation info) {
+        byte[] data;
+        try {
+            data = serialize(page, info);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialize session: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            mPending = data;
+            if (!mWriteScheduled) {
+                mWriteScheduled = true;
+                mWorkerHandler.post(mWriteRunnable);
+            }
+        }
+    }
+
+    /**
+     * Read stored session in worker thread. Returns without waiting, listener
+     * is called in main thread unless load is cancelled before that.
+     *
+     * @param listener Listener receiving the session
+     */
+    public void load(final LoadListener listener) {
+        synchronized (this) {
+            mLoadListeners.add(listener);
+        }
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final TagInformation info = new TagInformation();
+                final int page = read(info);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (SessionStore.this) {
+                            if (!mLoadListeners.remove(listener)) {
+                                return;
+                            }
+                        }
+                        listener.sessionLoaded(page,
+                                page != NO_SESSION ? info : null);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancel load, if listener has not been called yet
+     *
+     * @param listener Listener given to load
+     */
+    public synchronized void cancelLoad(LoadListener listener) {
+        mLoadListeners.remove(listener);
+    }
+
+    /**
+     * Read stored session. Called in worker thread.
+     *
+     * @param info Tag information where stored values are read
+     * @return Index of stored page, or NO_SESSION
+     */
+    private int read(TagInformation info) {
+        synchronized (this) {
+            // Newest state is not written yet
+            if (mPending != null) {
+                return deserialize(mPending, info);
+            }
+        }
+
+        byte[] data;
+        DataInputStream in = null;
+        try {
+            data = new byte[(int) mFile.length()];
+            in = new DataInputStream(new FileInputStream(mFile));
+            in.readFully(data);
+        } catch (FileNotFoundException e) {
+            return NO_SESSION;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read session: " + e.getMessage());
+            return NO_SESSION;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return deserialize(data, info);
+    }
+
+    private static byte[] serialize(int page, TagInformation info)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeByte(page);
+
+        byte flags = 0;
+        if (info.isReadOnly()) {
+            flags |= FLAG_READ_ONLY;
+        }
+        if (info.isVerifyEnabled()) {
+            flags |= FLAG_VERIFY;
+        }
+        out.writeByte(flags);
+        out.writeByte(info.getType().ordinal());
+        out.writeByte(info.getCarrier().ordinal());
+
+        out.writeUTF(info.address != null ? info.address : "");
+        out.writeUTF(info.name != null ? info.name : "");
+        out.writeUTF(info.pin != null ? info.pin : "");
+        writeBytes(out, info.deviceClass);
+        out.writeInt(info.appearance);
+
+        if (info.serviceUuids == null) {
+            out.writeShort(-1);
+        } else {
+            out.writeShort(info.serviceUuids.size());
+            for (UUID uuid : info.serviceUuids) {
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+            }
+        }
+
+        writeBytes(out, info.getCompiledMessage());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int deserialize(byte[] data, TagInformation info) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Unknown session file");
+            }
+            long savedAt = in.readLong();
+            if (System.currentTimeMillis() - savedAt > MAX_AGE_MS) {
+                return NO_SESSION;
+            }
+            int page = in.readByte();
+
+            byte flags = in.readByte();
+            TagType type = TagType.values()[in.readByte()];
+            PairingCarrier carrier = PairingCarrier.values()[in.readByte()];
+            String address = in.readUTF();
+            String name = in.readUTF();
+            String pin = in.readUTF();
+            byte[] deviceClass = readBytes(in);
+            int appearance = in.readInt();
+
+            List<UUID> uuids = null;
+            int count = in.readShort();
+            if (count >= 0) {
+                uuids = new ArrayList<UUID>(count);
+                for (int i = 0; i < count; ++i) {
+                    uuids.add(new UUID(in.readLong(), in.readLong()));
+                }
+            }
+            byte[] compiled = readBytes(in);
+
+            info.setReadOnly((flags & FLAG_READ_ONLY) != 0);
+            info.setVerifyEnabled((flags & FLAG_VERIFY) != 0);
+            info.setType(type);
+            info.setCarrier(carrier);
+            info.address = address.length() > 0 ? address : null;
+            info.name = name.length() > 0 ? name : null;
+            info.pin = pin;
+            info.deviceClass = deviceClass;
+            info.appearance = appearance;
+            info.serviceUuids = uuids;
+            info.setCompiledMessage(compiled);
+            return page;
+
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read session: " + e.getMessage());
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Invalid session: " + e.getMessage());
+        }
+        return NO_SESSION;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        } else if (length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Write session file. File is replaced only after it has been written
+     * completely.
+     */
+    private void write(byte[] data) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Failed to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write session: " + e.getMessage());
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
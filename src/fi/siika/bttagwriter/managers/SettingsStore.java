@@ -0,0 +1,261 @@
+/*
+ * SettingsStore.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings of application backed by shared preferences. Values are read
+ * from in-memory snapshot, and changes are written to disk in worker
+ * thread. Changes made within WRITE_DELAY_MS are written with one commit.
+ * Reading does not wait for values to be loaded: default values are
+ * returned until then, use runWhenLoaded to apply settings once those are
+ * available.
+ * <p/>
+ * Store is shared by the process, get it with getInstance.
+ */
+public class SettingsStore {
+
+    private final static String TAG = "SettingsStore";
+    private final static String PREFS_NAME = "WriterPrefs";
+
+    /**
+     * How long changes are collected before those are written
+     */
+    public final static long WRITE_DELAY_MS = 500;
+
+    /**
+     * Typed key of setting
+     *
+     * @param <T> Type of value (Boolean, Integer or String)
+     */
+    public final static class Key<T> {
+        public final String name;
+        public final T defaultValue;
+
+        private Key(String name, T defaultValue) {
+            this.name = name;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    public final static Key<Boolean> FILTER =
+            new Key<Boolean>("filter-devices", Boolean.FALSE);
+    public final static Key<String> FILTER_RULES =
+            new Key<String>("filter-rules", "");
+    public final static Key<Boolean> HANDOVER =
+            new Key<Boolean>("handover", Boolean.TRUE);
+    public final static Key<Boolean> READ_ONLY =
+            new Key<Boolean>("read-only", Boolean.FALSE);
+    public final static Key<Boolean> AUTO_SELECT =
+            new Key<Boolean>("auto-select", Boolean.FALSE);
+    public final static Key<Boolean> LE_SCAN =
+            new Key<Boolean>("le-scan", Boolean.FALSE);
+    public final static Key<Integer> CARRIER =
+            new Key<Integer>("carrier", Integer.valueOf(0));
+    /**
+     * Time in milliseconds repeated taps of tag just written are ignored
+     */
+    public final static Key<Integer> REPEAT_TAP_WINDOW =
+            new Key<Integer>("repeat-tap-window-ms", Integer.valueOf(3000));
+
+    private static SettingsStore sInstance = null;
+
+    private final SharedPreferences mPrefs;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+    private final Map<String, Object> mPending = new HashMap<String, Object>();
+    private boolean mLoaded = false;
+    private boolean mWriteScheduled = false;
+    private final List<Runnable> mLoadCallbacks = new ArrayList<Runnable>();
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, ?> all = mPrefs.getAll();
+            synchronized (SettingsStore.this) {
+                for (Map.Entry<String, ?> entry : all.entrySet()) {
+                    // Values changed before load completed win
+                    if (!mValues.containsKey(entry.getKey())) {
+                        mValues.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                mLoaded = true;
+                for (Runnable callback : mLoadCallbacks) {
+                    mMainHandler.post(callback);
+                }
+                mLoadCallbacks.clear();
+            }
+        }
+    };
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Object> changes;
+            synchronized (SettingsStore.this) {
+                mWriteScheduled = false;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                changes = new HashMap<String, Object>(mPending);
+                mPending.clear();
+            }
+
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Boolean) {
+                    editor.putBoolean(entry.getKey(), (Boolean) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(entry.getKey(), (Integer) value);
+                } else {
+                    editor.putString(entry.getKey(), (String) value);
+                }
+            }
+            if (!editor.commit()) {
+                Log.w(TAG, "Failed to write settings");
+            }
+        }
+    };
+
+    private SettingsStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, 0);
+
+        HandlerThread thread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+        mWorkerHandler.post(mLoadRunnable);
+    }
+
+    /**
+     * Get store of process. Loading of values is started when store is
+     * created.
+     *
+     * @param context Context used
+     * @return Store
+     */
+    public static synchronized SettingsStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SettingsStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Check if stored values are loaded
+     *
+     * @return true if get returns stored values
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run callback in main thread when values are loaded. Callback is run
+     * at once if values are already loaded, so this has to be called in
+     * main thread.
+     *
+     * @param callback Callback run
+     */
+    public void runWhenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (!mLoaded) {
+                mLoadCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Cancel callback given to runWhenLoaded, if it has not been run yet
+     *
+     * @param callback Callback cancelled
+     */
+    public synchronized void cancelWhenLoaded(Runnable callback) {
+        mLoadCallbacks.remove(callback);
+        mMainHandler.removeCallbacks(callback);
+    }
+
+    /**
+     * Get value of setting. Does not wait for values to be loaded.
+     *
+     * @param key Key of setting
+     * @param <T> Type of value
+     * @return Value, or default value of key if value is not set or not
+     * loaded yet
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T get(Key<T> key) {
+        Object value = mValues.get(key.name);
+        if (value == null || value.getClass() != key.defaultValue.getClass()) {
+            return key.defaultValue;
+        }
+        return (T) value;
+    }
+
+    public boolean getBoolean(Key<Boolean> key) {
+        return get(key).booleanValue();
+    }
+
+    public int getInt(Key<Integer> key) {
+        return get(key).intValue();
+    }
+
+    /**
+     * Change value of setting. Snapshot is updated at once, value is
+     * written to disk later.
+     *
+     * @param key   Key of setting
+     * @param value New value
+     * @param <T>   Type of value
+     */
+    public synchronized <T> void put(Key<T> key, T value) {
+        if (value == null) {
+            value = key.defaultValue;
+        }
+        Object old = mValues.put(key.name, value);
+        if (value.equals(old)) {
+            return;
+        }
+
+        mPending.put(key.name, value);
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mWorkerHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Write pending changes now (in worker thread). Call when application
+     * is paused.
+     */
+    public synchronized void flush() {
+        if (mWriteScheduled) {
+            mWorkerHandler.removeCallbacks(mWriteRunnable);
+            mWorkerHandler.post(mWriteRunnable);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * SystemLeScanner.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LE scanner using BluetoothLeScanner. Filters are given to controller and
+ * results are batched by controller when it supports it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SystemLeScanner implements LeScanner {
+
+    private final static String TAG = "SystemLeScanner";
+
+    /**
+     * How long controller can hold results before delivering those
+     */
+    public final static long REPORT_DELAY_MS = 500;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final BluetoothAdapter mAdapter;
+    private BluetoothLeScanner mScanner = null;
+    private ScanCallback mScanCallback = null;
+
+    public SystemLeScanner(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * Check if system supports LE scanning
+     *
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public synchronized boolean start(List<Filter> filters,
+                                      final Callback callback) {
+        if (mScanCallback != null || !mAdapter.isEnabled()) {
+            return false;
+        }
+
+        mScanner = mAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            return false;
+        }
+
+        List<ScanFilter> scanFilters = new ArrayList<ScanFilter>(filters.size());
+        for (Filter filter : filters) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if (filter.manufacturerId != Filter.ANY_MANUFACTURER) {
+                builder.setManufacturerData(filter.manufacturerId, EMPTY);
+            }
+            if (filter.serviceUuid != null) {
+                builder.setServiceUuid(new ParcelUuid(filter.serviceUuid));
+            }
+            scanFilters.add(builder.build());
+        }
+
+        ScanSettings.Builder settings = new ScanSettings.Builder();
+        settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (mAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(REPORT_DELAY_MS);
+        }
+
+        mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                List<Result> results = new ArrayList<Result>(1);
+                results.add(convert(result));
+                callback.leDevicesFound(results);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> scanResults) {
+                List<Result> results = new ArrayList<Result>(scanResults.size());
+                for (ScanResult result : scanResults) {
+                    results.add(convert(result));
+                }
+                callback.leDevicesFound(results);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "LE scan failed: " + errorCode);
+                synchronized (SystemLeScanner.this) {
+                    mScanCallback = null;
+                }
+                callback.leScanStopped(errorCode);
+            }
+        };
+
+        mScanner.startScan(scanFilters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mScanCallback != null) {
+            if (mAdapter.isEnabled()) {
+                mScanner.stopScan(mScanCallback);
+            }
+            mScanCallback = null;
+        }
+    }
+
+    private static Result convert(ScanResult result) {
+        String name = null;
+        if (result.getScanRecord() != null) {
+            name = result.getScanRecord().getDeviceName();
+        }
+        if (name == null) {
+            name = result.getDevice().getName();
+        }
+        return new Result(result.getDevice().getAddress(), name,
+                (short) result.getRssi());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * BatchMode.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.ui;
+
+import fi.siika.bttagwriter.R;
+
+/**
+ * Modes of batch page, where tags are processed one after another without
+ * dialogs
+ */
+public enum BatchMode {
+    /**
+     * Stale tags are rewritten with new address from mapping
+     */
+    REMAP(R.string.remap_str, R.string.remap_guide_str),
+    /**
+     * First tag is read, and its content is written to following tags
+     */
+    CLONE(R.string.clone_str, R.string.clone_guide_str),
+    /**
+     * Tags are only read and checked against device registry
+     */
+    AUDIT(R.string.audit_str, R.string.audit_guide_str);
+
+    private final int mTitle;
+    private final int mGuide;
+
+    private BatchMode(int title, int guide) {
+        mTitle = title;
+        mGuide = guide;
+    }
+
+    /**
+     * @return String resource of page title
+     */
+    public int getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return String resource of guide text
+     */
+    public int getGuide() {
+        return mGuide;
+    }
+}
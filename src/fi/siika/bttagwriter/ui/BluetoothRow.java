@@ -8,24 +8,56 @@
  */
 package fi.siika.bttagwriter.ui;
 
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.managers.DiscoveredDevice;
 
 /**
  * Row used to present a Bluetooth device
  */
 public class BluetoothRow {
-    private final String name;
+
+    /**
+     * Partition of audio devices, shown first
+     */
+    public final static int PARTITION_AUDIO = 0;
+
+    /**
+     * Partition of paired non audio devices
+     */
+    public final static int PARTITION_PAIRED = 1;
+
+    /**
+     * Partition of other devices, shown last
+     */
+    public final static int PARTITION_OTHER = 2;
+
+    private final long key;
     private final String address;
+    private String name;
     private boolean paired = false;
     private boolean deviceVisible = true;
     private boolean audio = false;
+    private long lastSeen = 0;
+    private short rssi = DiscoveredDevice.RSSI_UNKNOWN;
+    private CharSequence label = null;
 
     public BluetoothRow(String name, String address, boolean paired, boolean audio) {
+        this.key = BtAddress.pack(address);
         this.name = name;
         this.address = address;
         this.paired = paired;
         this.audio = audio;
     }
 
+    /**
+     * Get address packed to long
+     *
+     * @return Packed address
+     */
+    public long getKey() {
+        return key;
+    }
+
     public String getName() {
         return name;
     }
@@ -39,6 +71,9 @@ public class BluetoothRow {
     }
 
     public void setDeviceVisible(boolean visible) {
+        if (visible != deviceVisible) {
+            label = null;
+        }
         deviceVisible = visible;
     }
 
@@ -50,12 +85,90 @@ public class BluetoothRow {
         return audio;
     }
 
+    /**
+     * Get address label cached by adapter
+     *
+     * @return Label or null if it has to be built again
+     */
+    CharSequence getLabel() {
+        return label;
+    }
+
+    void setLabel(CharSequence label) {
+        this.label = label;
+    }
+
+    /**
+     * Get time when device was last seen
+     *
+     * @return Time in milliseconds (elapsed realtime)
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Get last known RSSI
+     *
+     * @return RSSI or DiscoveredDevice.RSSI_UNKNOWN
+     */
+    public short getRssi() {
+        return rssi;
+    }
+
+    /**
+     * Update last seen time and RSSI
+     *
+     * @param now  Current time in milliseconds (elapsed realtime)
+     * @param rssi RSSI or DiscoveredDevice.RSSI_UNKNOWN to keep old value
+     */
+    void markSeen(long now, short rssi) {
+        lastSeen = now;
+        if (rssi != DiscoveredDevice.RSSI_UNKNOWN) {
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * Get partition where row is sorted
+     *
+     * @return One of PARTITION_ values
+     */
+    public int getPartition() {
+        if (audio) {
+            return PARTITION_AUDIO;
+        } else if (paired) {
+            return PARTITION_PAIRED;
+        } else {
+            return PARTITION_OTHER;
+        }
+    }
+
+    /**
+     * Update values of row
+     *
+     * @return true if any value changed
+     */
+    boolean update(String name, boolean paired, boolean audio, boolean visible) {
+        boolean changed = paired != this.paired || audio != this.audio
+                || visible != this.deviceVisible
+                || (name == null ? this.name != null : !name.equals(this.name));
+        this.name = name;
+        this.paired = paired;
+        this.audio = audio;
+        this.deviceVisible = visible;
+        if (changed) {
+            label = null;
+        }
+        return changed;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
     @Override
     public int hashCode() {
-        return address.hashCode();
+        return (int) (key ^ (key >>> 32));
     }
 
     /* (non-Javadoc)
@@ -73,14 +186,7 @@ public class BluetoothRow {
             return false;
         }
         BluetoothRow other = (BluetoothRow) obj;
-        if (address == null) {
-            if (other.getAddress() != null) {
-                return false;
-            }
-        } else if (!address.equals(other.getAddress())) {
-            return false;
-        }
-        return true;
+        return key == other.getKey();
     }
 
     @Override
@@ -12,37 +12,94 @@ import android.app.Activity;
 import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import fi.siika.bttagwriter.R;
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.managers.DiscoveredDevice;
 
 /**
- *
+ * Adapter presenting BluetoothRowList in list view. Item IDs are packed
+ * addresses, so list view keeps scroll position and recycled rows over
+ * updates. List view is served from a snapshot of rows that is refreshed
+ * at most once per frame, so bursts of discovery results cause only one
+ * refresh.
  */
-public class BluetoothRowAdapter extends ArrayAdapter<Object> {
+public class BluetoothRowAdapter extends BaseAdapter implements
+        BluetoothRowList.Listener {
+
+    /**
+     * Views of one row, stored as tag of row view
+     */
+    private static class ViewHolder {
+        final TextView name;
+        final TextView address;
+        final ImageView icon;
+        BluetoothRow row = null;
+
+        ViewHolder(View view) {
+            name = (TextView) view.findViewById(R.id.btDeviceNameTextView);
+            address = (TextView) view.findViewById(R.id.btDeviceAddressTextView);
+            icon = (ImageView) view.findViewById(R.id.deviceTypeIcon);
+        }
+    }
+
+    private final static BluetoothRow[] NO_ROWS = new BluetoothRow[0];
 
-    private final List<BluetoothRow> list = new ArrayList<BluetoothRow>();
-    private final Activity activity;
+    private final BluetoothRowList list = new BluetoothRowList();
+    private final LayoutInflater inflater;
+    private final Choreographer choreographer;
+    private final String pairedPrefix;
+    private final String recentPrefix;
+    private BluetoothRow[] shown = NO_ROWS;
+    private ListView listView = null;
+    private boolean batchUpdate = false;
+    private boolean structureChanged = false;
+    private boolean publishScheduled = false;
     private int discoveredColor;
     private int pairedColor;
     private Drawable unknownIcon;
     private Drawable audioIcon;
 
+    private final Choreographer.FrameCallback publishCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    publishScheduled = false;
+                    publish();
+                }
+            };
+
     public BluetoothRowAdapter(Activity activity) {
-        super(activity, R.layout.bt_device_layout, R.id.btDeviceNameTextView);
         setDiscoveredColor(activity.getResources().getColor(R.color.bt_device_discovered_fgcolor));
         setPairedColor(activity.getResources().getColor(R.color.bt_device_paired_fgcolor));
         setAudioIcon(activity.getResources().getDrawable(R.drawable.audio_device_type));
         setUnknownIcon(activity.getResources().getDrawable(R.drawable.unknown_device_type));
-        this.activity = activity;
+        pairedPrefix = activity.getString(R.string.btscan_paired_str) + " ";
+        recentPrefix = activity.getString(R.string.btscan_recent_str) + " ";
+        inflater = activity.getLayoutInflater();
+        choreographer = Choreographer.getInstance();
+        list.setListener(this);
+    }
+
+    /**
+     * Set list view using this adapter. Used to update changed rows without
+     * refreshing the whole list.
+     *
+     * @param view List view
+     */
+    public void setListView(ListView view) {
+        listView = view;
     }
 
     public void setDiscoveredColor(int color) {
@@ -63,98 +120,277 @@ public class BluetoothRowAdapter extends ArrayAdapter<Object> {
 
     @Override
     public int getCount() {
-        return list.size();
+        return shown.length;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return shown[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return shown[position].getKey();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        View row = convertView;
-        if (row == null) {
-            LayoutInflater inflater = activity.getLayoutInflater();
-            row = inflater.inflate(R.layout.bt_device_layout, null);
+        View view = convertView;
+        ViewHolder holder;
+        if (view == null) {
+            view = inflater.inflate(R.layout.bt_device_layout, parent, false);
+            holder = new ViewHolder(view);
+            view.setTag(holder);
+        } else {
+            holder = (ViewHolder) view.getTag();
         }
 
-        BluetoothRow rowData = list.get(position);
+        bind(holder, shown[position]);
+        return view;
+    }
 
-        int colorUsed = rowData.isDeviceVisible() ? discoveredColor : pairedColor;
+    private void bind(ViewHolder holder, BluetoothRow row) {
+        holder.row = row;
+        int colorUsed = row.isDeviceVisible() ? discoveredColor : pairedColor;
 
-        TextView nameLine = (TextView) row.findViewById(R.id.btDeviceNameTextView);
-        if (nameLine != null) {
-            nameLine.setText(rowData.getName());
-            nameLine.setTextColor(colorUsed);
+        if (holder.name != null) {
+            holder.name.setText(row.getName());
+            holder.name.setTextColor(colorUsed);
         }
-        TextView addressLine = (TextView) row.findViewById(R.id.btDeviceAddressTextView);
-        ImageView image = (ImageView) row.findViewById(R.id.deviceTypeIcon);
 
-        if (image != null) {
-            if (rowData.isAudio()) {
-                image.setImageDrawable(audioIcon);
-            } else {
-                image.setImageDrawable(unknownIcon);
-            }
+        if (holder.icon != null) {
+            holder.icon.setImageDrawable(row.isAudio() ? audioIcon : unknownIcon);
         }
 
-        String addressValue = rowData.getAddress();
-        if (rowData.isPaired()) {
-            addressValue =
-                    activity.getResources().getString(R.string.btscan_paired_str) + " "
-                            + addressValue;
+        if (holder.address != null) {
+            holder.address.setText(getLabel(row));
+            holder.address.setTextColor(colorUsed);
         }
+    }
 
-        if (addressLine != null) {
-            addressLine.setText(addressValue);
-            addressLine.setTextColor(colorUsed);
+    /**
+     * Get address label of row. Label is built once and cached to row until
+     * state of row changes.
+     */
+    private CharSequence getLabel(BluetoothRow row) {
+        CharSequence label = row.getLabel();
+        if (label == null) {
+            if (row.isPaired()) {
+                label = pairedPrefix + row.getAddress();
+            } else if (!row.isDeviceVisible()) {
+                label = recentPrefix + row.getAddress();
+            } else {
+                label = row.getAddress();
+            }
+            row.setLabel(label);
         }
-
-        return (row);
+        return label;
     }
 
+    /**
+     * Get row shown in given position
+     *
+     * @param index Position in list view
+     * @return Row
+     */
     public BluetoothRow getRow(int index) {
-        return list.get(index);
+        return shown[index];
     }
 
-    @Override
+    /**
+     * Get number of devices, including changes not yet shown
+     *
+     * @return Number of devices
+     */
+    public int getDeviceCount() {
+        return list.size();
+    }
+
+    /**
+     * Find row of device
+     *
+     * @param key Packed address
+     * @return Row or null if device is not in list
+     */
+    public BluetoothRow findRow(long key) {
+        return list.find(key);
+    }
+
+    /**
+     * Remove all rows. Unlike other changes this is shown immediately.
+     */
     public void clear() {
         list.clear();
-        notifyDataSetChanged();
+        publish();
     }
 
     public void clearNonAudio() {
-        for (int i = list.size() - 1; i >= 0; --i) {
-            if (list.get(i).isAudio()) {
-                break;
-            } else {
-                list.remove(i);
+        list.clearNonAudio();
+    }
+
+    public void addDeviceIfNotPresent(BluetoothDevice device, boolean visible) {
+
+        String address = device.getAddress();
+        long key = BtAddress.pack(address);
+        if (key == BtAddress.INVALID) {
+            return;
+        }
+
+        boolean isPaired = device.getBondState() == BluetoothDevice.BOND_BONDED;
+        BluetoothClass btClass = device.getBluetoothClass();
+        boolean isAudio = btClass != null
+                && btClass.hasService(BluetoothClass.Service.AUDIO);
+
+        list.addOrUpdate(key, address, device.getName(), isPaired, isAudio,
+                visible, DiscoveredDevice.RSSI_UNKNOWN,
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Add or update batch of devices. List is refreshed only once.
+     *
+     * @param devices Devices added
+     */
+    public void addDevices(List<DiscoveredDevice> devices) {
+        long now = SystemClock.elapsedRealtime();
+        beginBatch();
+        try {
+            for (DiscoveredDevice device : devices) {
+                // Cached values are older than anything already in list
+                if (device.getSource() == DiscoveredDevice.Source.CACHE
+                        && list.find(device.getKey()) != null) {
+                    continue;
+                }
+                list.addOrUpdate(device.getKey(), device.getAddress(),
+                        device.getName(), device.isBonded(), device.isAudio(),
+                        device.isVisible(), device.getRssi(), now);
             }
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Limit number of rows. When limit is reached, devices seen least
+     * recently are removed. Paired and selected devices are kept.
+     *
+     * @param maxRows Maximum number of rows, 0 for no limit
+     */
+    public void setMaxRows(int maxRows) {
+        beginBatch();
+        try {
+            list.setMaxRows(maxRows);
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Set selected device, it will not be removed from list
+     *
+     * @param row Selected row or null
+     */
+    public void setSelected(BluetoothRow row) {
+        list.setProtectedKey(row != null ? row.getKey() : BtAddress.INVALID);
+    }
+
+    /**
+     * Remove devices not seen within given time. Paired and selected devices
+     * are kept.
+     *
+     * @param windowMillis Age in milliseconds
+     */
+    public void removeStale(long windowMillis) {
+        beginBatch();
+        try {
+            list.removeStale(SystemClock.elapsedRealtime() - windowMillis);
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void beginBatch() {
+        batchUpdate = true;
+    }
+
+    private void endBatch() {
+        batchUpdate = false;
+        if (structureChanged) {
+            schedulePublish();
+        }
+    }
+
+    /**
+     * Copy current rows to snapshot shown by list view
+     */
+    private void publish() {
+        if (publishScheduled) {
+            choreographer.removeFrameCallback(publishCallback);
+            publishScheduled = false;
+        }
+        structureChanged = false;
+
+        int count = list.size();
+        if (shown.length != count) {
+            shown = count > 0 ? new BluetoothRow[count] : NO_ROWS;
+        }
+        for (int i = 0; i < count; ++i) {
+            shown[i] = list.get(i);
         }
         notifyDataSetChanged();
     }
 
-    public void addDeviceIfNotPresent(BluetoothDevice device, boolean visible) {
+    private void schedulePublish() {
+        if (!publishScheduled) {
+            publishScheduled = true;
+            choreographer.postFrameCallback(publishCallback);
+        }
+    }
 
-        boolean isPaired = device.getBondState() == BluetoothDevice.BOND_BONDED;
-        boolean isAudio = device.getBluetoothClass().hasService(BluetoothClass.Service.AUDIO);
+    @Override
+    public void onRowsInserted(int position, int count) {
+        rowsChanged();
+    }
+
+    @Override
+    public void onRowsRemoved(int position, int count) {
+        rowsChanged();
+    }
 
-        BluetoothRow row = new BluetoothRow(device.getName(),
-                device.getAddress(), isPaired, isAudio);
-        row.setDeviceVisible(visible);
+    @Override
+    public void onRowMoved(int fromPosition, int toPosition) {
+        rowsChanged();
+    }
+
+    private void rowsChanged() {
+        structureChanged = true;
+        if (!batchUpdate) {
+            schedulePublish();
+        }
+    }
 
-        if (list.contains(row)) {
-            list.set(list.indexOf(row), row);
+    @Override
+    public void onRowChanged(int position) {
+        // Whole list is refreshed in next frame anyway
+        if (listView == null || structureChanged) {
             return;
         }
 
-        int location = 0;
-        for (location = 0; location < list.size(); ++location) {
-            BluetoothRow old = list.get(location);
-            if (row.isAudio() && !old.isAudio()) {
-                break;
-            }
-            if (row.isPaired() && !old.isPaired()) {
-                break;
+        // Only rebind the row if it is visible, ListView can not refresh
+        // single rows
+        BluetoothRow row = list.get(position);
+        for (int i = 0; i < listView.getChildCount(); ++i) {
+            Object tag = listView.getChildAt(i).getTag();
+            if (tag instanceof ViewHolder && ((ViewHolder) tag).row == row) {
+                bind((ViewHolder) tag, row);
+                return;
             }
         }
-        list.add(location, row);
-        notifyDataSetChanged();
     }
+
 }
@@ -0,0 +1,291 @@
+/*
+ * BluetoothRowList.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.ui;
+
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import fi.siika.bttagwriter.data.BtAddress;
+
+/**
+ * Sorted list of Bluetooth rows indexed by packed address. Rows are kept in
+ * audio, paired and other partitions, each sorted by name. Changes are
+ * reported to listener as position ranges.
+ * <p/>
+ * Size of list can be limited. When limit is reached, device seen least
+ * recently is removed. Paired devices and protected device (e.g. selected
+ * one) are never removed by the limit or by removeStale.
+ */
+public class BluetoothRowList {
+
+    /**
+     * Listener of list changes
+     */
+    public interface Listener {
+        void onRowsInserted(int position, int count);
+
+        void onRowsRemoved(int position, int count);
+
+        void onRowChanged(int position);
+
+        void onRowMoved(int fromPosition, int toPosition);
+    }
+
+    private final static Comparator<BluetoothRow> ORDER = new Comparator<BluetoothRow>() {
+        @Override
+        public int compare(BluetoothRow a, BluetoothRow b) {
+            int ret = a.getPartition() - b.getPartition();
+            if (ret != 0) {
+                return ret;
+            }
+            ret = compareNames(a.getName(), b.getName());
+            if (ret != 0) {
+                return ret;
+            }
+            return a.getKey() < b.getKey() ? -1 : (a.getKey() == b.getKey() ? 0 : 1);
+        }
+    };
+
+    private final List<BluetoothRow> mRows = new ArrayList<BluetoothRow>();
+    private final LongSparseArray<BluetoothRow> mIndex = new LongSparseArray<BluetoothRow>();
+    private Listener mListener = null;
+    private int mMaxRows = 0;
+    private long mProtectedKey = BtAddress.INVALID;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Limit size of list
+     *
+     * @param maxRows Maximum number of rows, 0 for no limit
+     */
+    public void setMaxRows(int maxRows) {
+        mMaxRows = maxRows;
+        evictOverLimit();
+    }
+
+    /**
+     * Set device that should not be removed from list
+     *
+     * @param key Packed address or BtAddress.INVALID
+     */
+    public void setProtectedKey(long key) {
+        mProtectedKey = key;
+    }
+
+    public int size() {
+        return mRows.size();
+    }
+
+    public BluetoothRow get(int position) {
+        return mRows.get(position);
+    }
+
+    /**
+     * Find row with given packed address
+     *
+     * @param key Packed address
+     * @return Row or null if not found
+     */
+    public BluetoothRow find(long key) {
+        return mIndex.get(key);
+    }
+
+    /**
+     * Get current position of row
+     *
+     * @param row Row in list
+     * @return Position or negative value if not in list
+     */
+    public int indexOf(BluetoothRow row) {
+        return Collections.binarySearch(mRows, row, ORDER);
+    }
+
+    /**
+     * Add new row, or update existing row with same address. New row object
+     * is only constructed for new addresses.
+     *
+     * @param key     Packed address
+     * @param address Address string
+     * @param name    Name of device
+     * @param paired  If device is paired
+     * @param audio   If device is audio device
+     * @param visible If device was found by discovery
+     * @param rssi    RSSI or DiscoveredDevice.RSSI_UNKNOWN
+     * @param now     Current time in milliseconds (elapsed realtime)
+     * @return Row added or updated
+     */
+    public BluetoothRow addOrUpdate(long key, String address, String name,
+                                    boolean paired, boolean audio, boolean visible,
+                                    short rssi, long now) {
+
+        BluetoothRow row = mIndex.get(key);
+
+        if (row == null) {
+            row = new BluetoothRow(name, address, paired, audio);
+            row.setDeviceVisible(visible);
+            row.markSeen(now, rssi);
+            int position = insertionPoint(row);
+            mRows.add(position, row);
+            mIndex.put(key, row);
+            if (mListener != null) {
+                mListener.onRowsInserted(position, 1);
+            }
+            evictOverLimit();
+            return row;
+        }
+
+        row.markSeen(now, rssi);
+        int from = indexOf(row);
+        if (!row.update(name, paired, audio, visible)) {
+            return row;
+        }
+
+        // Check if row still is in correct place
+        boolean inOrder = (from == 0 || ORDER.compare(mRows.get(from - 1), row) < 0)
+                && (from == mRows.size() - 1 || ORDER.compare(row, mRows.get(from + 1)) < 0);
+
+        if (inOrder) {
+            if (mListener != null) {
+                mListener.onRowChanged(from);
+            }
+        } else {
+            mRows.remove(from);
+            int to = insertionPoint(row);
+            mRows.add(to, row);
+            if (mListener != null) {
+                mListener.onRowMoved(from, to);
+                mListener.onRowChanged(to);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Remove all rows
+     */
+    public void clear() {
+        int count = mRows.size();
+        mRows.clear();
+        mIndex.clear();
+        if (mListener != null && count > 0) {
+            mListener.onRowsRemoved(0, count);
+        }
+    }
+
+    /**
+     * Remove all rows that are not in audio partition
+     */
+    public void clearNonAudio() {
+        int start = partitionStart(BluetoothRow.PARTITION_PAIRED);
+        int count = mRows.size() - start;
+        if (count <= 0) {
+            return;
+        }
+
+        for (int i = start; i < mRows.size(); ++i) {
+            mIndex.remove(mRows.get(i).getKey());
+        }
+        mRows.subList(start, mRows.size()).clear();
+
+        if (mListener != null) {
+            mListener.onRowsRemoved(start, count);
+        }
+    }
+
+    /**
+     * Remove devices that have not been seen after given time
+     *
+     * @param cutoff Time in milliseconds (elapsed realtime)
+     * @return Number of rows removed
+     */
+    public int removeStale(long cutoff) {
+        int removed = 0;
+        for (int i = mRows.size() - 1; i >= 0; --i) {
+            BluetoothRow row = mRows.get(i);
+            if (row.getLastSeen() < cutoff && !isProtected(row)) {
+                removeAt(i);
+                ++removed;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove least recently seen rows until list is inside the limit
+     */
+    private void evictOverLimit() {
+        while (mMaxRows > 0 && mRows.size() > mMaxRows) {
+            int oldest = -1;
+            for (int i = 0; i < mRows.size(); ++i) {
+                BluetoothRow row = mRows.get(i);
+                if (!isProtected(row) && (oldest < 0
+                        || row.getLastSeen() < mRows.get(oldest).getLastSeen())) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                return;
+            }
+            removeAt(oldest);
+        }
+    }
+
+    private boolean isProtected(BluetoothRow row) {
+        return row.isPaired() || row.getKey() == mProtectedKey;
+    }
+
+    private void removeAt(int position) {
+        BluetoothRow row = mRows.remove(position);
+        mIndex.remove(row.getKey());
+        if (mListener != null) {
+            mListener.onRowsRemoved(position, 1);
+        }
+    }
+
+    /**
+     * Find first position of given partition (or later partition)
+     *
+     * @param partition Partition searched
+     * @return Position
+     */
+    private int partitionStart(int partition) {
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRows.get(mid).getPartition() < partition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int insertionPoint(BluetoothRow row) {
+        int index = Collections.binarySearch(mRows, row, ORDER);
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    private static int compareNames(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : 1;
+        } else if (b == null) {
+            return -1;
+        }
+        return a.compareToIgnoreCase(b);
+    }
+}
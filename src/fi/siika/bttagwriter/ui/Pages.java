@@ -12,7 +12,8 @@ package fi.siika.bttagwriter.ui;
  * List of pages (or views) of application
  */
 public enum Pages {
-    START(0), ABOUT(1), BT_SELECT(2), EXTRA_OPTIONS(3), TAG(4), SUCCESS(5);
+    START(0), ABOUT(1), BT_SELECT(2), EXTRA_OPTIONS(3), TAG(4), SUCCESS(5),
+    BATCH(6);
 
     private final int mValue;
 
@@ -27,4 +28,19 @@ public enum Pages {
     public boolean equal(int value) {
         return toInt() == value;
     }
+
+    /**
+     * Get page with given value
+     *
+     * @param value Value of page
+     * @return Page or null if value is not valid
+     */
+    public static Pages fromInt(int value) {
+        for (Pages page : values()) {
+            if (page.equal(value)) {
+                return page;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,36 @@
+/*
+ * AuditResult.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.writers;
+
+/**
+ * Classification of audited tag
+ */
+public enum AuditResult {
+    /**
+     * Tag points to device in registry, and is locked if it should be
+     */
+    OK,
+    /**
+     * Address is in registry, but other content is for another device
+     */
+    WRONG_DEVICE,
+    /**
+     * Tag could not be read, or it does not have pairing record
+     */
+    UNREADABLE,
+    /**
+     * Tag should be read only but is not locked
+     */
+    UNLOCKED,
+    /**
+     * Address is not in registry
+     */
+    UNKNOWN;
+}
@@ -0,0 +1,147 @@
+/*
+ * AuditTechWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.Ndef;
+import android.util.Log;
+
+import java.io.IOException;
+
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.data.DeviceRegistry;
+import fi.siika.bttagwriter.data.OobScanner;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Checks tags against device registry without writing anything. Pairing
+ * record is parsed in place from data read from the tag, and its address
+ * and name are compared to registry, so auditing one tag only allocates
+ * what the NFC stack does. Result of last tag is available from getResult;
+ * writeToTag does not throw for tags that fail the audit.
+ */
+public class AuditTechWriter extends TagTechWriter {
+
+    private final static String TAG = "AuditTechWriter";
+
+    private final DeviceRegistry mRegistry;
+    private final Type2TagReader mReader = new Type2TagReader();
+    private final OobScanner.Result mScan = new OobScanner.Result();
+    private AuditResult mResult = AuditResult.UNREADABLE;
+    private int mSlot = DeviceRegistry.NOT_FOUND;
+
+    /**
+     * @param registry Registry of devices tags should point to
+     */
+    public AuditTechWriter(DeviceRegistry registry) {
+        mRegistry = registry;
+    }
+
+    @Override
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        mResult = AuditResult.UNREADABLE;
+        mSlot = DeviceRegistry.NOT_FOUND;
+        mScan.address = BtAddress.INVALID;
+
+        MifareUltralight mul = MifareUltralight.get(tag);
+        Ndef ndef = Ndef.get(tag);
+        if (mul != null) {
+            try {
+                mul.connect();
+                // Layout tells where dynamic lock bytes are. Original
+                // Ultralight stops responding after GET_VERSION, so it is
+                // activated again before reading.
+                Ntag21xLayout layout = Type2TagWriter.readLayout(
+                        new MifareUltralightIo(mul));
+                if (layout == null) {
+                    mul.close();
+                    mul.connect();
+                }
+                if (mReader.read(mul)) {
+                    boolean locked = mReader.isReadOnly()
+                            && mReader.isStaticLocked()
+                            && (layout == null
+                            || mReader.isDynamicLocked(layout));
+                    mResult = classify(mReader.getData(),
+                            mReader.getMessageOffset(),
+                            mReader.getMessageLength(), locked);
+                }
+                mul.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Failed to read tag: " + e.getMessage());
+            }
+        } else if (ndef != null) {
+            NdefMessage cached = ndef.getCachedNdefMessage();
+            if (cached != null) {
+                byte[] message = cached.toByteArray();
+                mResult = classify(message, 0, message.length,
+                        !ndef.isWritable());
+            }
+        }
+
+        Log.d(TAG, "Audit " + mResult + " " + BtAddress.unpack(mScan.address));
+    }
+
+    @Override
+    public void close(Tag tag) throws Exception {
+        MifareUltralight mul = MifareUltralight.get(tag);
+        if (mul != null) {
+            mul.close();
+        }
+    }
+
+    private AuditResult classify(byte[] message, int offset, int length,
+                                 boolean locked) {
+        if (!OobScanner.scan(message, offset, length, mScan)) {
+            return AuditResult.UNREADABLE;
+        }
+
+        mSlot = mRegistry.find(mScan.address);
+        if (mSlot == DeviceRegistry.NOT_FOUND) {
+            return AuditResult.UNKNOWN;
+        } else if (mScan.nameOffset >= 0 && !mRegistry.nameMatches(mSlot,
+                message, mScan.nameOffset, mScan.nameLength,
+                mScan.nameShortened)) {
+            return AuditResult.WRONG_DEVICE;
+        } else if (mRegistry.isReadOnly(mSlot) && !locked) {
+            return AuditResult.UNLOCKED;
+        }
+        return AuditResult.OK;
+    }
+
+    public DeviceRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /**
+     * @return Result of last tag
+     */
+    public AuditResult getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return Packed address found from last tag, or BtAddress.INVALID
+     */
+    public long getAddress() {
+        return mScan.address;
+    }
+
+    /**
+     * @return Registry slot of last tag, or DeviceRegistry.NOT_FOUND
+     */
+    public int getSlot() {
+        return mSlot;
+    }
+}
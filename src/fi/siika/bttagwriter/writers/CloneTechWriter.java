@@ -0,0 +1,268 @@
+/*
+ * CloneTechWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.IOFailureException;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Copies content of one source tag to any number of blank tags. First tag
+ * given to writeToTag is read and its NDEF message is cached together with
+ * TLV framed user memory image. All following tags are written with cached
+ * image as such. Only read only option of TagInformation is used.
+ */
+public class CloneTechWriter extends TagTechWriter {
+
+    private final static String TAG = "CloneTechWriter";
+
+    private byte[] mMessage = null;
+    private byte[] mPayload = null;
+    private boolean mCaptured = false;
+
+    @Override
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        mCaptured = false;
+        if (mMessage == null) {
+            capture(tag);
+            mCaptured = true;
+            return;
+        }
+
+        MifareUltralight mul = MifareUltralight.get(tag);
+        if (mul != null) {
+            writeUltralight(mul, info, metrics);
+            return;
+        }
+
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            writeNdef(ndef, info, metrics);
+            return;
+        }
+
+        NdefFormatable form = NdefFormatable.get(tag);
+        if (form != null) {
+            writeNdefFormatable(form, info, metrics);
+            return;
+        }
+
+        throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                "Tag technology not supported");
+    }
+
+    @Override
+    public void close(Tag tag) throws Exception {
+        MifareUltralight mul = MifareUltralight.get(tag);
+        if (mul != null) {
+            mul.close();
+            return;
+        }
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            ndef.close();
+            return;
+        }
+        NdefFormatable form = NdefFormatable.get(tag);
+        if (form != null) {
+            form.close();
+        }
+    }
+
+    /**
+     * @return true if last tag was read as source tag
+     */
+    public boolean wasCaptured() {
+        return mCaptured;
+    }
+
+    /**
+     * @return Size of cached NDEF message in bytes, 0 if source is not read
+     */
+    public int getMessageSize() {
+        return mMessage != null ? mMessage.length : 0;
+    }
+
+    /**
+     * @return User memory needed from blank Ultralight or NTAG tag, 0 if
+     * source is not read. Terminator TLV is left out if it does not fit.
+     */
+    public int getRequiredBytes() {
+        return mPayload != null ? mPayload.length - 1 : 0;
+    }
+
+    private void capture(Tag tag) throws WriteException {
+        byte[] message = null;
+
+        MifareUltralight mul = MifareUltralight.get(tag);
+        Ndef ndef = Ndef.get(tag);
+        if (mul != null) {
+            try {
+                mul.connect();
+                Type2TagReader reader = new Type2TagReader();
+                if (reader.read(mul)) {
+                    int offset = reader.getMessageOffset();
+                    message = Arrays.copyOfRange(reader.getData(), offset,
+                            offset + reader.getMessageLength());
+                }
+                mul.close();
+            } catch (IOException e) {
+                throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                        "Failed to read source tag");
+            }
+        } else if (ndef != null) {
+            NdefMessage cached = ndef.getCachedNdefMessage();
+            if (cached != null) {
+                message = cached.toByteArray();
+            }
+        }
+
+        if (message == null || message.length == 0) {
+            throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                    "Source tag does not have NDEF message");
+        }
+
+        // Frame once with terminator, it is dropped on tags without space
+        mPayload = Type2TagImage.generatePayload(message, Integer.MAX_VALUE);
+        mMessage = message;
+        Log.d(TAG, "Captured " + message.length + " byte message");
+    }
+
+    /**
+     * Get cached payload for tag with given user memory
+     *
+     * @throws OutOfSpaceException If payload does not fit
+     */
+    private byte[] getPayload(int userBytes) throws OutOfSpaceException {
+        if (userBytes >= mPayload.length) {
+            return mPayload;
+        } else if (userBytes == mPayload.length - 1) {
+            return Arrays.copyOf(mPayload, userBytes);
+        }
+        throw new OutOfSpaceException("Image of " + getRequiredBytes()
+                + " bytes does not fit to " + userBytes + " bytes");
+    }
+
+    private void writeUltralight(MifareUltralight mul, TagInformation info,
+                                 WriteMetrics metrics) throws WriteException {
+        try {
+            mul.connect();
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to connect to MUL");
+        }
+
+        // Original Ultralight and Ultralight C do not answer GET_VERSION,
+        // smallest layout is assumed for those. Tag stops responding after
+        // the unknown command, so it is activated again before writing.
+        Type2TagIo io = new MifareUltralightIo(mul);
+        Ntag21xLayout layout = Type2TagWriter.readLayout(io);
+        if (layout == null) {
+            layout = Ntag21xLayout.MF0ICU1;
+            try {
+                mul.close();
+                mul.connect();
+            } catch (IOException e) {
+                throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                        "Failed to reconnect to MUL");
+            }
+        }
+
+        // Capacity is checked before anything is written
+        byte[] payload = getPayload(layout.getUserBytes());
+        Type2TagWriter.writeImage(io, layout, payload, info.isReadOnly(),
+                info.isVerifyEnabled(), metrics);
+
+        try {
+            mul.close();
+        } catch (IOException e) {
+            throw new IOFailureException("Failed to close " + layout.getName(), e);
+        }
+
+        Log.d(TAG, "Cloned to " + layout.getName());
+    }
+
+    private void writeNdef(Ndef ndef, TagInformation info,
+                           WriteMetrics metrics) throws WriteException {
+        if (ndef.getMaxSize() < mMessage.length) {
+            throw new OutOfSpaceException("Message of " + mMessage.length
+                    + " bytes does not fit to " + ndef.getMaxSize() + " bytes");
+        }
+        if (!ndef.isWritable()) {
+            throw new WriteException(WriteError.WRITE_PROTECTED,
+                    "Tag is read only");
+        }
+
+        try {
+            ndef.connect();
+            ndef.writeNdefMessage(new NdefMessage(mMessage));
+        } catch (FormatException e) {
+            throw new WriteException(WriteError.SYSTEM_ERROR, e,
+                    "Cached message not valid");
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.FAILED_TO_WRITE, e,
+                    "Failed to write NDEF");
+        }
+        metrics.markWritten(mMessage.length);
+
+        if (info.isVerifyEnabled()) {
+            NdefTechWriter.verifyNdef(ndef, mMessage, metrics);
+            metrics.markVerified();
+        }
+
+        try {
+            if (info.isReadOnly()) {
+                ndef.makeReadOnly();
+            }
+            ndef.close();
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.FAILED_TO_FORMAT, e,
+                    "Failed to set read only");
+        }
+
+        Log.d(TAG, "Cloned to Ndef");
+    }
+
+    private void writeNdefFormatable(NdefFormatable form, TagInformation info,
+                                     WriteMetrics metrics) throws WriteException {
+        try {
+            form.connect();
+            NdefMessage msg = new NdefMessage(mMessage);
+            if (info.isReadOnly()) {
+                form.formatReadOnly(msg);
+            } else {
+                form.format(msg);
+            }
+            form.close();
+        } catch (FormatException e) {
+            throw new WriteException(WriteError.FAILED_TO_FORMAT, e,
+                    "Failed to format");
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.FAILED_TO_FORMAT, e,
+                    "Failed to format NdefFormatable");
+        }
+        metrics.markWritten(mMessage.length);
+
+        Log.d(TAG, "Cloned to NdefFormatable");
+    }
+}
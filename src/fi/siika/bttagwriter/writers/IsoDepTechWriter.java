@@ -0,0 +1,370 @@
+/*
+ * IsoDepTechWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import fi.siika.bttagwriter.data.BtTagGenerator;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.IOFailureException;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Writer for NFC Forum Type 4 tags. NDEF application and CC file are
+ * selected only once, and NDEF file is written with as large UPDATE BINARY
+ * commands as both the tag and the reader allow. NLEN is updated last.
+ * If tag does not have NDEF application with valid CC, or read only tag is
+ * requested, writing is passed to fallback writer. Without fallback read
+ * only tags are not accepted.
+ */
+public class IsoDepTechWriter extends TagTechWriter {
+
+    private final static String TAG = "IsoDepWriter";
+
+    private final static byte[] CMD_SELECT_NDEF_APP = new byte[]{
+            0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+            (byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01, 0x00};
+    private final static byte[] CMD_SELECT_CC_FILE = new byte[]{
+            0x00, (byte) 0xA4, 0x00, 0x0C, 0x02, (byte) 0xE1, 0x03};
+
+    private final static byte INS_SELECT = (byte) 0xA4;
+    private final static byte INS_READ_BINARY = (byte) 0xB0;
+    private final static byte INS_UPDATE_BINARY = (byte) 0xD6;
+
+    private final static int CC_LENGTH = 15;
+    private final static int NLEN_SIZE = 2;
+    private final static int APDU_HEADER_SIZE = 5;
+    private final static int STATUS_SIZE = 2;
+    private final static int SHORT_APDU_MAX_DATA = 255;
+    private final static byte ACCESS_GRANTED = 0x00;
+    private final static byte TLV_NDEF_FILE_CONTROL = 0x04;
+    // Smallest MLe and MLc allowed by Type 4 Tag specification
+    private final static int MIN_MAX_READ_LENGTH = 0x0F;
+    private final static int MIN_MAX_WRITE_LENGTH = 0x01;
+
+    private final TagTechWriter mFallback;
+    private boolean mUseFallback = false;
+
+    /**
+     * Content of CC file we care about
+     */
+    private static class CapabilityContainer {
+        int maxReadLength;
+        int maxWriteLength;
+        byte[] ndefFileId;
+        int maxNdefFileSize;
+        byte writeAccess;
+    }
+
+    /**
+     * @param fallback Writer used if tag can not be written directly, can be
+     *                 null
+     */
+    public IsoDepTechWriter(TagTechWriter fallback) {
+        mFallback = fallback;
+    }
+
+    @Override
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        if (info.isReadOnly()) {
+            // Type 4 tags do not have generic way to lock the NDEF file
+            if (mFallback == null) {
+                throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                        "Type 4 tag can not be made read only");
+            }
+            useFallback(tag, info, metrics);
+            return;
+        }
+
+        mUseFallback = false;
+        IsoDep isoDep = IsoDep.get(tag);
+
+        try {
+            isoDep.connect();
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to connect to IsoDep");
+        }
+
+        boolean fallback;
+        try {
+            fallback = !write(isoDep, info, metrics);
+        } finally {
+            closeQuietly(isoDep);
+        }
+
+        if (fallback) {
+            useFallback(tag, info, metrics);
+        }
+    }
+
+    /**
+     * Write connected tag. Connection is left open.
+     *
+     * @return false if tag does not have valid NDEF application and fallback
+     * writer should be used
+     */
+    private boolean write(IsoDep isoDep, TagInformation info,
+                          WriteMetrics metrics) throws WriteException {
+
+        CapabilityContainer cc;
+        try {
+            cc = selectAndReadCc(isoDep);
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to read CC");
+        }
+
+        if (cc == null) {
+            if (mFallback == null) {
+                throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                        "Valid NDEF application not found");
+            }
+            return false;
+        }
+
+        if (cc.writeAccess != ACCESS_GRANTED) {
+            throw new WriteException(WriteError.WRITE_PROTECTED,
+                    "NDEF file is write protected");
+        }
+
+        NdefMessage msg;
+        try {
+            msg = BtTagGenerator.generateNdefMessageForBtTag(info,
+                    cc.maxNdefFileSize - NLEN_SIZE);
+        } catch (UnsupportedEncodingException e) {
+            throw new WriteException(WriteError.SYSTEM_ERROR, e, "Encoding exception");
+        }
+
+        byte[] message = msg.toByteArray();
+        if (message.length + NLEN_SIZE > cc.maxNdefFileSize) {
+            throw new OutOfSpaceException("Message " + message.length
+                    + " too large for NDEF file " + cc.maxNdefFileSize);
+        }
+
+        int chunk = Math.min(cc.maxWriteLength, SHORT_APDU_MAX_DATA);
+        chunk = Math.min(chunk, isoDep.getMaxTransceiveLength() - APDU_HEADER_SIZE);
+
+        try {
+            if (!transceiveOk(isoDep, buildSelectFile(cc.ndefFileId))) {
+                throw new WriteException(WriteError.FAILED_TO_WRITE,
+                        "Failed to select NDEF file");
+            }
+            writeNdefFile(isoDep, message, chunk);
+        } catch (IOException e) {
+            throw new IOFailureException("Failed to write NDEF file", e);
+        }
+        metrics.markWritten(message.length + NLEN_SIZE);
+
+        if (info.isVerifyEnabled()) {
+            int readChunk = Math.min(cc.maxReadLength, SHORT_APDU_MAX_DATA);
+            readChunk = Math.min(readChunk,
+                    isoDep.getMaxTransceiveLength() - STATUS_SIZE);
+            verifyNdefFile(isoDep, message, readChunk, metrics);
+            metrics.markVerified();
+        }
+
+        Log.d(TAG, "Type 4 tag written with " + chunk + " byte chunks");
+        return true;
+    }
+
+    /*
+     * Errors are already reported, or tag is written, when connection is
+     * closed. Failing close does not change the result.
+     */
+    private static void closeQuietly(IsoDep isoDep) {
+        try {
+            isoDep.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close IsoDep: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close(Tag tag) throws Exception {
+        if (mUseFallback) {
+            mFallback.close(tag);
+        } else {
+            IsoDep.get(tag).close();
+        }
+    }
+
+    private void useFallback(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+        Log.d(TAG, "Using " + mFallback.toString());
+        mUseFallback = true;
+        mFallback.writeToTag(tag, info, metrics);
+    }
+
+    /**
+     * Select NDEF application and CC file, and read CC
+     *
+     * @param isoDep Connected tag
+     * @return Capability container or null if tag does not have NDEF
+     * application or its CC is not valid
+     * @throws IOException If connection fails
+     */
+    private static CapabilityContainer selectAndReadCc(IsoDep isoDep)
+            throws IOException {
+
+        if (!transceiveOk(isoDep, CMD_SELECT_NDEF_APP)
+                || !transceiveOk(isoDep, CMD_SELECT_CC_FILE)) {
+            return null;
+        }
+
+        byte[] res = isoDep.transceive(buildReadBinary(0, CC_LENGTH));
+        if (!isOk(res) || res.length < CC_LENGTH + 2) {
+            return null;
+        }
+
+        CapabilityContainer cc = new CapabilityContainer();
+        cc.maxReadLength = readUnsignedShort(res, 3);
+        cc.maxWriteLength = readUnsignedShort(res, 5);
+        // NDEF File Control TLV starts from byte 7 (T = 0x04, L = 0x06)
+        if (cc.maxReadLength < MIN_MAX_READ_LENGTH
+                || cc.maxWriteLength < MIN_MAX_WRITE_LENGTH
+                || res[7] != TLV_NDEF_FILE_CONTROL) {
+            Log.w(TAG, "Invalid CC: MLe " + cc.maxReadLength + ", MLc "
+                    + cc.maxWriteLength + ", TLV " + res[7]);
+            return null;
+        }
+        cc.ndefFileId = new byte[]{res[9], res[10]};
+        cc.maxNdefFileSize = readUnsignedShort(res, 11);
+        cc.writeAccess = res[14];
+
+        Log.d(TAG, "CC: MLe " + cc.maxReadLength + ", MLc "
+                + cc.maxWriteLength + ", max NDEF " + cc.maxNdefFileSize);
+
+        return cc;
+    }
+
+    /**
+     * Write message to selected NDEF file. If message and NLEN fit to single
+     * command those are written at once. Otherwise NLEN is cleared first and
+     * written after the message.
+     *
+     * @param isoDep  Connected tag with NDEF file selected
+     * @param message Binary NDEF message
+     * @param chunk   Maximum data bytes per command
+     * @throws IOException    If connection fails
+     * @throws WriteException If tag refuses the write
+     */
+    private static void writeNdefFile(IsoDep isoDep, byte[] message, int chunk)
+            throws IOException, WriteException {
+
+        byte[] nlen = new byte[]{(byte) (message.length >> 8),
+                (byte) message.length};
+
+        if (message.length + NLEN_SIZE <= chunk) {
+            byte[] data = new byte[message.length + NLEN_SIZE];
+            System.arraycopy(nlen, 0, data, 0, NLEN_SIZE);
+            System.arraycopy(message, 0, data, NLEN_SIZE, message.length);
+            updateBinary(isoDep, 0, data, 0, data.length);
+            return;
+        }
+
+        updateBinary(isoDep, 0, new byte[NLEN_SIZE], 0, NLEN_SIZE);
+        for (int i = 0; i < message.length; i += chunk) {
+            int len = Math.min(chunk, message.length - i);
+            updateBinary(isoDep, NLEN_SIZE + i, message, i, len);
+        }
+        updateBinary(isoDep, 0, nlen, 0, NLEN_SIZE);
+    }
+
+    /**
+     * Read selected NDEF file back and compare it to the written message
+     *
+     * @param isoDep  Connected tag with NDEF file selected
+     * @param message Binary NDEF message written
+     * @param chunk   Maximum data bytes per read command
+     * @param metrics Metrics updated with round trips
+     * @throws WriteException If data read does not match
+     */
+    private static void verifyNdefFile(IsoDep isoDep, byte[] message, int chunk,
+                                       WriteMetrics metrics) throws WriteException {
+
+        int total = message.length + NLEN_SIZE;
+        for (int offset = 0; offset < total; offset += chunk) {
+            int len = Math.min(chunk, total - offset);
+            byte[] res;
+            try {
+                res = isoDep.transceive(buildReadBinary(offset, len));
+            } catch (IOException e) {
+                throw new IOFailureException(WriteError.VERIFICATION_FAILED, e,
+                        "Failed to read back offset " + offset);
+            }
+            metrics.countVerifyRoundTrip();
+
+            if (!isOk(res) || res.length < len + 2) {
+                throw new WriteException(WriteError.VERIFICATION_FAILED,
+                        "Failed to read back offset " + offset);
+            }
+            for (int i = 0; i < len; ++i) {
+                int pos = offset + i;
+                byte expected = pos < NLEN_SIZE
+                        ? (byte) (message.length >> (8 * (NLEN_SIZE - 1 - pos)))
+                        : message[pos - NLEN_SIZE];
+                if (res[i] != expected) {
+                    throw new WriteException(WriteError.VERIFICATION_FAILED,
+                            "Mismatch at offset " + pos);
+                }
+            }
+        }
+    }
+
+    private static void updateBinary(IsoDep isoDep, int offset, byte[] data,
+                                     int start, int len) throws IOException, WriteException {
+        byte[] cmd = new byte[APDU_HEADER_SIZE + len];
+        cmd[0] = 0x00;
+        cmd[1] = INS_UPDATE_BINARY;
+        cmd[2] = (byte) (offset >> 8);
+        cmd[3] = (byte) offset;
+        cmd[4] = (byte) len;
+        System.arraycopy(data, start, cmd, APDU_HEADER_SIZE, len);
+
+        if (!transceiveOk(isoDep, cmd)) {
+            throw new WriteException(WriteError.FAILED_TO_WRITE,
+                    "UPDATE BINARY refused at offset " + offset);
+        }
+    }
+
+    private static byte[] buildSelectFile(byte[] fileId) {
+        return new byte[]{0x00, INS_SELECT, 0x00, 0x0C, 0x02,
+                fileId[0], fileId[1]};
+    }
+
+    private static byte[] buildReadBinary(int offset, int len) {
+        return new byte[]{0x00, INS_READ_BINARY, (byte) (offset >> 8),
+                (byte) offset, (byte) len};
+    }
+
+    private static boolean transceiveOk(IsoDep isoDep, byte[] cmd)
+            throws IOException {
+        return isOk(isoDep.transceive(cmd));
+    }
+
+    private static boolean isOk(byte[] res) {
+        return res != null && res.length >= 2
+                && res[res.length - 2] == (byte) 0x90
+                && res[res.length - 1] == 0x00;
+    }
+
+    private static int readUnsignedShort(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * MifareUltralightIo.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+
+/**
+ * Page commands over Android MifareUltralight
+ */
+class MifareUltralightIo implements Type2TagIo {
+
+    private final MifareUltralight mTag;
+
+    /**
+     * @param tag Tag, connected by caller
+     */
+    MifareUltralightIo(MifareUltralight tag) {
+        mTag = tag;
+    }
+
+    @Override
+    public byte[] readPages(int page) throws IOException {
+        return mTag.readPages(page);
+    }
+
+    @Override
+    public void writePage(int page, byte[] data) throws IOException {
+        mTag.writePage(page, data);
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        return mTag.transceive(data);
+    }
+}
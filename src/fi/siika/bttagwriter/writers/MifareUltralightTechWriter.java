@@ -14,7 +14,6 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
 
 import fi.siika.bttagwriter.data.TagInformation;
 import fi.siika.bttagwriter.exceptions.IOFailureException;
@@ -31,8 +30,6 @@ public class MifareUltralightTechWriter extends TagTechWriter {
     private final static String TAG = "MUWriter";
 
     private final static int START_INTLOCK_MIFARE_UL_PAGE = 2;
-    private final static int START_CC_MIFARE_UL_PAGE = 3;
-    private final static int START_NDEF_MIFARE_UL_PAGE = 4;
     private final static byte CC_NDEF_BYTE = (byte) 0xE1;
     private final static byte CC_NDEF_VERSION_1_1_BYTE = (byte) 0x11;
     private final static byte CC_NO_SECURITY_BYTE = (byte) 0x00;
@@ -45,10 +42,11 @@ public class MifareUltralightTechWriter extends TagTechWriter {
      *
      * @param tag  Tag where information is written
      * @param info Information written
+     * @param metrics Metrics updated while writing
      * @throws WriteException Throws exception if error
      */
     @Override
-    public void writeToTag(Tag tag, TagInformation info)
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
             throws WriteException {
 
         MifareUltralight mul = MifareUltralight.get(tag);
@@ -106,11 +104,28 @@ public class MifareUltralightTechWriter extends TagTechWriter {
         }
 
         // Try to write data
+        Type2TagIo io = new MifareUltralightIo(mul);
         try {
-            writeData(mul, intLock, cc, payload);
+            Type2TagWriter.writeData(io, cc, payload);
         } catch (IOException e) {
             throw new IOFailureException("Failed to write to MUL", e);
         }
+        metrics.markWritten(cc.length + payload.length);
+
+        // Verify before locking, lock bits can not be cleared afterwards
+        if (info.isVerifyEnabled()) {
+            Type2TagWriter.verifyData(io, cc, payload, metrics);
+            metrics.markVerified();
+        }
+
+        //Write IntLock if given
+        if (intLock != null) {
+            try {
+                mul.writePage(START_INTLOCK_MIFARE_UL_PAGE, intLock);
+            } catch (IOException e) {
+                throw new IOFailureException("Failed to lock MUL", e);
+            }
+        }
 
         //Finally activate locking if needed
         //TODO: what 0x26 is? find documentation and proper name for it
@@ -137,25 +152,4 @@ public class MifareUltralightTechWriter extends TagTechWriter {
         MifareUltralight mul = MifareUltralight.get(tag);
         mul.close();
     }
-
-    private static void writeData(MifareUltralight tag,
-                                  byte[] intLock, byte[] cc, byte[] payload) throws IOException {
-
-        //Write payload
-        int pageNum = START_NDEF_MIFARE_UL_PAGE;
-        for (int i = 0; i < payload.length; i = i + 4) {
-            byte[] page = Arrays.copyOfRange(payload, i, i + 4);
-            tag.writePage(pageNum, page);
-            pageNum += 1;
-        }
-
-        //Write CC
-        tag.writePage(START_CC_MIFARE_UL_PAGE, cc);
-
-        //Write IntLock if given
-        if (intLock != null) {
-            tag.writePage(START_INTLOCK_MIFARE_UL_PAGE, intLock);
-        }
-    }
-
 }
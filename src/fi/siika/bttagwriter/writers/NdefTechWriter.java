@@ -17,10 +17,10 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 import fi.siika.bttagwriter.data.BtTagGenerator;
 import fi.siika.bttagwriter.data.TagInformation;
-import fi.siika.bttagwriter.data.TagType;
 import fi.siika.bttagwriter.exceptions.IOFailureException;
 import fi.siika.bttagwriter.exceptions.WriteException;
 
@@ -36,17 +36,18 @@ public class NdefTechWriter extends TagTechWriter {
      * @see fi.siika.bttagwriter.TagTechWriter#writeToTag(android.nfc.Tag, fi.siika.bttagwriter.TagWriter.TagInformation)
      */
     @Override
-    public void writeToTag(Tag tag, TagInformation info) throws WriteException {
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
 
         Ndef ndef = Ndef.get(tag);
 
         if (ndef != null) {
-            writeToNdef(ndef, info, info.getType());
+            writeToNdef(ndef, info, metrics);
             return;
         } else {
             NdefFormatable form = NdefFormatable.get(tag);
             if (form != null) {
-                writeToNdefFormatable(form, info);
+                writeToNdefFormatable(form, info, metrics);
                 return;
             }
         }
@@ -70,8 +71,8 @@ public class NdefTechWriter extends TagTechWriter {
         }
     }
 
-    private void writeToNdef(Ndef tag, TagInformation info, TagType type) throws
-            WriteException {
+    private void writeToNdef(Ndef tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
 
         Log.d(TAG, "Ndef writing...");
 
@@ -81,8 +82,9 @@ public class NdefTechWriter extends TagTechWriter {
             throw new IOFailureException(WriteError.CONNECTION_LOST, e, "Failed to connect with Ndef");
         }
 
+        NdefMessage msg;
         try {
-            NdefMessage msg = BtTagGenerator.generateNdefMessageForBtTag(info,
+            msg = BtTagGenerator.generateNdefMessageForBtTag(info,
                     tag.getMaxSize());
             tag.writeNdefMessage(msg);
         } catch (UnsupportedEncodingException e) {
@@ -92,7 +94,14 @@ public class NdefTechWriter extends TagTechWriter {
         } catch (IOException e) {
             throw new WriteException(WriteError.FAILED_TO_WRITE, e, "Failed to write NDEF");
         }
+        byte[] written = msg.toByteArray();
+        metrics.markWritten(written.length);
 
+        // Verify before locking, read only can not be reverted
+        if (info.isVerifyEnabled()) {
+            verifyNdef(tag, written, metrics);
+            metrics.markVerified();
+        }
 
         if (info.isReadOnly()) {
             try {
@@ -111,8 +120,8 @@ public class NdefTechWriter extends TagTechWriter {
         Log.d(TAG, "Ndef written");
     }
 
-    private void writeToNdefFormatable(NdefFormatable tag, TagInformation info)
-            throws WriteException {
+    private void writeToNdefFormatable(NdefFormatable tag, TagInformation info,
+                                       WriteMetrics metrics) throws WriteException {
 
         Log.d(TAG, "NdefFormatable writing...");
 
@@ -150,6 +159,9 @@ public class NdefTechWriter extends TagTechWriter {
             }
         }
 
+        // NdefFormatable does not offer a way to read the message back
+        metrics.markWritten(msg.toByteArray().length);
+
         try {
             tag.close();
         } catch (IOException e) {
@@ -160,4 +172,35 @@ public class NdefTechWriter extends TagTechWriter {
 
     }
 
+    /**
+     * Read NDEF message back from tag and compare it to the written message
+     *
+     * @param tag     Tag where message was written
+     * @param written Binary presentation of written message
+     * @param metrics Metrics updated with round trips
+     * @throws WriteException If message read does not match written message
+     */
+    static void verifyNdef(Ndef tag, byte[] written, WriteMetrics metrics)
+            throws WriteException {
+
+        NdefMessage read;
+        try {
+            read = tag.getNdefMessage();
+        } catch (FormatException e) {
+            throw new WriteException(WriteError.VERIFICATION_FAILED, e,
+                    "Failed to parse NDEF read back");
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.VERIFICATION_FAILED, e,
+                    "Failed to read NDEF back");
+        }
+        metrics.countVerifyRoundTrip();
+
+        if (read == null || !Arrays.equals(written, read.toByteArray())) {
+            throw new WriteException(WriteError.VERIFICATION_FAILED,
+                    "NDEF read back does not match");
+        }
+
+        Log.d(TAG, "Verified " + written.length + " bytes");
+    }
+
 }
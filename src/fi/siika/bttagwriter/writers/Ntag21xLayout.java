@@ -0,0 +1,210 @@
+/*
+ * Ntag21xLayout.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.writers;
+
+/**
+ * Memory layouts of NXP NTAG21x and Mifare Ultralight EV1 tags. Layout is
+ * resolved from GET_VERSION response of the tag. Values are from the NTAG21x
+ * and MF0ULx1 data sheets.
+ */
+public class Ntag21xLayout {
+
+    /**
+     * GET_VERSION command byte
+     */
+    public final static byte CMD_GET_VERSION = 0x60;
+
+    /**
+     * Length of GET_VERSION response
+     */
+    public final static int VERSION_LENGTH = 8;
+
+    /**
+     * First page of user memory
+     */
+    public final static int FIRST_USER_PAGE = 4;
+
+    /**
+     * First page covered by dynamic lock bits (pages before it are covered by
+     * static lock bytes)
+     */
+    private final static int FIRST_DYNAMIC_LOCK_PAGE = 16;
+
+    private final static int PAGE_SIZE = 4;
+    private final static byte VENDOR_NXP = 0x04;
+    private final static byte PRODUCT_ULTRALIGHT = 0x03;
+    private final static byte PRODUCT_NTAG = 0x04;
+
+    public final static Ntag21xLayout NTAG210 =
+            new Ntag21xLayout("NTAG210", 48, (byte) 0x06, 0);
+    public final static Ntag21xLayout NTAG212 =
+            new Ntag21xLayout("NTAG212", 128, (byte) 0x10, 2);
+    public final static Ntag21xLayout NTAG213 =
+            new Ntag21xLayout("NTAG213", 144, (byte) 0x12, 2);
+    public final static Ntag21xLayout NTAG215 =
+            new Ntag21xLayout("NTAG215", 504, (byte) 0x3E, 16);
+    public final static Ntag21xLayout NTAG216 =
+            new Ntag21xLayout("NTAG216", 888, (byte) 0x6D, 16);
+    public final static Ntag21xLayout MF0UL11 =
+            new Ntag21xLayout("MF0UL11", 48, (byte) 0x06, 0);
+    public final static Ntag21xLayout MF0UL21 =
+            new Ntag21xLayout("MF0UL21", 128, (byte) 0x10, 4);
+    /**
+     * Original Mifare Ultralight. Does not support GET_VERSION, so it is
+     * never returned by fromVersion.
+     */
+    public final static Ntag21xLayout MF0ICU1 =
+            new Ntag21xLayout("MF0ICU1", 48, (byte) 0x06, 0);
+
+    private final static Ntag21xLayout[] LAYOUTS = new Ntag21xLayout[]{
+            NTAG210, NTAG212, NTAG213, NTAG215, NTAG216, MF0UL11, MF0UL21,
+            MF0ICU1};
+
+    private final String mName;
+    private final int mUserBytes;
+    private final byte mCcSize;
+    private final int mLockGranularity;
+
+    /**
+     * @param name            Name of tag type
+     * @param userBytes       Size of user memory in bytes
+     * @param ccSize          Size byte written to CC
+     * @param lockGranularity Pages locked by one dynamic lock bit, 0 if tag
+     *                        does not have dynamic lock bytes
+     */
+    private Ntag21xLayout(String name, int userBytes, byte ccSize,
+                          int lockGranularity) {
+        mName = name;
+        mUserBytes = userBytes;
+        mCcSize = ccSize;
+        mLockGranularity = lockGranularity;
+    }
+
+    /**
+     * Resolve layout from GET_VERSION response
+     *
+     * @param version Response of GET_VERSION command
+     * @return Layout or null if tag is not known NTAG21x or Ultralight EV1
+     */
+    public static Ntag21xLayout fromVersion(byte[] version) {
+        if (version == null || version.length < VERSION_LENGTH
+                || version[1] != VENDOR_NXP) {
+            return null;
+        }
+
+        byte product = version[2];
+        byte storage = version[6];
+
+        if (product == PRODUCT_NTAG) {
+            switch (storage) {
+                case 0x0B:
+                    return NTAG210;
+                case 0x0E:
+                    return NTAG212;
+                case 0x0F:
+                    return NTAG213;
+                case 0x11:
+                    return NTAG215;
+                case 0x13:
+                    return NTAG216;
+                default:
+                    return null;
+            }
+        } else if (product == PRODUCT_ULTRALIGHT) {
+            switch (storage) {
+                case 0x0B:
+                    return MF0UL11;
+                case 0x0E:
+                    return MF0UL21;
+                default:
+                    return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find layout by name
+     *
+     * @param name Name of tag type (e.g. "NTAG213"), case is ignored
+     * @return Layout or null if name is not known
+     */
+    public static Ntag21xLayout fromName(String name) {
+        for (Ntag21xLayout layout : LAYOUTS) {
+            if (layout.mName.equalsIgnoreCase(name)) {
+                return layout;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get exact size of user memory
+     *
+     * @return Size in bytes
+     */
+    public int getUserBytes() {
+        return mUserBytes;
+    }
+
+    /**
+     * Get size byte of capability container
+     *
+     * @return Size byte written to CC
+     */
+    public byte getCcSize() {
+        return mCcSize;
+    }
+
+    /**
+     * Get page right after user memory
+     *
+     * @return Page number of dynamic lock bytes, or -1 if tag does not have
+     * dynamic lock bytes
+     */
+    public int getDynamicLockPage() {
+        if (mLockGranularity == 0) {
+            return -1;
+        }
+        return FIRST_USER_PAGE + mUserBytes / PAGE_SIZE;
+    }
+
+    /**
+     * Construct dynamic lock page that write protects all user memory
+     * pages not covered by static lock bytes. Block lock bits and RFUI bits
+     * are left untouched.
+     *
+     * @return Page content, or null if tag does not have dynamic lock bytes
+     */
+    public byte[] generateDynamicLockPage() {
+        if (mLockGranularity == 0) {
+            return null;
+        }
+
+        int pages = getDynamicLockPage() - FIRST_DYNAMIC_LOCK_PAGE;
+        int bits = (pages + mLockGranularity - 1) / mLockGranularity;
+
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = 0; i < bits; ++i) {
+            page[i / 8] |= (byte) (1 << (i % 8));
+        }
+        return page;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Ntag21xTechWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+import android.util.Log;
+
+import java.io.IOException;
+
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.IOFailureException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Writer for NTAG21x and Mifare Ultralight EV1 tags. Uses exact user memory
+ * size of the tag and sets dynamic lock bytes when tag is made read only.
+ * If tag does not identify itself as one of the known types, writing is
+ * passed to fallback writer.
+ */
+public class Ntag21xTechWriter extends TagTechWriter {
+
+    private final static String TAG = "Ntag21xWriter";
+
+    private final TagTechWriter mFallback;
+    private boolean mUseFallback = false;
+
+    /**
+     * @param fallback Writer used if tag is not NTAG21x or Ultralight EV1
+     */
+    public Ntag21xTechWriter(TagTechWriter fallback) {
+        mFallback = fallback;
+    }
+
+    @Override
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        MifareUltralight mul = MifareUltralight.get(tag);
+
+        try {
+            mul.connect();
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to connect to NTAG");
+        }
+
+        Type2TagIo io = new MifareUltralightIo(mul);
+        Ntag21xLayout layout = Type2TagWriter.readLayout(io);
+        if (layout == null) {
+            Log.d(TAG, "Not NTAG21x or EV1, using " + mFallback.toString());
+            try {
+                mul.close();
+            } catch (IOException e) {
+                throw new IOFailureException("Failed to close MUL", e);
+            }
+            mUseFallback = true;
+            mFallback.writeToTag(tag, info, metrics);
+            return;
+        }
+
+        Log.d(TAG, "Writing " + layout.getName() + " with "
+                + layout.getUserBytes() + " bytes of user memory");
+
+        Type2TagWriter.write(io, layout, info, metrics);
+
+        try {
+            mul.close();
+        } catch (IOException e) {
+            throw new IOFailureException("Failed to close " + layout.getName(), e);
+        }
+
+        Log.d(TAG, layout.getName() + " written");
+    }
+
+    @Override
+    public void close(Tag tag) throws Exception {
+        if (mUseFallback) {
+            mFallback.close(tag);
+        } else {
+            MifareUltralight mul = MifareUltralight.get(tag);
+            mul.close();
+        }
+    }
+}
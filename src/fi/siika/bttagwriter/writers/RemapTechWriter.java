@@ -0,0 +1,255 @@
+/*
+ * RemapTechWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.Ndef;
+import android.util.Log;
+
+import java.io.IOException;
+
+import fi.siika.bttagwriter.data.AddressRemap;
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.data.OobScanner;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.IOFailureException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Re-provisions existing tags of devices which Bluetooth address has
+ * changed. Address is read from the tag, mapped to new address and patched
+ * in place, so length of message and rest of the tag stay the same. On
+ * Ultralight and NTAG tags only the pages that changed are written.
+ * TagInformation given to writeToTag is not used.
+ */
+public class RemapTechWriter extends TagTechWriter {
+
+    private final static String TAG = "RemapTechWriter";
+
+    private final AddressRemap mRemap;
+    private long mOldAddress = BtAddress.INVALID;
+    private long mNewAddress = BtAddress.INVALID;
+    private int mPagesWritten = 0;
+
+    /**
+     * @param remap Mapping from old to new addresses
+     */
+    public RemapTechWriter(AddressRemap remap) {
+        mRemap = remap;
+    }
+
+    @Override
+    public void writeToTag(Tag tag, TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        mOldAddress = BtAddress.INVALID;
+        mNewAddress = BtAddress.INVALID;
+        mPagesWritten = 0;
+
+        MifareUltralight mul = MifareUltralight.get(tag);
+        if (mul != null) {
+            remapUltralight(mul, metrics);
+            return;
+        }
+
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            remapNdef(ndef, metrics);
+            return;
+        }
+
+        throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                "Tag does not have NDEF content");
+    }
+
+    @Override
+    public void close(Tag tag) throws Exception {
+        MifareUltralight mul = MifareUltralight.get(tag);
+        if (mul != null) {
+            mul.close();
+        } else {
+            Ndef ndef = Ndef.get(tag);
+            if (ndef != null) {
+                ndef.close();
+            }
+        }
+    }
+
+    /**
+     * @return Packed address found from last tag, or BtAddress.INVALID
+     */
+    public long getOldAddress() {
+        return mOldAddress;
+    }
+
+    /**
+     * @return Packed address written to last tag, or BtAddress.INVALID
+     */
+    public long getNewAddress() {
+        return mNewAddress;
+    }
+
+    /**
+     * @return Pages written to last Ultralight or NTAG tag
+     */
+    public int getPagesWritten() {
+        return mPagesWritten;
+    }
+
+    /**
+     * Look up new address of message, and patch message if found
+     *
+     * @return Number of addresses replaced
+     * @throws WriteException If message does not have stale address
+     */
+    private int patch(byte[] message, int offset, int length)
+            throws WriteException {
+        mOldAddress = OobScanner.readAddress(message, offset, length);
+        if (mOldAddress == BtAddress.INVALID) {
+            throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                    "No pairing record found");
+        }
+        mNewAddress = mRemap.get(mOldAddress);
+        if (mNewAddress == BtAddress.INVALID) {
+            throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                    "Address " + BtAddress.unpack(mOldAddress) + " not remapped");
+        }
+        return OobScanner.replaceAddress(message, offset, length, mOldAddress,
+                mNewAddress);
+    }
+
+    private void remapUltralight(MifareUltralight mul, WriteMetrics metrics)
+            throws WriteException {
+        try {
+            mul.connect();
+
+            Type2TagReader reader = new Type2TagReader();
+            if (!reader.read(mul)) {
+                throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                        "No NDEF message found");
+            }
+            if (reader.isReadOnly()) {
+                throw new WriteException(WriteError.WRITE_PROTECTED,
+                        "Tag is read only");
+            }
+
+            byte[] data = reader.getData();
+            int start = reader.getMessageOffset();
+            int length = reader.getMessageLength();
+            byte[] patched = new byte[start + length];
+            System.arraycopy(data, 0, patched, 0, patched.length);
+            patch(patched, start, length);
+
+            // Write only pages where bytes changed
+            int pageSize = Type2TagImage.PAGE_SIZE;
+            int firstPage = start / pageSize;
+            int lastPage = (start + length - 1) / pageSize;
+            byte[] page = new byte[pageSize];
+            int firstChanged = -1;
+            int lastChanged = -1;
+            for (int p = firstPage; p <= lastPage; ++p) {
+                boolean changed = false;
+                for (int i = 0; i < pageSize; ++i) {
+                    int index = p * pageSize + i;
+                    page[i] = index < patched.length ? patched[index] : data[index];
+                    changed |= page[i] != data[index];
+                }
+                if (changed) {
+                    mul.writePage(Ntag21xLayout.FIRST_USER_PAGE + p, page);
+                    System.arraycopy(page, 0, data, p * pageSize, pageSize);
+                    if (firstChanged < 0) {
+                        firstChanged = p;
+                    }
+                    lastChanged = p;
+                    ++mPagesWritten;
+                }
+            }
+            metrics.markWritten(mPagesWritten * pageSize);
+
+            if (firstChanged >= 0) {
+                verifyUltralight(mul, data, firstChanged, lastChanged, metrics);
+            }
+            metrics.markVerified();
+            mul.close();
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to remap MUL");
+        }
+
+        Log.d(TAG, "Remapped " + BtAddress.unpack(mOldAddress) + " -> "
+                + BtAddress.unpack(mNewAddress) + " with " + mPagesWritten
+                + " page writes");
+    }
+
+    /**
+     * Read changed pages back and compare those to patched data area
+     */
+    private void verifyUltralight(MifareUltralight mul, byte[] data,
+                                  int firstPage, int lastPage,
+                                  WriteMetrics metrics)
+            throws IOException, WriteException {
+        int pageSize = Type2TagImage.PAGE_SIZE;
+        int p = firstPage;
+        while (p <= lastPage) {
+            byte[] read = mul.readPages(Ntag21xLayout.FIRST_USER_PAGE + p);
+            metrics.countVerifyRoundTrip();
+            int pages = Math.min(4, lastPage - p + 1);
+            if (read == null || read.length < pages * pageSize) {
+                throw new WriteException(WriteError.VERIFICATION_FAILED,
+                        "Short read at page " + p);
+            }
+            for (int i = 0; i < pages * pageSize; ++i) {
+                if (read[i] != data[p * pageSize + i]) {
+                    throw new WriteException(WriteError.VERIFICATION_FAILED,
+                            "Mismatch at page " + (p + i / pageSize));
+                }
+            }
+            p += pages;
+        }
+    }
+
+    /*
+     * Generic NDEF tags: message cached at discovery is used, so only
+     * single write is needed in the session.
+     */
+    private void remapNdef(Ndef ndef, WriteMetrics metrics)
+            throws WriteException {
+        NdefMessage cached = ndef.getCachedNdefMessage();
+        if (cached == null) {
+            throw new WriteException(WriteError.TAG_NOT_ACCEPTED,
+                    "No NDEF message found");
+        }
+        if (!ndef.isWritable()) {
+            throw new WriteException(WriteError.WRITE_PROTECTED,
+                    "Tag is read only");
+        }
+
+        byte[] message = cached.toByteArray();
+        patch(message, 0, message.length);
+
+        try {
+            ndef.connect();
+            ndef.writeNdefMessage(new NdefMessage(message));
+            ndef.close();
+        } catch (FormatException e) {
+            throw new WriteException(WriteError.SYSTEM_ERROR, e,
+                    "Patched message not valid");
+        } catch (IOException e) {
+            throw new IOFailureException(WriteError.CONNECTION_LOST, e,
+                    "Failed to remap NDEF");
+        }
+        metrics.markWritten(message.length);
+
+        Log.d(TAG, "Remapped " + BtAddress.unpack(mOldAddress) + " -> "
+                + BtAddress.unpack(mNewAddress));
+    }
+}
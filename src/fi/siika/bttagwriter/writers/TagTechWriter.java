@@ -8,12 +8,10 @@
  */
 package fi.siika.bttagwriter.writers;
 
-import android.nfc.NdefMessage;
 import android.nfc.Tag;
 
 import java.io.UnsupportedEncodingException;
 
-import fi.siika.bttagwriter.data.BtTagGenerator;
 import fi.siika.bttagwriter.data.TagInformation;
 import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
 import fi.siika.bttagwriter.exceptions.WriteException;
@@ -23,17 +21,16 @@ import fi.siika.bttagwriter.exceptions.WriteException;
  */
 public abstract class TagTechWriter {
 
-    private final static byte TLV_NDEF_MESSAGE = 3;
-
     /**
      * Interface called to write information to given tag
      *
      * @param tag Tag where information is written
      * @param info Information written
+     * @param metrics Metrics updated while writing
      * @throws WriteException Exception if write fails
      */
-    public abstract void writeToTag(Tag tag, TagInformation info)
-            throws WriteException;
+    public abstract void writeToTag(Tag tag, TagInformation info,
+                                    WriteMetrics metrics) throws WriteException;
 
     /**
      * Put specific close functionality behind this function
@@ -43,7 +40,9 @@ public abstract class TagTechWriter {
     public abstract void close(Tag tag) throws Exception;
 
     /**
-     * Generate payload with single ndef message. Adds TLV frame for it.
+     * Generate payload with single ndef message. Adds TLV frame for it, and
+     * terminator TLV if there is space left for it. Messages of 255 bytes or
+     * longer are framed with 3 byte length.
      *
      * @param info      Information used to generate payload
      * @param sizeLimit Limit in bytes
@@ -54,29 +53,20 @@ public abstract class TagTechWriter {
     protected static byte[] generatePayload(TagInformation info,
                                             int sizeLimit) throws WriteException,
             UnsupportedEncodingException {
+        return Type2TagImage.generatePayload(info, sizeLimit);
+    }
 
-        final int SPACE_TAKEN_BY_TLV = 2;
-
-        NdefMessage ndefMessage = BtTagGenerator.generateNdefMessageForBtTag(
-                info, (short) (sizeLimit - SPACE_TAKEN_BY_TLV));
-
-        if (ndefMessage == null) {
-            throw new OutOfSpaceException("Not enough space for payload");
-        }
-
-        // Construct the payload
-        byte[] message = ndefMessage.toByteArray();
-        int msgLen = message.length;
-
-        if ((msgLen + 2) > sizeLimit) {
-            throw new OutOfSpaceException("Not enough space for message");
-        }
-
-        byte[] payload = new byte[msgLen + SPACE_TAKEN_BY_TLV];
-        payload[0] = TLV_NDEF_MESSAGE;
-        payload[1] = (byte) (msgLen);
-        System.arraycopy(message, 0, payload, SPACE_TAKEN_BY_TLV, msgLen);
-        return payload;
+    /**
+     * Frame given NDEF message to TLV blocks
+     *
+     * @param message   Binary NDEF message
+     * @param sizeLimit Limit in bytes
+     * @return Payload in byte array
+     * @throws OutOfSpaceException If message does not fit to given limit
+     */
+    protected static byte[] generatePayload(byte[] message, int sizeLimit)
+            throws OutOfSpaceException {
+        return Type2TagImage.generatePayload(message, sizeLimit);
     }
 
 }
@@ -11,9 +11,11 @@ package fi.siika.bttagwriter.writers;
 
 import android.app.Activity;
 import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
 import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.Ndef;
 import android.nfc.tech.NdefFormatable;
+import android.os.SystemClock;
 import android.util.Log;
 
 import fi.siika.bttagwriter.data.TagInformation;
@@ -36,12 +38,17 @@ public class TagWriter implements Runnable {
     private TagInformation mInfo;
     private Tag mTag;
     private TagTechWriter mTechWriter;
+    private WriteMetrics mMetrics;
+    private TapFilter mTapFilter = null;
 
     /**
      * Interface for write result listener
      */
     public interface TagWriterListener {
-        void onSuccess();
+        /**
+         * @param metrics Timing information of the write
+         */
+        void onSuccess(WriteMetrics metrics);
 
         void onFailure(WriteError error);
     }
@@ -54,15 +61,48 @@ public class TagWriter implements Runnable {
         mListener = listener;
     }
 
+    /**
+     * Set filter of repeated taps. Filter can be shared by many writers.
+     *
+     * @param filter Filter, or null to process all taps
+     */
+    public void setTapFilter(TapFilter filter) {
+        mTapFilter = filter;
+    }
+
+    /*
+     * Check filter before anything else is done, so repeated tap of tag
+     * just written does not cost anything
+     */
+    private boolean isRepeatedTap(Tag tag) {
+        if (mTapFilter != null
+                && !mTapFilter.accept(tag.getId(), SystemClock.elapsedRealtime())) {
+            Log.d(TAG, "Repeated tap ignored");
+            return true;
+        }
+        return false;
+    }
+
     private TagTechWriter resolveTechWriter(Tag tag) {
+        TagTechWriter writer = null;
         if (Ndef.get(tag) != null || NdefFormatable.get(tag) != null) {
-            return new NdefTechWriter();
+            writer = new NdefTechWriter();
         } else if (MifareUltralight.get(tag) != null) {
-            return new MifareUltralightTechWriter();
-        } else {
+            writer = new MifareUltralightTechWriter();
+        }
+
+        // NTAG21x, Ultralight EV1 and Type 4 tags are written directly when
+        // possible
+        if (MifareUltralight.get(tag) != null) {
+            writer = new Ntag21xTechWriter(writer);
+        } else if (IsoDep.get(tag) != null) {
+            writer = new IsoDepTechWriter(writer);
+        }
+
+        if (writer == null) {
             Log.w(TAG, "Tag not supported!");
-            return null;
         }
+        return writer;
     }
 
     /**
@@ -71,17 +111,20 @@ public class TagWriter implements Runnable {
      *
      * @param tag         Tag now connected with device
      * @param information Information written to tag
-     * @return true if write process and thread was started. false if given
-     * tag is not supported
+     * @return true if write process and thread was started, or tap was
+     * ignored as repeated. false if given tag is not supported
      */
     public boolean writeToTag(Tag tag, TagInformation information) {
 
-        if (mTag != null) {
+        if (isRepeatedTap(tag)) {
+            return true;
+        } else if (mTag != null) {
+            failed(tag);
             return false;
         }
 
-        mTechWriter = resolveTechWriter(tag);
-        if (mTechWriter == null) {
+        TagTechWriter techWriter = resolveTechWriter(tag);
+        if (techWriter == null) {
             String[] techs = tag.getTechList();
             StringBuilder sb = new StringBuilder();
             for (String tech : techs) {
@@ -89,18 +132,52 @@ public class TagWriter implements Runnable {
                 sb.append(" ");
             }
             Log.w(TAG, "Supported Tech not found: " + sb.toString());
+            failed(tag);
+            return false;
+        }
+
+        return start(tag, information, techWriter);
+    }
+
+    /**
+     * Start write process with given tech writer. Used by batch modes that
+     * do not write TagInformation as such.
+     *
+     * @param tag         Tag now connected with device
+     * @param information Information given to tech writer
+     * @param techWriter  Tech writer used
+     * @return true if write process and thread was started, or tap was
+     * ignored as repeated
+     */
+    public boolean writeToTag(Tag tag, TagInformation information,
+                              TagTechWriter techWriter) {
+
+        if (isRepeatedTap(tag)) {
+            return true;
+        }
+        return start(tag, information, techWriter);
+    }
+
+    private boolean start(Tag tag, TagInformation information,
+                          TagTechWriter techWriter) {
+
+        if (mTag != null) {
+            failed(tag);
             return false;
-        } else {
-            Log.d(TAG, "Tech writer " + mTechWriter.toString());
         }
 
+        mTechWriter = techWriter;
+        Log.d(TAG, "Tech writer " + mTechWriter.toString());
+
         try {
             mInfo = (TagInformation) (information.clone());
             Log.e(TAG, "Failed to clone the tag information");
         } catch (CloneNotSupportedException e) {
+            failed(tag);
             return false;
         }
         mCancelled = false;
+        mMetrics = new WriteMetrics();
         mTag = tag;
 
         Thread thread = new Thread(this);
@@ -114,9 +191,11 @@ public class TagWriter implements Runnable {
      */
     public void run() {
         WriteError error = null;
+        final WriteMetrics metrics = mMetrics;
 
+        metrics.markStarted();
         try {
-            mTechWriter.writeToTag(mTag, mInfo);
+            mTechWriter.writeToTag(mTag, mInfo, metrics);
         } catch (WriteException e) {
             error = e.getErrorCode();
             Log.w(TAG, "Write exception: " + e.getMessage());
@@ -129,6 +208,10 @@ public class TagWriter implements Runnable {
             error = WriteError.CONNECTION_LOST;
         }
 
+        metrics.markFinished();
+        Log.d(TAG, "Write metrics: " + metrics.toString());
+
+        final byte[] uid = mTag.getId();
         mTag = null;
 
         if (error != null) {
@@ -137,6 +220,7 @@ public class TagWriter implements Runnable {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    setTapResult(uid, false);
                     mListener.onFailure(errorArg);
                 }
             });
@@ -144,12 +228,29 @@ public class TagWriter implements Runnable {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    mListener.onSuccess();
+                    setTapResult(uid, true);
+                    mListener.onSuccess(metrics);
                 }
             });
         }
     }
 
+    /*
+     * Called in UI thread, like TapFilter.accept
+     */
+    private void setTapResult(byte[] uid, boolean success) {
+        if (mTapFilter != null) {
+            mTapFilter.setResult(uid, success, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /*
+     * Tap accepted by filter was not processed, so it can be retried
+     */
+    private void failed(Tag tag) {
+        setTapResult(tag.getId(), false);
+    }
+
     /**
      * Cancel current write process if started
      */
@@ -0,0 +1,146 @@
+/*
+ * TapFilter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import java.util.Arrays;
+
+/**
+ * Filters repeated presentations of same tag, keyed by tag UID. Tag kept
+ * near the device can be delivered many times; presentations of a tag that
+ * is being written, however long it takes, or was written successfully
+ * within the window, are ignored. Tags that failed can be retried
+ * immediately. Last outcome is remembered for a small fixed number of tags,
+ * least recently used tag is forgotten first. Not thread safe, use from UI
+ * thread.
+ */
+public class TapFilter {
+
+    public final static int DEFAULT_CAPACITY = 8;
+
+    /**
+     * Outcome of last presentation of tag
+     */
+    public enum Outcome {
+        PENDING, SUCCESS, FAILURE;
+    }
+
+    private final byte[][] mUids;
+    private final Outcome[] mOutcomes;
+    private final long[] mTimes;
+    private final long[] mLastUsed;
+    private long mUseCounter = 0;
+    private long mWindowMs;
+
+    /**
+     * @param capacity Number of tags remembered
+     * @param windowMs Time in milliseconds repeated presentations are ignored
+     */
+    public TapFilter(int capacity, long windowMs) {
+        mUids = new byte[capacity][];
+        mOutcomes = new Outcome[capacity];
+        mTimes = new long[capacity];
+        mLastUsed = new long[capacity];
+        mWindowMs = windowMs;
+    }
+
+    public void setWindow(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Check if tag should be processed. If it is, tag is marked pending
+     * until setResult is called. Ignored presentation of written tag extends the window, so tag kept
+     * on the device is not written again.
+     *
+     * @param uid UID of tag, tags without UID are always accepted
+     * @param now Current time in milliseconds (monotonic)
+     * @return false if presentation should be ignored
+     */
+    public boolean accept(byte[] uid, long now) {
+        if (uid == null) {
+            return true;
+        }
+
+        int index = find(uid);
+        if (index >= 0) {
+            // Pending tag is blocked until its result is set
+            if (mOutcomes[index] == Outcome.PENDING) {
+                return false;
+            } else if (mOutcomes[index] == Outcome.SUCCESS
+                    && now - mTimes[index] < mWindowMs) {
+                mTimes[index] = now;
+                mLastUsed[index] = ++mUseCounter;
+                return false;
+            }
+        }
+
+        set(index, uid, Outcome.PENDING, now);
+        return true;
+    }
+
+    /**
+     * Store outcome of processing tag
+     *
+     * @param uid     UID of tag
+     * @param success true if tag was processed successfully
+     * @param now     Current time in milliseconds (monotonic)
+     */
+    public void setResult(byte[] uid, boolean success, long now) {
+        if (uid != null) {
+            set(find(uid), uid, success ? Outcome.SUCCESS : Outcome.FAILURE,
+                    now);
+        }
+    }
+
+    /**
+     * @param uid UID of tag
+     * @return Last outcome of tag, or null if tag is not remembered
+     */
+    public Outcome getOutcome(byte[] uid) {
+        int index = uid != null ? find(uid) : -1;
+        return index >= 0 ? mOutcomes[index] : null;
+    }
+
+    private int find(byte[] uid) {
+        for (int i = 0; i < mUids.length; ++i) {
+            if (mUids[i] != null && Arrays.equals(mUids[i], uid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isEvictedBefore(int a, int b) {
+        boolean aPending = mOutcomes[a] == Outcome.PENDING;
+        if (aPending != (mOutcomes[b] == Outcome.PENDING)) {
+            return !aPending;
+        }
+        return mLastUsed[a] < mLastUsed[b];
+    }
+
+    private void set(int index, byte[] uid, Outcome outcome, long now) {
+        if (index < 0) {
+            // Replace empty or least recently used slot, pending tags are
+            // kept if there are others
+            index = 0;
+            for (int i = 0; i < mUids.length; ++i) {
+                if (mUids[i] == null) {
+                    index = i;
+                    break;
+                } else if (isEvictedBefore(i, index)) {
+                    index = i;
+                }
+            }
+            mUids[index] = uid.clone();
+        }
+        mOutcomes[index] = outcome;
+        mTimes[index] = now;
+        mLastUsed[index] = ++mUseCounter;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Type2TagImage.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import fi.siika.bttagwriter.data.BtTagEncoder;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+
+/**
+ * Memory content of NFC Forum Type 2 tags (Ultralight and NTAG21x): TLV
+ * framed payload, capability container and lock bytes. Does not depend on
+ * Android, so page images can be also generated outside of the application.
+ */
+public class Type2TagImage {
+
+    public final static int PAGE_SIZE = 4;
+    public final static int STATIC_LOCK_PAGE = 2;
+    public final static int CC_PAGE = 3;
+
+    private final static byte TLV_NDEF_MESSAGE = 0x03;
+    private final static byte TLV_TERMINATOR = (byte) 0xFE;
+    private final static int TLV_SHORT_HEADER_SIZE = 2;
+    private final static int TLV_LONG_HEADER_SIZE = 4;
+    private final static int TLV_LONG_LENGTH_MARKER = 0xFF;
+    private final static int TLV_MAX_LENGTH = 0xFFFE;
+
+    private final static byte CC_NDEF_BYTE = (byte) 0xE1;
+    private final static byte CC_NDEF_VERSION_1_0_BYTE = (byte) 0x10;
+    private final static byte CC_NO_SECURITY_BYTE = (byte) 0x00;
+    private final static byte CC_READ_ONLY_SECURITY_BYTE = (byte) 0x0F;
+
+    private Type2TagImage() {
+    }
+
+    /**
+     * Generate payload with single ndef message. Adds TLV frame for it, and
+     * terminator TLV if there is space left for it. Messages of 255 bytes or
+     * longer are framed with 3 byte length.
+     *
+     * @param info      Information used to generate payload
+     * @param sizeLimit Limit in bytes
+     * @return Payload in byte array
+     * @throws OutOfSpaceException If content does not fit to given limit
+     */
+    public static byte[] generatePayload(TagInformation info, int sizeLimit)
+            throws OutOfSpaceException {
+
+        byte[] message = BtTagEncoder.encode(info,
+                sizeLimit - TLV_SHORT_HEADER_SIZE);
+
+        // Long message needs more space for the header, regenerate to fit
+        if (message.length >= TLV_LONG_LENGTH_MARKER
+                && message.length + TLV_LONG_HEADER_SIZE > sizeLimit) {
+            message = BtTagEncoder.encode(info,
+                    sizeLimit - TLV_LONG_HEADER_SIZE);
+        }
+
+        return generatePayload(message, sizeLimit);
+    }
+
+    /**
+     * Frame given NDEF message to TLV blocks
+     *
+     * @param message   Binary NDEF message
+     * @param sizeLimit Limit in bytes
+     * @return Payload in byte array
+     * @throws OutOfSpaceException If message does not fit to given limit
+     */
+    public static byte[] generatePayload(byte[] message, int sizeLimit)
+            throws OutOfSpaceException {
+
+        int msgLen = message.length;
+        int headerLen = msgLen < TLV_LONG_LENGTH_MARKER
+                ? TLV_SHORT_HEADER_SIZE : TLV_LONG_HEADER_SIZE;
+
+        if (msgLen > TLV_MAX_LENGTH || (msgLen + headerLen) > sizeLimit) {
+            throw new OutOfSpaceException("Not enough space for message");
+        }
+
+        int payloadLen = headerLen + msgLen;
+        boolean terminator = payloadLen < sizeLimit;
+        if (terminator) {
+            payloadLen += 1;
+        }
+
+        byte[] payload = new byte[payloadLen];
+        payload[0] = TLV_NDEF_MESSAGE;
+        if (headerLen == TLV_SHORT_HEADER_SIZE) {
+            payload[1] = (byte) msgLen;
+        } else {
+            payload[1] = (byte) TLV_LONG_LENGTH_MARKER;
+            payload[2] = (byte) (msgLen >> 8);
+            payload[3] = (byte) msgLen;
+        }
+        System.arraycopy(message, 0, payload, headerLen, msgLen);
+        if (terminator) {
+            payload[payloadLen - 1] = TLV_TERMINATOR;
+        }
+        return payload;
+    }
+
+    /**
+     * Construct capability container page
+     *
+     * @param layout   Layout of tag
+     * @param readOnly If true, CC marks tag read only
+     * @return CC page
+     */
+    public static byte[] generateCc(Ntag21xLayout layout, boolean readOnly) {
+        return new byte[]{CC_NDEF_BYTE, CC_NDEF_VERSION_1_0_BYTE,
+                layout.getCcSize(), readOnly ? CC_READ_ONLY_SECURITY_BYTE
+                : CC_NO_SECURITY_BYTE};
+    }
+
+    /**
+     * Construct static lock page that write protects pages 3 to 15. Serial
+     * number bytes of the page are ignored by the tag.
+     *
+     * @return Page content
+     */
+    public static byte[] generateStaticLockPage() {
+        return new byte[]{0x00, 0x00, -1, -1};
+    }
+
+    /**
+     * Get size of page image of given layout
+     *
+     * @param layout Layout of tag
+     * @return Size in bytes
+     */
+    public static int getImageSize(Ntag21xLayout layout) {
+        int pages = Ntag21xLayout.FIRST_USER_PAGE
+                + layout.getUserBytes() / PAGE_SIZE;
+        if (layout.getDynamicLockPage() >= 0) {
+            pages = layout.getDynamicLockPage() + 1;
+        }
+        return pages * PAGE_SIZE;
+    }
+
+    /**
+     * Build page image of tag from page 0 to the last user memory page, or
+     * to dynamic lock page if tag has one. Pages 0 and 1 (UID) are left
+     * empty. Lock bytes are only set if tag is made read only.
+     *
+     * @param layout   Layout of tag
+     * @param payload  Payload written to user memory
+     * @param readOnly If true, CC and lock bytes make tag read only
+     * @param image    Array where image is written, getImageSize bytes are
+     *                 used starting from offset. Must be zeroed.
+     * @param offset   Start offset in array
+     * @throws OutOfSpaceException If payload does not fit to user memory
+     */
+    public static void build(Ntag21xLayout layout, byte[] payload,
+                             boolean readOnly, byte[] image, int offset)
+            throws OutOfSpaceException {
+
+        if (payload.length > layout.getUserBytes()) {
+            throw new OutOfSpaceException("Payload " + payload.length
+                    + " too large for " + layout.getName());
+        }
+
+        if (readOnly) {
+            System.arraycopy(generateStaticLockPage(), 0, image,
+                    offset + STATIC_LOCK_PAGE * PAGE_SIZE, PAGE_SIZE);
+            byte[] dynLock = layout.generateDynamicLockPage();
+            if (dynLock != null) {
+                System.arraycopy(dynLock, 0, image,
+                        offset + layout.getDynamicLockPage() * PAGE_SIZE,
+                        PAGE_SIZE);
+            }
+        }
+        System.arraycopy(generateCc(layout, readOnly), 0, image,
+                offset + CC_PAGE * PAGE_SIZE, PAGE_SIZE);
+        System.arraycopy(payload, 0, image,
+                offset + Ntag21xLayout.FIRST_USER_PAGE * PAGE_SIZE,
+                payload.length);
+    }
+}
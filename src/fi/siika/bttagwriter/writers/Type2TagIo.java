@@ -0,0 +1,46 @@
+/*
+ * Type2TagIo.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import java.io.IOException;
+
+/**
+ * Page commands of connected Ultralight or NTAG tag. Application implements
+ * this over MifareUltralight and tools over reader hardware, so both write
+ * tags with Type2TagWriter.
+ */
+public interface Type2TagIo {
+
+    /**
+     * Read 4 pages starting from given page
+     *
+     * @param page First page
+     * @return 16 bytes
+     * @throws IOException If command failed
+     */
+    byte[] readPages(int page) throws IOException;
+
+    /**
+     * Write one page
+     *
+     * @param page Page number
+     * @param data 4 bytes
+     * @throws IOException If command failed
+     */
+    void writePage(int page, byte[] data) throws IOException;
+
+    /**
+     * Send raw command to tag
+     *
+     * @param data Command
+     * @return Response
+     * @throws IOException If command failed or is not supported
+     */
+    byte[] transceive(byte[] data) throws IOException;
+}
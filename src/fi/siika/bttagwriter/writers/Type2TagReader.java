@@ -0,0 +1,207 @@
+/*
+ * Type2TagReader.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+
+/**
+ * Reads static lock bytes, capability container and NDEF message TLV of
+ * connected Ultralight or NTAG tag. Pages are read only until the end of
+ * the message, four pages per command. Reader can be reused for many tags;
+ * data buffer is only reallocated when larger tag is read.
+ */
+class Type2TagReader {
+
+    private final static byte CC_NDEF_BYTE = (byte) 0xE1;
+    private final static int CC_READ_ONLY_MASK = 0x0F;
+
+    private final static byte TLV_NULL = 0x00;
+    private final static byte TLV_NDEF_MESSAGE = 0x03;
+    private final static byte TLV_TERMINATOR = (byte) 0xFE;
+    private final static int TLV_LONG_LENGTH_MARKER = 0xFF;
+
+    private final static int READ_BURST_BYTES = 4 * Type2TagImage.PAGE_SIZE;
+
+    private MifareUltralight mTag = null;
+    private final byte[] mLock = new byte[Type2TagImage.PAGE_SIZE];
+    private final byte[] mCc = new byte[Type2TagImage.PAGE_SIZE];
+    private byte[] mData = new byte[READ_BURST_BYTES];
+    private int mDataSize = 0;
+    private int mAvailable = 0;
+    private int mMessageOffset = -1;
+    private int mMessageLength = 0;
+    private int mReadCommands = 0;
+
+    /**
+     * Read lock bytes, CC and NDEF message
+     *
+     * @param tag Connected tag
+     * @return true if tag has NDEF CC and message TLV
+     * @throws IOException If tag can not be read
+     */
+    boolean read(MifareUltralight tag) throws IOException {
+        mTag = tag;
+        mAvailable = 0;
+        mMessageOffset = -1;
+        mMessageLength = 0;
+        mReadCommands = 0;
+
+        // First read returns lock page, CC page and two data pages
+        byte[] head = readBurst(Type2TagImage.STATIC_LOCK_PAGE);
+        System.arraycopy(head, 0, mLock, 0, mLock.length);
+        System.arraycopy(head, mLock.length, mCc, 0, mCc.length);
+        if (mCc[0] != CC_NDEF_BYTE) {
+            return false;
+        }
+
+        // Size byte of CC is data area size divided by 8
+        mDataSize = Math.max((mCc[2] & 0xFF) * 8, READ_BURST_BYTES);
+        if (mData.length < mDataSize) {
+            mData = new byte[mDataSize];
+        }
+        int headData = mLock.length + mCc.length;
+        mAvailable = Math.min(head.length - headData, mDataSize);
+        System.arraycopy(head, headData, mData, 0, mAvailable);
+
+        int index = 0;
+        while (true) {
+            if (!ensure(index + 1)) {
+                return false;
+            }
+            byte type = mData[index];
+            if (type == TLV_NULL) {
+                ++index;
+                continue;
+            } else if (type == TLV_TERMINATOR || !ensure(index + 2)) {
+                return false;
+            }
+
+            int length = mData[index + 1] & 0xFF;
+            int header = 2;
+            if (length == TLV_LONG_LENGTH_MARKER) {
+                if (!ensure(index + 4)) {
+                    return false;
+                }
+                length = ((mData[index + 2] & 0xFF) << 8)
+                        | (mData[index + 3] & 0xFF);
+                header = 4;
+            }
+
+            if (type == TLV_NDEF_MESSAGE) {
+                if (!ensure(index + header + length)) {
+                    return false;
+                }
+                mMessageOffset = index + header;
+                mMessageLength = length;
+                return true;
+            }
+            index += header + length;
+        }
+    }
+
+    /**
+     * Read pages until given number of data area bytes is available
+     *
+     * @return false if data area is smaller
+     */
+    private boolean ensure(int bytes) throws IOException {
+        if (bytes > mDataSize) {
+            return false;
+        }
+        while (mAvailable < bytes) {
+            byte[] read = readBurst(Ntag21xLayout.FIRST_USER_PAGE
+                    + mAvailable / Type2TagImage.PAGE_SIZE);
+            int len = Math.min(READ_BURST_BYTES, mDataSize - mAvailable);
+            System.arraycopy(read, 0, mData, mAvailable, len);
+            mAvailable += len;
+        }
+        return true;
+    }
+
+    private byte[] readBurst(int page) throws IOException {
+        byte[] read = mTag.readPages(page);
+        ++mReadCommands;
+        if (read == null || read.length < READ_BURST_BYTES) {
+            throw new IOException("Short read at page " + page);
+        }
+        return read;
+    }
+
+    /**
+     * @return true if CC marks tag read only
+     */
+    boolean isReadOnly() {
+        return (mCc[3] & CC_READ_ONLY_MASK) == CC_READ_ONLY_MASK;
+    }
+
+    /**
+     * @return true if static lock bytes protect all pages they cover
+     */
+    boolean isStaticLocked() {
+        return mLock[2] == (byte) 0xFF && mLock[3] == (byte) 0xFF;
+    }
+
+    /**
+     * Read dynamic lock bytes of the tag read last
+     *
+     * @param layout Layout of tag
+     * @return true if all bits set by Type2TagWriter.lock are set, or tag
+     * does not have dynamic lock bytes
+     * @throws IOException If tag can not be read
+     */
+    boolean isDynamicLocked(Ntag21xLayout layout) throws IOException {
+        byte[] expected = layout.generateDynamicLockPage();
+        if (expected == null) {
+            return true;
+        }
+        byte[] read = readBurst(layout.getDynamicLockPage());
+        for (int i = 0; i < expected.length; ++i) {
+            if ((read[i] & expected[i]) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] getCc() {
+        return mCc;
+    }
+
+    /**
+     * Get data area read, starting from first user page. Only first
+     * getAvailable bytes are read from the tag. Array is reused by next
+     * read.
+     *
+     * @return Data area
+     */
+    byte[] getData() {
+        return mData;
+    }
+
+    int getAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * @return Offset of NDEF message in data area
+     */
+    int getMessageOffset() {
+        return mMessageOffset;
+    }
+
+    int getMessageLength() {
+        return mMessageLength;
+    }
+
+    int getReadCommands() {
+        return mReadCommands;
+    }
+}
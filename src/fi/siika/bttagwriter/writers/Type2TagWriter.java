@@ -0,0 +1,191 @@
+/*
+ * Type2TagWriter.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.writers;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.exceptions.IOFailureException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+
+/**
+ * Writes payload, CC, verifies and locks Ultralight and NTAG tags over
+ * Type2TagIo. Shared by tag writers of the application and provisioning
+ * tools. Does not use Android APIs.
+ */
+public class Type2TagWriter {
+
+    private final static int READ_BURST_PAGES = 4;
+    private final static int READ_BURST_BYTES =
+            READ_BURST_PAGES * Type2TagImage.PAGE_SIZE;
+
+    private Type2TagWriter() {
+    }
+
+    /**
+     * Send GET_VERSION to tag and resolve layout from the response
+     *
+     * @param tag Connected tag
+     * @return Layout or null if tag is not NTAG21x or Ultralight EV1
+     */
+    public static Ntag21xLayout readLayout(Type2TagIo tag) {
+        byte[] version;
+        try {
+            version = tag.transceive(new byte[]{Ntag21xLayout.CMD_GET_VERSION});
+        } catch (IOException e) {
+            // Original Ultralights do not understand GET_VERSION
+            return null;
+        }
+        return Ntag21xLayout.fromVersion(version);
+    }
+
+    /**
+     * Write information to tag. Tag is verified if enabled in information,
+     * and locked after that if read only tag is requested.
+     *
+     * @param tag     Connected tag
+     * @param layout  Layout of tag
+     * @param info    Information written
+     * @param metrics Metrics updated while writing
+     * @throws WriteException If information does not fit or writing fails
+     */
+    public static void write(Type2TagIo tag, Ntag21xLayout layout,
+                             TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+        byte[] payload = Type2TagImage.generatePayload(info,
+                layout.getUserBytes());
+        writeImage(tag, layout, payload, info.isReadOnly(),
+                info.isVerifyEnabled(), metrics);
+    }
+
+    /**
+     * Write TLV framed payload to tag
+     *
+     * @param tag      Connected tag
+     * @param layout   Layout of tag
+     * @param payload  Payload, fits to user memory of layout
+     * @param readOnly true to lock tag
+     * @param verify   true to read data back before locking
+     * @param metrics  Metrics updated while writing
+     * @throws WriteException If writing fails
+     */
+    public static void writeImage(Type2TagIo tag, Ntag21xLayout layout,
+                                  byte[] payload, boolean readOnly,
+                                  boolean verify, WriteMetrics metrics)
+            throws WriteException {
+        byte[] cc = Type2TagImage.generateCc(layout, readOnly);
+
+        try {
+            writeData(tag, cc, payload);
+        } catch (IOException e) {
+            throw new IOFailureException("Failed to write to " + layout.getName(), e);
+        }
+        metrics.markWritten(cc.length + payload.length);
+
+        // Verify before locking, lock bits can not be cleared afterwards
+        if (verify) {
+            verifyData(tag, cc, payload, metrics);
+            metrics.markVerified();
+        }
+
+        if (readOnly) {
+            lock(tag, layout);
+        }
+    }
+
+    /**
+     * Write payload pages and then CC page
+     *
+     * @param tag     Connected tag
+     * @param cc      CC page
+     * @param payload Payload, last page is padded with zeros
+     * @throws IOException If page write fails
+     */
+    public static void writeData(Type2TagIo tag, byte[] cc, byte[] payload)
+            throws IOException {
+        int pageNum = Ntag21xLayout.FIRST_USER_PAGE;
+        for (int i = 0; i < payload.length; i += Type2TagImage.PAGE_SIZE) {
+            tag.writePage(pageNum, Arrays.copyOfRange(payload, i,
+                    i + Type2TagImage.PAGE_SIZE));
+            ++pageNum;
+        }
+        tag.writePage(Type2TagImage.CC_PAGE, cc);
+    }
+
+    /**
+     * Read CC and payload pages back from tag and compare those to the
+     * written data. Uses READ command that returns 4 pages at once, so only
+     * few round trips are needed.
+     *
+     * @param tag     Tag where data was written
+     * @param cc      CC written
+     * @param payload Payload written
+     * @param metrics Metrics updated with round trips
+     * @throws WriteException If data read does not match written data
+     */
+    public static void verifyData(Type2TagIo tag, byte[] cc, byte[] payload,
+                                  WriteMetrics metrics) throws WriteException {
+
+        // Expected image starts from CC page, payload is padded to full pages
+        int payloadPages = (payload.length + Type2TagImage.PAGE_SIZE - 1)
+                / Type2TagImage.PAGE_SIZE;
+        byte[] expected = new byte[cc.length
+                + payloadPages * Type2TagImage.PAGE_SIZE];
+        System.arraycopy(cc, 0, expected, 0, cc.length);
+        System.arraycopy(payload, 0, expected, cc.length, payload.length);
+
+        int pageNum = Type2TagImage.CC_PAGE;
+        for (int i = 0; i < expected.length; i += READ_BURST_BYTES) {
+            byte[] read;
+            try {
+                read = tag.readPages(pageNum);
+            } catch (IOException e) {
+                throw new IOFailureException(WriteError.VERIFICATION_FAILED, e,
+                        "Failed to read back page " + pageNum);
+            }
+            metrics.countVerifyRoundTrip();
+
+            int len = Math.min(READ_BURST_BYTES, expected.length - i);
+            if (read == null || read.length < len) {
+                throw new WriteException(WriteError.VERIFICATION_FAILED,
+                        "Short read at page " + pageNum);
+            }
+            for (int j = 0; j < len; ++j) {
+                if (read[j] != expected[i + j]) {
+                    throw new WriteException(WriteError.VERIFICATION_FAILED,
+                            "Mismatch at page "
+                                    + (pageNum + j / Type2TagImage.PAGE_SIZE));
+                }
+            }
+            pageNum += READ_BURST_PAGES;
+        }
+    }
+
+    /**
+     * Set dynamic lock bytes (if tag has those) and static lock bytes
+     *
+     * @param tag    Connected tag
+     * @param layout Layout of tag
+     * @throws IOFailureException If lock bytes can not be written
+     */
+    public static void lock(Type2TagIo tag, Ntag21xLayout layout)
+            throws IOFailureException {
+        try {
+            byte[] dynLock = layout.generateDynamicLockPage();
+            if (dynLock != null) {
+                tag.writePage(layout.getDynamicLockPage(), dynLock);
+            }
+            tag.writePage(Type2TagImage.STATIC_LOCK_PAGE,
+                    Type2TagImage.generateStaticLockPage());
+        } catch (IOException e) {
+            throw new IOFailureException("Failed to lock " + layout.getName(), e);
+        }
+    }
+}
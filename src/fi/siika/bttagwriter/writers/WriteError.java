@@ -41,6 +41,10 @@ public enum WriteError {
      * Tag is write protected
      */
     WRITE_PROTECTED,
+    /**
+     * Data read back from tag did not match the data written
+     */
+    VERIFICATION_FAILED,
     /**
      * General system error (software failure)
      */
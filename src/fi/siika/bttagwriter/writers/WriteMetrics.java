@@ -0,0 +1,124 @@
+/*
+ * WriteMetrics.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.writers;
+
+/**
+ * Timing information collected from single tag write process
+ */
+public class WriteMetrics {
+
+    private final static long NANOS_IN_MILLI = 1000000L;
+
+    private long mStarted = 0;
+    private long mWritten = 0;
+    private long mVerified = 0;
+    private long mFinished = 0;
+    private int mBytesWritten = 0;
+    private int mVerifyRoundTrips = 0;
+
+    /**
+     * Mark start of write process
+     */
+    public void markStarted() {
+        mStarted = System.nanoTime();
+        mWritten = 0;
+        mVerified = 0;
+        mFinished = 0;
+        mBytesWritten = 0;
+        mVerifyRoundTrips = 0;
+    }
+
+    /**
+     * Mark that data was written to tag
+     *
+     * @param bytes Number of bytes written
+     */
+    public void markWritten(int bytes) {
+        mWritten = System.nanoTime();
+        mBytesWritten = bytes;
+    }
+
+    /**
+     * Count one read command sent to tag while verifying
+     */
+    public void countVerifyRoundTrip() {
+        ++mVerifyRoundTrips;
+    }
+
+    /**
+     * Mark that written data was read back and verified
+     */
+    public void markVerified() {
+        mVerified = System.nanoTime();
+    }
+
+    /**
+     * Mark end of write process
+     */
+    public void markFinished() {
+        mFinished = System.nanoTime();
+    }
+
+    /**
+     * Get time used to write the data
+     *
+     * @return Milliseconds from start to data written, -1 if not written
+     */
+    public long getWriteMillis() {
+        if (mWritten == 0) {
+            return -1;
+        }
+        return (mWritten - mStarted) / NANOS_IN_MILLI;
+    }
+
+    /**
+     * Get time verification added to the write process
+     *
+     * @return Milliseconds used to verify, -1 if not verified
+     */
+    public long getVerifyMillis() {
+        if (mVerified == 0 || mWritten == 0) {
+            return -1;
+        }
+        return (mVerified - mWritten) / NANOS_IN_MILLI;
+    }
+
+    /**
+     * Get total time of write process
+     *
+     * @return Milliseconds from start to end, -1 if not finished
+     */
+    public long getTotalMillis() {
+        if (mFinished == 0) {
+            return -1;
+        }
+        return (mFinished - mStarted) / NANOS_IN_MILLI;
+    }
+
+    public boolean isVerified() {
+        return mVerified != 0;
+    }
+
+    public int getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getVerifyRoundTrips() {
+        return mVerifyRoundTrips;
+    }
+
+    @Override
+    public String toString() {
+        return "bytes: " + mBytesWritten + ", write: " + getWriteMillis()
+                + " ms, verify: " + getVerifyMillis() + " ms ("
+                + mVerifyRoundTrips + " reads), total: " + getTotalMillis()
+                + " ms";
+    }
+}
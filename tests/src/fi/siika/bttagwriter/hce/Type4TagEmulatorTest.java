@@ -0,0 +1,259 @@
+/*
+ * Type4TagEmulatorTest.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+
+package fi.siika.bttagwriter.hce;
+
+import java.util.Arrays;
+
+/**
+ * Drives Type4TagEmulator with reader command sequences. Runs on plain JVM,
+ * exits with error if any check fails.
+ */
+public class Type4TagEmulatorTest {
+
+    private final static byte[] SELECT_NDEF_APP = new byte[]{
+            0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+            (byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01, 0x00};
+    private final static byte[] SELECT_OTHER_APP = new byte[]{
+            0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+            (byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x10, 0x10, 0x00};
+    private final static byte[] SELECT_CC = new byte[]{
+            0x00, (byte) 0xA4, 0x00, 0x0C, 0x02, (byte) 0xE1, 0x03};
+    private final static byte[] SELECT_NDEF = new byte[]{
+            0x00, (byte) 0xA4, 0x00, 0x0C, 0x02, (byte) 0xE1, 0x04};
+
+    private final static byte[] SW_OK = new byte[]{(byte) 0x90, 0x00};
+    private final static byte[] SW_NOT_FOUND = new byte[]{0x6A, (byte) 0x82};
+    private final static byte[] SW_WRONG_OFFSET = new byte[]{0x6B, 0x00};
+    private final static byte[] SW_SECURITY = new byte[]{0x69, (byte) 0x82};
+
+    private static int sChecks = 0;
+
+    public static void main(String[] args) {
+        testSelectApplication();
+        testSelectFiles();
+        testReadCc();
+        testReadBoundaries();
+        testLongMessage();
+        testImageSwap();
+        testUnpublished();
+        System.out.println("Type4TagEmulatorTest: " + sChecks + " checks passed");
+    }
+
+    private static void testSelectApplication() {
+        Type4TagEmulator emulator = published(message(10));
+        check("other AID", emulator.processCommand(SELECT_OTHER_APP), SW_NOT_FOUND);
+        check("file before AID", emulator.processCommand(SELECT_CC), SW_NOT_FOUND);
+        check("NDEF AID", emulator.processCommand(SELECT_NDEF_APP), SW_OK);
+        check("wrong CLA", emulator.processCommand(new byte[]{(byte) 0x80,
+                (byte) 0xA4, 0x04, 0x00}), new byte[]{0x6E, 0x00});
+        check("short APDU", emulator.processCommand(new byte[]{0x00}),
+                new byte[]{0x67, 0x00});
+    }
+
+    private static void testSelectFiles() {
+        Type4TagEmulator emulator = published(message(10));
+        emulator.processCommand(SELECT_NDEF_APP);
+        check("read without file", emulator.processCommand(readBinary(0, 2)),
+                SW_NOT_FOUND);
+        check("CC file", emulator.processCommand(SELECT_CC), SW_OK);
+        check("NDEF file", emulator.processCommand(SELECT_NDEF), SW_OK);
+        check("unknown file", emulator.processCommand(new byte[]{
+                0x00, (byte) 0xA4, 0x00, 0x0C, 0x02, (byte) 0xE1, 0x05}), SW_NOT_FOUND);
+        check("read after failed select", emulator.processCommand(readBinary(0, 2)),
+                SW_NOT_FOUND);
+
+        // Re-selecting application drops file selection
+        emulator.processCommand(SELECT_NDEF);
+        emulator.processCommand(SELECT_NDEF_APP);
+        check("read after AID select", emulator.processCommand(readBinary(0, 2)),
+                SW_NOT_FOUND);
+
+        emulator.processCommand(SELECT_NDEF);
+        check("update binary", emulator.processCommand(new byte[]{
+                0x00, (byte) 0xD6, 0x00, 0x00, 0x01, 0x00}), SW_SECURITY);
+    }
+
+    private static void testReadCc() {
+        byte[] message = message(20);
+        Type4TagEmulator emulator = published(message);
+        emulator.processCommand(SELECT_NDEF_APP);
+        emulator.processCommand(SELECT_CC);
+
+        byte[] cc = emulator.processCommand(readBinary(0, 15));
+        checkOk("CC read", cc, 15);
+        check("CCLEN", readShort(cc, 0), 15);
+        check("NDEF file id", readShort(cc, 9), 0xE104);
+        check("NDEF file size", readShort(cc, 11), message.length + 2);
+        check("read access", cc[13], 0x00);
+        check("write access", cc[14] & 0xFF, 0xFF);
+
+        // Le larger than file is truncated, offset past end is refused
+        checkOk("CC over read", emulator.processCommand(readBinary(0, 0xFF)), 15);
+        checkOk("CC last byte", emulator.processCommand(readBinary(14, 4)), 1);
+        check("CC past end", emulator.processCommand(readBinary(15, 1)),
+                SW_WRONG_OFFSET);
+    }
+
+    private static void testReadBoundaries() {
+        byte[] message = message(30);
+        int fileSize = message.length + 2;
+        Type4TagEmulator emulator = published(message);
+        select(emulator);
+
+        byte[] nlen = emulator.processCommand(readBinary(0, 2));
+        checkOk("NLEN", nlen, 2);
+        check("NLEN value", readShort(nlen, 0), message.length);
+
+        byte[] first = emulator.processCommand(readBinary(2, 1));
+        checkOk("first message byte", first, 1);
+        check("first message byte value", first[0], message[0]);
+
+        byte[] last = emulator.processCommand(readBinary(fileSize - 1, 16));
+        checkOk("last byte", last, 1);
+        check("last byte value", last[0], message[message.length - 1]);
+
+        byte[] across = emulator.processCommand(readBinary(fileSize - 5, 5));
+        checkOk("tail", across, 5);
+        check("tail content", Arrays.copyOf(across, 5),
+                Arrays.copyOfRange(message, message.length - 5, message.length));
+
+        check("past end", emulator.processCommand(readBinary(fileSize, 1)),
+                SW_WRONG_OFFSET);
+        check("far past end", emulator.processCommand(readBinary(0x7FFF, 1)),
+                SW_WRONG_OFFSET);
+
+        // Same command returns cached response, shorter read at same offset
+        // must not reuse it
+        byte[] again = emulator.processCommand(readBinary(fileSize - 5, 5));
+        check("cached response", again == across, true);
+        checkOk("shorter at cached offset",
+                emulator.processCommand(readBinary(fileSize - 5, 2)), 2);
+    }
+
+    private static void testLongMessage() {
+        // Le 0 means 256 bytes, message spans several reads
+        byte[] message = message(600);
+        Type4TagEmulator emulator = published(message);
+        select(emulator);
+
+        byte[] file = new byte[message.length + 2];
+        int offset = 0;
+        while (offset < file.length) {
+            byte[] res = emulator.processCommand(readBinary(offset, 0));
+            int len = Math.min(256, file.length - offset);
+            checkOk("read at " + offset, res, len);
+            System.arraycopy(res, 0, file, offset, len);
+            offset += len;
+        }
+        check("long NLEN", readShort(file, 0), message.length);
+        check("long content", Arrays.copyOfRange(file, 2, file.length), message);
+    }
+
+    private static void testImageSwap() {
+        byte[] oldMessage = message(12);
+        byte[] newMessage = message(40);
+        Type4TagEmulator emulator = published(oldMessage);
+        select(emulator);
+        checkOk("old NLEN", emulator.processCommand(readBinary(0, 2)), 2);
+
+        // Selected file of old image is served until reader selects again
+        emulator.setNdefMessage(newMessage);
+        byte[] nlen = emulator.processCommand(readBinary(0, 2));
+        check("NLEN during swap", readShort(nlen, 0), oldMessage.length);
+
+        select(emulator);
+        nlen = emulator.processCommand(readBinary(0, 2));
+        check("NLEN after swap", readShort(nlen, 0), newMessage.length);
+        byte[] tail = emulator.processCommand(readBinary(newMessage.length + 1, 1));
+        checkOk("new last byte", tail, 1);
+        check("new last byte value", tail[0], newMessage[newMessage.length - 1]);
+
+        emulator.processCommand(SELECT_CC);
+        byte[] cc = emulator.processCommand(readBinary(11, 2));
+        check("CC after swap", readShort(cc, 0), newMessage.length + 2);
+    }
+
+    private static void testUnpublished() {
+        Type4TagEmulator emulator = published(message(8));
+        select(emulator);
+        check("published", emulator.hasNdefMessage(), true);
+
+        emulator.setNdefMessage(null);
+        check("unpublished", emulator.hasNdefMessage(), false);
+        check("read after unpublish", emulator.processCommand(readBinary(0, 2)),
+                SW_NOT_FOUND);
+        check("select after unpublish", emulator.processCommand(SELECT_NDEF_APP),
+                SW_NOT_FOUND);
+
+        // Selections are cleared, publishing again needs new selection
+        emulator.setNdefMessage(message(8));
+        check("read after republish", emulator.processCommand(readBinary(0, 2)),
+                SW_NOT_FOUND);
+    }
+
+    private static Type4TagEmulator published(byte[] message) {
+        Type4TagEmulator emulator = new Type4TagEmulator();
+        emulator.setNdefMessage(message);
+        return emulator;
+    }
+
+    private static void select(Type4TagEmulator emulator) {
+        check("select AID", emulator.processCommand(SELECT_NDEF_APP), SW_OK);
+        check("select NDEF", emulator.processCommand(SELECT_NDEF), SW_OK);
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            message[i] = (byte) (i * 7 + 1);
+        }
+        return message;
+    }
+
+    private static byte[] readBinary(int offset, int len) {
+        return new byte[]{0x00, (byte) 0xB0, (byte) (offset >> 8),
+                (byte) offset, (byte) len};
+    }
+
+    private static int readShort(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    /*
+     * Response must have given number of data bytes followed by 90 00
+     */
+    private static void checkOk(String what, byte[] res, int dataLength) {
+        check(what + " length", res.length, dataLength + SW_OK.length);
+        check(what + " status", Arrays.copyOfRange(res, dataLength, res.length),
+                SW_OK);
+    }
+
+    private static void check(String what, byte[] actual, byte[] expected) {
+        if (!Arrays.equals(actual, expected)) {
+            throw new AssertionError(what + ": " + Arrays.toString(actual)
+                    + " != " + Arrays.toString(expected));
+        }
+        ++sChecks;
+    }
+
+    private static void check(String what, long actual, long expected) {
+        if (actual != expected) {
+            throw new AssertionError(what + ": " + actual + " != " + expected);
+        }
+        ++sChecks;
+    }
+
+    private static void check(String what, boolean actual, boolean expected) {
+        if (actual != expected) {
+            throw new AssertionError(what + ": " + actual + " != " + expected);
+        }
+        ++sChecks;
+    }
+}
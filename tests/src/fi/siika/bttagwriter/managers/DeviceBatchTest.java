@@ -0,0 +1,274 @@
+/*
+ * DeviceBatchTest.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.managers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fi.siika.bttagwriter.data.BtAddress;
+
+/**
+ * Checks merging and batching of DeviceBatch, and drives it with
+ * ScriptedLeScanner the same way BluetoothManager does: results are added in
+ * scanner thread and batches are taken in separate delivery thread. Ends
+ * with throughput benchmark. Runs on plain JVM, exits with error if any
+ * check fails.
+ */
+public class DeviceBatchTest {
+
+    private final static int FRAME_MS = 4;
+
+    private final static DeviceBatch.Merger<LeScanner.Result> MERGER =
+            new DeviceBatch.Merger<LeScanner.Result>() {
+                @Override
+                public LeScanner.Result merge(LeScanner.Result newer,
+                                              LeScanner.Result older) {
+                    return new LeScanner.Result(newer.address,
+                            newer.name != null ? newer.name : older.name,
+                            newer.rssi);
+                }
+            };
+
+    private static int sChecks = 0;
+
+    public static void main(String[] args) throws Exception {
+        testMerge();
+        testGrow();
+        testScripted();
+        System.out.println("DeviceBatchTest: " + sChecks + " checks passed");
+        benchmark(args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    }
+
+    private static void testMerge() {
+        DeviceBatch<LeScanner.Result> batch =
+                new DeviceBatch<LeScanner.Result>(MERGER);
+        check("empty take", batch.take() == null, true);
+
+        check("first add schedules", add(batch, 1, "A", -60), true);
+        check("same device", add(batch, 1, null, -50), false);
+        check("second device", add(batch, 2, "B", -70), false);
+        check("size", batch.size(), 2);
+
+        List<LeScanner.Result> taken = batch.take();
+        check("taken", taken.size(), 2);
+        check("order", taken.get(0).address, address(1));
+        check("merged name", taken.get(0).name, "A");
+        check("merged rssi", taken.get(0).rssi, -50);
+        check("take after take", batch.take() == null, true);
+
+        check("add after take schedules", add(batch, 1, "A", -40), true);
+        batch.clear();
+        check("cleared", batch.size(), 0);
+        check("add after clear schedules", add(batch, 1, "A", -40), true);
+        check("no stale merge", batch.take().get(0).rssi, -40);
+
+        // Empty take resets scheduling, as delivery found nothing to do
+        check("schedule", add(batch, 3, "C", -40), true);
+        batch.take();
+        batch.take();
+        check("reschedule", add(batch, 3, "C", -40), true);
+    }
+
+    private static void testGrow() {
+        DeviceBatch<LeScanner.Result> batch =
+                new DeviceBatch<LeScanner.Result>(MERGER);
+        int count = 5000;
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < count; ++i) {
+                add(batch, i, "D" + i, -i % 100);
+            }
+        }
+        check("grown size", batch.size(), count);
+        List<LeScanner.Result> taken = batch.take();
+        for (int i = 0; i < count; ++i) {
+            if (!taken.get(i).address.equals(address(i))) {
+                check("grown order " + i, taken.get(i).address, address(i));
+            }
+        }
+        ++sChecks;
+    }
+
+    /*
+     * Scanner thread adds results, delivery thread waits for schedule and
+     * takes batch one frame later, like Choreographer callback
+     */
+    private static void testScripted() throws InterruptedException {
+        final int devices = 40;
+        final int rounds = 25;
+        ScriptedLeScanner scanner = new ScriptedLeScanner();
+        for (int round = 0; round < rounds; ++round) {
+            List<LeScanner.Result> results = new ArrayList<LeScanner.Result>();
+            for (int i = 0; i < devices; ++i) {
+                // Some devices report several times per scanner batch
+                int repeat = i % 3 == 0 ? 3 : 1;
+                for (int r = 0; r < repeat; ++r) {
+                    results.add(new LeScanner.Result(address(i),
+                            round == 0 ? "LE " + i : null,
+                            (short) (-90 + round + r)));
+                }
+            }
+            scanner.addBatch(round % 5 == 0 ? FRAME_MS : 0, results);
+        }
+
+        final DeviceBatch<LeScanner.Result> batch =
+                new DeviceBatch<LeScanner.Result>(MERGER);
+        final LinkedBlockingQueue<Boolean> scheduled =
+                new LinkedBlockingQueue<Boolean>();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final int[] invalid = new int[1];
+
+        scanner.start(new ArrayList<LeScanner.Filter>(), new LeScanner.Callback() {
+            @Override
+            public void leDevicesFound(List<LeScanner.Result> results) {
+                for (LeScanner.Result result : results) {
+                    long key = BtAddress.pack(result.address);
+                    if (key == BtAddress.INVALID) {
+                        ++invalid[0];
+                        continue;
+                    }
+                    if (batch.add(key, result)) {
+                        scheduled.add(Boolean.TRUE);
+                    }
+                }
+            }
+
+            @Override
+            public void leScanStopped(int error) {
+                stopped.countDown();
+            }
+        });
+
+        Map<String, LeScanner.Result> delivered =
+                new HashMap<String, LeScanner.Result>();
+        int batches = 0;
+        int schedules = 0;
+        while (stopped.getCount() > 0 || !scheduled.isEmpty()) {
+            if (scheduled.poll(FRAME_MS, TimeUnit.MILLISECONDS) == null) {
+                continue;
+            }
+            ++schedules;
+            Thread.sleep(FRAME_MS);
+            List<LeScanner.Result> taken = batch.take();
+            if (taken == null) {
+                continue;
+            }
+            ++batches;
+            Set<String> unique = new HashSet<String>();
+            for (LeScanner.Result result : taken) {
+                check("unique in batch", unique.add(result.address), true);
+                LeScanner.Result older = delivered.get(result.address);
+                delivered.put(result.address, older != null
+                        ? MERGER.merge(result, older) : result);
+            }
+        }
+        scanner.stop();
+
+        check("no leftovers", batch.take() == null, true);
+        check("invalid addresses", invalid[0], 0);
+        check("all devices", delivered.size(), devices);
+        check("batched", batches < rounds * devices, true);
+        check("batch per schedule", batches <= schedules, true);
+        for (int i = 0; i < devices; ++i) {
+            LeScanner.Result result = delivered.get(address(i));
+            check("name kept " + i, result.name, "LE " + i);
+            int last = i % 3 == 0 ? 2 : 0;
+            check("latest rssi " + i, result.rssi, -90 + rounds - 1 + last);
+        }
+    }
+
+    /*
+     * Single producer adding results of given number of devices, consumer
+     * taking batches as fast as it can
+     */
+    private static void benchmark(int results) throws InterruptedException {
+        final int devices = 500;
+        final long[] keys = new long[devices];
+        final LeScanner.Result[] scanned = new LeScanner.Result[devices];
+        for (int i = 0; i < devices; ++i) {
+            keys[i] = BtAddress.pack(address(i));
+            scanned[i] = new LeScanner.Result(address(i), "LE " + i, (short) -60);
+        }
+
+        final DeviceBatch<LeScanner.Result> batch =
+                new DeviceBatch<LeScanner.Result>(MERGER);
+        final boolean[] done = new boolean[1];
+        final int[] taken = new int[2];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    boolean last;
+                    synchronized (done) {
+                        last = done[0];
+                    }
+                    List<LeScanner.Result> list = batch.take();
+                    if (list != null) {
+                        ++taken[0];
+                        taken[1] += list.size();
+                    } else if (last) {
+                        return;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+
+        long start = System.nanoTime();
+        int device = 0;
+        for (int i = 0; i < results; ++i) {
+            device = (device + 7) % devices;
+            batch.add(keys[device], scanned[device]);
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        consumer.join();
+        long nanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US,
+                "%d results of %d devices: %.1f ns/result, %d batches, %d delivered",
+                results, devices, (double) nanos / results, taken[0], taken[1]));
+    }
+
+    private static boolean add(DeviceBatch<LeScanner.Result> batch, int device,
+                               String name, int rssi) {
+        return batch.add(BtAddress.pack(address(device)),
+                new LeScanner.Result(address(device), name, (short) rssi));
+    }
+
+    private static String address(int device) {
+        return String.format(Locale.US, "00:11:22:33:%02X:%02X",
+                (device >> 8) & 0xFF, device & 0xFF);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (actual == null ? expected != null : !actual.equals(expected)) {
+            throw new AssertionError(what + ": " + actual + " != " + expected);
+        }
+        ++sChecks;
+    }
+
+    private static void check(String what, long actual, long expected) {
+        if (actual != expected) {
+            throw new AssertionError(what + ": " + actual + " != " + expected);
+        }
+        ++sChecks;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * ManifestParser.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.data.PairingCarrier;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.data.TagType;
+
+/**
+ * Parses lines of device manifest: address,name[,class][,uuids] where class
+ * is class of device in hex (e.g. 240404) and uuids is ';' separated list of
+ * service UUIDs. Empty lines and lines starting with '#' are skipped.
+ */
+public class ManifestParser {
+
+    private final TagType mType;
+    private final PairingCarrier mCarrier;
+    private final boolean mReadOnly;
+
+    /**
+     * @param type     Type of tags written
+     * @param carrier  Carrier of tags written
+     * @param readOnly If tags are made read only
+     */
+    public ManifestParser(TagType type, PairingCarrier carrier,
+                          boolean readOnly) {
+        mType = type;
+        mCarrier = carrier;
+        mReadOnly = readOnly;
+    }
+
+    /**
+     * Check if line is empty or comment
+     *
+     * @param line Trimmed line
+     * @return true if line does not describe device
+     */
+    public static boolean isSkipped(String line) {
+        return line.length() == 0 || line.charAt(0) == '#';
+    }
+
+    /**
+     * Parse manifest line
+     *
+     * @param line Trimmed line
+     * @return Tag information of device
+     * @throws IllegalArgumentException If line is not valid
+     */
+    public TagInformation parse(String line) {
+        String[] parts = line.split(",", 4);
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Address and name required");
+        }
+
+        TagInformation info = new TagInformation();
+        info.setType(mType);
+        info.setCarrier(mCarrier);
+        info.setReadOnly(mReadOnly);
+
+        long address = BtAddress.pack(parts[0].trim());
+        if (address == BtAddress.INVALID) {
+            throw new IllegalArgumentException("Invalid address: " + parts[0]);
+        }
+        info.address = BtAddress.unpack(address);
+        info.name = parts[1].trim();
+
+        if (parts.length > 2 && parts[2].trim().length() > 0) {
+            int deviceClass;
+            try {
+                deviceClass = Integer.parseInt(parts[2].trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid class: " + parts[2]);
+            }
+            // Class of device is little endian in EIR data
+            info.deviceClass = new byte[]{(byte) deviceClass,
+                    (byte) (deviceClass >> 8), (byte) (deviceClass >> 16)};
+        }
+
+        if (parts.length > 3 && parts[3].trim().length() > 0) {
+            String[] uuids = parts[3].split(";");
+            info.serviceUuids = new ArrayList<UUID>(uuids.length);
+            for (String uuid : uuids) {
+                // UUID.fromString throws IllegalArgumentException
+                info.serviceUuids.add(UUID.fromString(uuid.trim()));
+            }
+        }
+        return info;
+    }
+}
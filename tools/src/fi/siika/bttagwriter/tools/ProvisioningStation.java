@@ -0,0 +1,426 @@
+/*
+ * ProvisioningStation.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fi.siika.bttagwriter.data.PairingCarrier;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.data.TagType;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+import fi.siika.bttagwriter.exceptions.WriteException;
+import fi.siika.bttagwriter.writers.Ntag21xLayout;
+import fi.siika.bttagwriter.writers.Type2TagWriter;
+import fi.siika.bttagwriter.writers.WriteError;
+import fi.siika.bttagwriter.writers.WriteMetrics;
+
+/**
+ * Provisioning station writing manifest devices to tags with several
+ * readers in parallel. Each reader has its own worker thread that takes
+ * devices from shared queue, so fast readers get more work. Tags are
+ * written with Type2TagWriter as Ntag21xTechWriter does: payload, CC,
+ * verify and lock.
+ * <p/>
+ * Command line runs the station with simulated readers, so scaling can be
+ * measured without hardware.
+ */
+public class ProvisioningStation {
+
+    private final static String USAGE =
+            "Usage: ProvisioningStation [options] <manifest|->\n"
+                    + "  --readers <n>        Simulated readers (default 4)\n"
+                    + "  --latency <ms>       Latency of tag command (default 5)\n"
+                    + "  --swap <ms>          Time to present next tag (default 300)\n"
+                    + "  --tag-wait <ms>      Time reader waits for tag (default 1000,\n"
+                    + "                       at least twice the swap time)\n"
+                    + "  --failure-rate <p>   Probability of command failure (default 0.01)\n"
+                    + "  --tag <type>         Tag of simulated readers (default NTAG213)\n"
+                    + "  --type <simplified|handover>\n"
+                    + "  --carrier <br_edr|le|both>\n"
+                    + "  --read-only          Lock tags after writing\n"
+                    + "  --no-verify          Do not read tags back\n";
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Attempts (tags) used for one device before it is reported failed
+     */
+    public final static int MAX_ATTEMPTS = 3;
+
+    // Default time reader waits for a tag
+    private final static long TAG_WAIT_MS = 1000;
+    private final static int QUEUE_PER_READER = 16;
+
+    private final static Job END = new Job(0, null);
+
+    /**
+     * Device waiting to be written
+     */
+    private static class Job {
+        final int lineNumber;
+        final TagInformation info;
+
+        Job(int lineNumber, TagInformation info) {
+            this.lineNumber = lineNumber;
+            this.info = info;
+        }
+    }
+
+    private final List<TagReader> mReaders;
+    private final ReaderStats[] mStats;
+    private final BlockingQueue<Job> mQueue;
+    private final long mTagWaitMs;
+    private volatile boolean mStopped = false;
+    private final StringBuffer mErrors = new StringBuffer();
+    private int mInvalidLines = 0;
+
+    /**
+     * @param readers   Readers used, each gets one worker thread
+     * @param tagWaitMs Time reader waits for a tag. Waiting in vain counts
+     *                  as failed attempt.
+     */
+    public ProvisioningStation(List<TagReader> readers, long tagWaitMs) {
+        mReaders = readers;
+        mTagWaitMs = tagWaitMs;
+        mStats = new ReaderStats[readers.size()];
+        for (int i = 0; i < mStats.length; ++i) {
+            mStats[i] = new ReaderStats(readers.get(i).getName());
+        }
+        mQueue = new ArrayBlockingQueue<Job>(
+                Math.max(1, readers.size() * QUEUE_PER_READER));
+    }
+
+    /**
+     * Write all devices of manifest. Returns when all devices are written
+     * or have failed, or after stop when workers have finished devices
+     * they are writing.
+     *
+     * @param manifest Manifest read
+     * @param parser   Parser of manifest lines
+     * @throws IOException          If manifest can not be read
+     * @throws InterruptedException If interrupted
+     */
+    public void run(BufferedReader manifest, ManifestParser parser)
+            throws IOException, InterruptedException {
+
+        Thread[] workers = new Thread[mReaders.size()];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(new Worker(mReaders.get(i), mStats[i]),
+                    "reader-" + mReaders.get(i).getName());
+            workers[i].start();
+        }
+
+        try {
+            int lineNumber = 0;
+            String line;
+            while (!mStopped && (line = manifest.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (ManifestParser.isSkipped(line)) {
+                    continue;
+                }
+                Job job;
+                try {
+                    job = new Job(lineNumber, parser.parse(line));
+                } catch (IllegalArgumentException e) {
+                    ++mInvalidLines;
+                    error(lineNumber, e.getMessage());
+                    continue;
+                }
+                if (!enqueue(job, workers)) {
+                    throw new IOException("All readers failed");
+                }
+            }
+        } finally {
+            for (int i = 0; i < workers.length; ++i) {
+                if (!enqueue(END, workers)) {
+                    break;
+                }
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    /**
+     * Add job to queue, waiting while queue is full
+     *
+     * @return false if all workers have stopped
+     */
+    private boolean enqueue(Job job, Thread[] workers)
+            throws InterruptedException {
+        while (!mQueue.offer(job, TAG_WAIT_MS, TimeUnit.MILLISECONDS)) {
+            boolean alive = false;
+            for (Thread worker : workers) {
+                alive |= worker.isAlive();
+            }
+            if (!alive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop station. Devices not started are not written. Can be called from
+     * any thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    public ReaderStats[] getStats() {
+        return mStats;
+    }
+
+    public int getInvalidLines() {
+        return mInvalidLines;
+    }
+
+    /**
+     * @return Errors of failed devices, one per line
+     */
+    public String getErrors() {
+        return mErrors.toString();
+    }
+
+    private void error(int lineNumber, String message) {
+        mErrors.append("line ").append(lineNumber).append(": ")
+                .append(message).append('\n');
+    }
+
+    /**
+     * Worker of one reader
+     */
+    private class Worker implements Runnable {
+        private final TagReader mReader;
+        private final ReaderStats mReaderStats;
+        private final WriteMetrics mMetrics = new WriteMetrics();
+
+        Worker(TagReader reader, ReaderStats stats) {
+            mReader = reader;
+            mReaderStats = stats;
+        }
+
+        @Override
+        public void run() {
+            mReaderStats.markStarted();
+            try {
+                Job job;
+                while ((job = mQueue.take()) != END && !mStopped) {
+                    process(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                error(0, "Reader " + mReader.getName() + " failed: "
+                        + e.getMessage());
+            } finally {
+                mReaderStats.markFinished();
+                mReader.close();
+            }
+        }
+
+        private void process(Job job) throws IOException, InterruptedException {
+            WriteException lastError = null;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && !mStopped;
+                 ++attempt) {
+                Ntag21xLayout layout = mReader.waitForTag(mTagWaitMs);
+                if (layout == null) {
+                    lastError = new WriteException(WriteError.CONNECTION_LOST,
+                            "No tag presented in " + mTagWaitMs + " ms");
+                    mReaderStats.attemptFailed(lastError);
+                    continue;
+                }
+
+                try {
+                    write(mReader, layout, job.info, mMetrics);
+                    mReaderStats.tagWritten(mMetrics);
+                    return;
+                } catch (OutOfSpaceException e) {
+                    // Next tag will not be any larger
+                    mReaderStats.attemptFailed(e);
+                    lastError = e;
+                    break;
+                } catch (WriteException e) {
+                    mReaderStats.attemptFailed(e);
+                    lastError = e;
+                } finally {
+                    mReader.release();
+                }
+            }
+            if (lastError == null) {
+                // Stopped before any attempt
+                return;
+            }
+            mReaderStats.jobFailed();
+            error(job.lineNumber, mReader.getName() + ": "
+                    + lastError.getMessage());
+        }
+    }
+
+    /**
+     * Write information to tag presented to the reader
+     *
+     * @param reader  Reader with tag
+     * @param layout  Layout of the tag
+     * @param info    Information written
+     * @param metrics Metrics updated while writing
+     * @throws WriteException If write fails
+     */
+    public static void write(TagReader reader, Ntag21xLayout layout,
+                             TagInformation info, WriteMetrics metrics)
+            throws WriteException {
+
+        metrics.markStarted();
+        Type2TagWriter.write(reader, layout, info, metrics);
+        metrics.markFinished();
+    }
+
+    public static void main(String[] args) {
+        int readers = 4;
+        long latency = 5;
+        long swap = 300;
+        long tagWait = -1;
+        double failureRate = 0.01;
+        Ntag21xLayout layout = Ntag21xLayout.NTAG213;
+        TagType type = TagType.SIMPLIFIED;
+        PairingCarrier carrier = PairingCarrier.BR_EDR;
+        boolean readOnly = false;
+        boolean verify = true;
+        String input = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("--read-only")) {
+                    readOnly = true;
+                } else if (arg.equals("--no-verify")) {
+                    verify = false;
+                } else if (!arg.startsWith("--") || arg.equals("-")) {
+                    if (input != null) {
+                        throw new IllegalArgumentException("Only one manifest");
+                    }
+                    input = arg;
+                } else if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Value missing: " + arg);
+                } else if (arg.equals("--readers")) {
+                    readers = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--latency")) {
+                    latency = Long.parseLong(args[++i]);
+                } else if (arg.equals("--swap")) {
+                    swap = Long.parseLong(args[++i]);
+                } else if (arg.equals("--tag-wait")) {
+                    tagWait = Long.parseLong(args[++i]);
+                } else if (arg.equals("--failure-rate")) {
+                    failureRate = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--tag")) {
+                    layout = Ntag21xLayout.fromName(args[++i]);
+                    if (layout == null) {
+                        throw new IllegalArgumentException("Unknown tag: " + args[i]);
+                    }
+                } else if (arg.equals("--type")) {
+                    type = TagType.valueOf(args[++i].toUpperCase());
+                } else if (arg.equals("--carrier")) {
+                    carrier = PairingCarrier.valueOf(args[++i].toUpperCase());
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (input == null || readers < 1) {
+                throw new IllegalArgumentException("Manifest and readers required");
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        List<TagReader> simulated = new ArrayList<TagReader>(readers);
+        for (int i = 0; i < readers; ++i) {
+            simulated.add(new SimulatedTagReader("sim" + i, layout, latency,
+                    swap, failureRate, i));
+        }
+        if (tagWait < 0) {
+            tagWait = Math.max(TAG_WAIT_MS, 2 * swap);
+        }
+        ProvisioningStation station = new ProvisioningStation(simulated,
+                tagWait);
+        ManifestParser parser = new VerifyingParser(type, carrier, readOnly,
+                verify);
+
+        long started = System.nanoTime();
+        BufferedReader reader = null;
+        try {
+            InputStream in = input.equals("-") ? System.in
+                    : new FileInputStream(input);
+            reader = new BufferedReader(new InputStreamReader(in, UTF8));
+            station.run(reader, parser);
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            System.exit(3);
+        } catch (InterruptedException e) {
+            System.exit(3);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        long elapsed = (System.nanoTime() - started) / 1000000L;
+
+        System.err.print(station.getErrors());
+        int written = 0;
+        int failed = station.getInvalidLines();
+        for (ReaderStats stats : station.getStats()) {
+            System.out.println(stats);
+            written += stats.getTagsWritten();
+            failed += stats.getJobsFailed();
+        }
+        System.out.println(String.format("Total: %d tags in %d ms (%.2f/s), "
+                        + "%d failed", written, elapsed,
+                elapsed > 0 ? written * 1000.0 / elapsed : 0.0, failed));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+     * Parser applying verify option to parsed devices
+     */
+    private static class VerifyingParser extends ManifestParser {
+        private final boolean mVerify;
+
+        VerifyingParser(TagType type, PairingCarrier carrier,
+                        boolean readOnly, boolean verify) {
+            super(type, carrier, readOnly);
+            mVerify = verify;
+        }
+
+        @Override
+        public TagInformation parse(String line) {
+            TagInformation info = super.parse(line);
+            info.setVerifyEnabled(mVerify);
+            return info;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ReaderStats.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import fi.siika.bttagwriter.exceptions.WriteException;
+import fi.siika.bttagwriter.writers.WriteError;
+import fi.siika.bttagwriter.writers.WriteMetrics;
+
+/**
+ * Throughput and errors of one reader of provisioning station. Updated only
+ * by the worker of the reader, read after worker has finished.
+ */
+public class ReaderStats {
+
+    private final static long NANOS_IN_MILLI = 1000000L;
+
+    private final String mName;
+    private final Map<WriteError, Integer> mErrors =
+            new EnumMap<WriteError, Integer>(WriteError.class);
+    private long mStarted = 0;
+    private long mFinished = 0;
+    private int mTagsWritten = 0;
+    private int mJobsFailed = 0;
+    private int mFailedAttempts = 0;
+    private long mBytesWritten = 0;
+    private long mWriteMillis = 0;
+    private String mLastError = null;
+
+    public ReaderStats(String name) {
+        mName = name;
+    }
+
+    void markStarted() {
+        mStarted = System.nanoTime();
+    }
+
+    void markFinished() {
+        mFinished = System.nanoTime();
+    }
+
+    void tagWritten(WriteMetrics metrics) {
+        ++mTagsWritten;
+        mBytesWritten += metrics.getBytesWritten();
+        mWriteMillis += metrics.getTotalMillis();
+    }
+
+    void attemptFailed(WriteException e) {
+        ++mFailedAttempts;
+        Integer count = mErrors.get(e.getErrorCode());
+        mErrors.put(e.getErrorCode(), count == null ? 1 : count + 1);
+        mLastError = e.getMessage();
+    }
+
+    void jobFailed() {
+        ++mJobsFailed;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getTagsWritten() {
+        return mTagsWritten;
+    }
+
+    public int getJobsFailed() {
+        return mJobsFailed;
+    }
+
+    public int getFailedAttempts() {
+        return mFailedAttempts;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return Milliseconds the reader was running
+     */
+    public long getElapsedMillis() {
+        return (mFinished - mStarted) / NANOS_IN_MILLI;
+    }
+
+    /**
+     * @return Tags written per second
+     */
+    public double getTagsPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? mTagsWritten * 1000.0 / elapsed : 0.0;
+    }
+
+    /**
+     * @return Average time of successful write, including verify and lock
+     */
+    public long getAverageWriteMillis() {
+        return mTagsWritten > 0 ? mWriteMillis / mTagsWritten : 0;
+    }
+
+    public Map<WriteError, Integer> getErrors() {
+        return mErrors;
+    }
+
+    public String getLastError() {
+        return mLastError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d tags (%.2f/s, avg %d ms), %d jobs failed, "
+                        + "%d failed attempts %s", mName, mTagsWritten,
+                getTagsPerSecond(), getAverageWriteMillis(), mJobsFailed,
+                mFailedAttempts, mErrors.isEmpty() ? "" : mErrors.toString());
+    }
+}
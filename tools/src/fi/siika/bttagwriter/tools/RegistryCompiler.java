@@ -0,0 +1,152 @@
+/*
+ * RegistryCompiler.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import fi.siika.bttagwriter.data.BtAddress;
+import fi.siika.bttagwriter.data.DeviceRegistry;
+import fi.siika.bttagwriter.data.PairingCarrier;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.data.TagType;
+
+/**
+ * Command line tool compiling device manifest (see ManifestParser) to
+ * DeviceRegistry file used by re-provisioning and audit. With --lookup
+ * prints one device of existing registry.
+ */
+public class RegistryCompiler {
+
+    private final static String USAGE =
+            "Usage: RegistryCompiler [options] <manifest|-> <registry>\n"
+                    + "       RegistryCompiler --lookup <address> <registry>\n"
+                    + "  --type <simplified|handover>\n"
+                    + "  --carrier <br_edr|le|both>\n"
+                    + "  --read-only        Tags of devices should be read only\n";
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) {
+        TagType type = TagType.SIMPLIFIED;
+        PairingCarrier carrier = PairingCarrier.BR_EDR;
+        boolean readOnly = false;
+        String lookup = null;
+        String input = null;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("--read-only")) {
+                    readOnly = true;
+                } else if (!arg.startsWith("--") || arg.equals("-")) {
+                    if (input == null) {
+                        input = arg;
+                    } else if (output == null) {
+                        output = arg;
+                    } else {
+                        throw new IllegalArgumentException("Too many files");
+                    }
+                } else if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Value missing: " + arg);
+                } else if (arg.equals("--type")) {
+                    type = TagType.valueOf(args[++i].toUpperCase());
+                } else if (arg.equals("--carrier")) {
+                    carrier = PairingCarrier.valueOf(args[++i].toUpperCase());
+                } else if (arg.equals("--lookup")) {
+                    lookup = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lookup != null ? input == null || output != null
+                    : input == null || output == null) {
+                throw new IllegalArgumentException("Files missing");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            if (lookup != null) {
+                System.exit(lookup(new File(input), lookup));
+            }
+            System.exit(compile(input, new File(output),
+                    new ManifestParser(type, carrier, readOnly)));
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            System.exit(3);
+        }
+    }
+
+    private static int compile(String input, File output,
+                               ManifestParser parser) throws IOException {
+        DeviceRegistry.Builder builder = new DeviceRegistry.Builder();
+        int failed = 0;
+
+        InputStream in = input.equals("-") ? System.in
+                : new FileInputStream(input);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+                UTF8), 1 << 16);
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (ManifestParser.isSkipped(line)) {
+                    continue;
+                }
+                try {
+                    builder.add(parser.parse(line));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("line " + lineNumber + ": "
+                            + e.getMessage());
+                    ++failed;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        try {
+            builder.write(output);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        System.err.println("Registry of " + builder.size() + " devices written, "
+                + failed + " lines failed");
+        return failed > 0 ? 1 : 0;
+    }
+
+    private static int lookup(File file, String address) throws IOException {
+        DeviceRegistry registry = DeviceRegistry.open(file);
+        int slot = registry.find(BtAddress.pack(address));
+        if (slot == DeviceRegistry.NOT_FOUND) {
+            System.err.println("Not found: " + address);
+            return 1;
+        }
+        TagInformation info = new TagInformation();
+        registry.fill(slot, info);
+        System.out.println(info.address + "," + info.name + ","
+                + Integer.toHexString(registry.getDeviceClass(slot)) + ","
+                + info.getType() + "," + info.getCarrier()
+                + (info.isReadOnly() ? ",read-only" : ""));
+        return 0;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * SimulatedTagReader.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import fi.siika.bttagwriter.writers.Ntag21xLayout;
+import fi.siika.bttagwriter.writers.Type2TagImage;
+
+/**
+ * Reader simulating blank tags of one type. Each command takes given
+ * latency and fails with given probability (tag lost). Presenting a new
+ * tag takes given swap time. Locked pages can not be written, so writer
+ * errors are caught as with real tags.
+ */
+public class SimulatedTagReader implements TagReader {
+
+    private final String mName;
+    private final Ntag21xLayout mLayout;
+    private final long mCommandLatencyMs;
+    private final long mSwapMs;
+    private final double mFailureRate;
+    private final Random mRandom;
+    private final byte[] mMemory;
+    private boolean mPresent = false;
+
+    /**
+     * @param name             Name of reader
+     * @param layout           Layout of simulated tags
+     * @param commandLatencyMs Time used by each read and write command
+     * @param swapMs           Time used to present next tag
+     * @param failureRate      Probability of command failure (0 - 1)
+     * @param seed             Seed of random failures
+     */
+    public SimulatedTagReader(String name, Ntag21xLayout layout,
+                              long commandLatencyMs, long swapMs,
+                              double failureRate, long seed) {
+        mName = name;
+        mLayout = layout;
+        mCommandLatencyMs = commandLatencyMs;
+        mSwapMs = swapMs;
+        mFailureRate = failureRate;
+        mRandom = new Random(seed);
+        mMemory = new byte[Type2TagImage.getImageSize(layout)
+                + 4 * Type2TagImage.PAGE_SIZE];
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public Ntag21xLayout waitForTag(long timeoutMs) throws InterruptedException {
+        if (mSwapMs > timeoutMs) {
+            Thread.sleep(timeoutMs);
+            return null;
+        }
+        Thread.sleep(mSwapMs);
+        Arrays.fill(mMemory, (byte) 0);
+        mPresent = true;
+        return mLayout;
+    }
+
+    @Override
+    public byte[] readPages(int page) throws IOException {
+        command();
+        int offset = page * Type2TagImage.PAGE_SIZE;
+        if (offset < 0 || offset + 16 > mMemory.length) {
+            throw new IOException("Invalid page " + page);
+        }
+        return Arrays.copyOfRange(mMemory, offset, offset + 16);
+    }
+
+    @Override
+    public void writePage(int page, byte[] data) throws IOException {
+        command();
+        int offset = page * Type2TagImage.PAGE_SIZE;
+        if (page < Type2TagImage.STATIC_LOCK_PAGE
+                || offset + Type2TagImage.PAGE_SIZE > mMemory.length) {
+            throw new IOException("Invalid page " + page);
+        }
+        if (isLocked(page)) {
+            throw new IOException("Page " + page + " is locked");
+        }
+
+        if (page == Type2TagImage.STATIC_LOCK_PAGE) {
+            // Serial number bytes are read only, lock bits can only be set
+            mMemory[offset + 2] |= data[2];
+            mMemory[offset + 3] |= data[3];
+        } else if (page == Type2TagImage.CC_PAGE) {
+            // CC is one time programmable
+            for (int i = 0; i < Type2TagImage.PAGE_SIZE; ++i) {
+                mMemory[offset + i] |= data[i];
+            }
+        } else {
+            System.arraycopy(data, 0, mMemory, offset, Type2TagImage.PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Simulated tags only answer READ and WRITE
+     */
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        command();
+        throw new IOException("Command not supported");
+    }
+
+    /*
+     * Simplified: any static lock bit locks pages 3 - 15
+     */
+    private boolean isLocked(int page) {
+        int lockOffset = Type2TagImage.STATIC_LOCK_PAGE * Type2TagImage.PAGE_SIZE;
+        return page > Type2TagImage.STATIC_LOCK_PAGE && page < 16
+                && (mMemory[lockOffset + 2] != 0 || mMemory[lockOffset + 3] != 0);
+    }
+
+    private void command() throws IOException {
+        if (!mPresent) {
+            throw new IOException("Tag not present");
+        }
+        if (mCommandLatencyMs > 0) {
+            try {
+                Thread.sleep(mCommandLatencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        if (mFailureRate > 0 && mRandom.nextDouble() < mFailureRate) {
+            mPresent = false;
+            throw new IOException("Tag lost");
+        }
+    }
+
+    @Override
+    public void release() {
+        mPresent = false;
+    }
+
+    @Override
+    public void close() {
+        mPresent = false;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * TagImageCompiler.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fi.siika.bttagwriter.data.PairingCarrier;
+import fi.siika.bttagwriter.data.TagInformation;
+import fi.siika.bttagwriter.data.TagType;
+import fi.siika.bttagwriter.exceptions.OutOfSpaceException;
+import fi.siika.bttagwriter.writers.Ntag21xLayout;
+import fi.siika.bttagwriter.writers.Type2TagImage;
+
+/**
+ * Command line tool compiling page images of Type 2 tags (Ultralight and
+ * NTAG21x) from a device manifest. Images are the same as written by the
+ * application, and can be fed to tag encoders accepting raw page images.
+ * Manifest format is described in ManifestParser. In binary output each
+ * device has image of fixed size, so devices that fail are written as
+ * zero filled images to keep later images at their index.
+ * <p/>
+ * Devices are encoded in chunks by a thread pool. Chunks are written in
+ * manifest order, and only a limited number of chunks is in flight, so
+ * memory use does not depend on size of manifest.
+ */
+public class TagImageCompiler {
+
+    private final static String USAGE =
+            "Usage: TagImageCompiler [options] <manifest|-> <output|->\n"
+                    + "  --tag <type>       NTAG210, NTAG212, NTAG213 (default), NTAG215,\n"
+                    + "                     NTAG216, MF0UL11, MF0UL21 or MF0ICU1\n"
+                    + "  --format <bin|hex> Output format (default bin)\n"
+                    + "  --type <simplified|handover>\n"
+                    + "  --carrier <br_edr|le|both>\n"
+                    + "  --read-only        Set CC and lock bytes read only\n"
+                    + "  --threads <n>      Encoding threads (default: cores)\n";
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Devices encoded by one task
+     */
+    private final static int CHUNK_SIZE = 2048;
+
+    /**
+     * Chunks in flight per thread
+     */
+    private final static int CHUNKS_PER_THREAD = 4;
+
+    private final static int EXIT_OK = 0;
+    private final static int EXIT_FAILED_DEVICES = 1;
+    private final static int EXIT_USAGE = 2;
+    private final static int EXIT_IO = 3;
+
+    private enum Format {
+        BIN, HEX
+    }
+
+    private Ntag21xLayout mLayout = Ntag21xLayout.NTAG213;
+    private Format mFormat = Format.BIN;
+    private TagType mType = TagType.SIMPLIFIED;
+    private PairingCarrier mCarrier = PairingCarrier.BR_EDR;
+    private boolean mReadOnly = false;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private String mInput = null;
+    private String mOutput = null;
+    private int mImageSize;
+    private ManifestParser mParser;
+
+    /**
+     * Devices of one chunk. Line numbers are kept for error messages.
+     */
+    private static class Chunk {
+        final List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+        final List<Integer> lineNumbers = new ArrayList<Integer>(CHUNK_SIZE);
+    }
+
+    /**
+     * Encoded chunk
+     */
+    private static class Result {
+        byte[] data;
+        int length;
+        int devices;
+        final StringBuilder errors = new StringBuilder();
+        int failed;
+    }
+
+    public static void main(String[] args) {
+        TagImageCompiler compiler = new TagImageCompiler();
+        String error = compiler.parseArguments(args);
+        if (error != null) {
+            System.err.println(error);
+            System.err.print(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+        System.exit(compiler.run());
+    }
+
+    /**
+     * @return Error message or null if arguments are valid
+     */
+    private String parseArguments(String[] args) {
+        List<String> files = new ArrayList<String>(2);
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--read-only")) {
+                mReadOnly = true;
+                continue;
+            } else if (!arg.startsWith("--") || arg.equals("-")) {
+                files.add(arg);
+                continue;
+            } else if (i + 1 >= args.length) {
+                return "Value missing: " + arg;
+            }
+
+            String value = args[++i];
+            if (arg.equals("--tag")) {
+                mLayout = Ntag21xLayout.fromName(value);
+                if (mLayout == null) {
+                    return "Unknown tag: " + value;
+                }
+            } else if (arg.equals("--format")) {
+                try {
+                    mFormat = Format.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    return "Unknown format: " + value;
+                }
+            } else if (arg.equals("--type")) {
+                try {
+                    mType = TagType.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    return "Unknown type: " + value;
+                }
+            } else if (arg.equals("--carrier")) {
+                try {
+                    mCarrier = PairingCarrier.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    return "Unknown carrier: " + value;
+                }
+            } else if (arg.equals("--threads")) {
+                try {
+                    mThreads = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    mThreads = 0;
+                }
+                if (mThreads < 1) {
+                    return "Invalid thread count: " + value;
+                }
+            } else {
+                return "Unknown option: " + arg;
+            }
+        }
+
+        if (files.size() != 2) {
+            return "Manifest and output must be given";
+        }
+        mInput = files.get(0);
+        mOutput = files.get(1);
+        return null;
+    }
+
+    /**
+     * @return Exit code
+     */
+    private int run() {
+        mImageSize = Type2TagImage.getImageSize(mLayout);
+        mParser = new ManifestParser(mType, mCarrier, mReadOnly);
+
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        ArrayDeque<Future<Result>> inFlight = new ArrayDeque<Future<Result>>();
+        int maxInFlight = mThreads * CHUNKS_PER_THREAD;
+        int devices = 0;
+        int failed = 0;
+
+        BufferedReader reader = null;
+        OutputStream out = null;
+        try {
+            InputStream in = mInput.equals("-") ? System.in
+                    : new FileInputStream(mInput);
+            reader = new BufferedReader(new InputStreamReader(in, UTF8),
+                    1 << 16);
+            out = new BufferedOutputStream(mOutput.equals("-") ? System.out
+                    : new FileOutputStream(mOutput), 1 << 16);
+
+            int lineNumber = 0;
+            Chunk chunk = new Chunk();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (ManifestParser.isSkipped(line)) {
+                    continue;
+                }
+                chunk.lines.add(line);
+                chunk.lineNumbers.add(lineNumber);
+
+                if (chunk.lines.size() == CHUNK_SIZE) {
+                    inFlight.add(executor.submit(createTask(chunk)));
+                    chunk = new Chunk();
+                    // Wait for the oldest chunk before reading further
+                    if (inFlight.size() >= maxInFlight) {
+                        Result result = inFlight.poll().get();
+                        devices += result.devices;
+                        failed += write(result, out);
+                    }
+                }
+            }
+            if (!chunk.lines.isEmpty()) {
+                inFlight.add(executor.submit(createTask(chunk)));
+            }
+
+            while (!inFlight.isEmpty()) {
+                Result result = inFlight.poll().get();
+                devices += result.devices;
+                failed += write(result, out);
+            }
+            out.flush();
+
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            return EXIT_IO;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_IO;
+        } catch (ExecutionException e) {
+            System.err.println("Encoding failed: " + e.getCause());
+            return EXIT_IO;
+        } finally {
+            executor.shutdownNow();
+            close(reader);
+            close(out);
+        }
+
+        System.err.println("Compiled " + (devices - failed) + " of " + devices
+                + " devices for " + mLayout.getName());
+        return failed > 0 ? EXIT_FAILED_DEVICES : EXIT_OK;
+    }
+
+    /**
+     * Write encoded chunk to output and its errors to stderr
+     *
+     * @return Number of failed devices
+     */
+    private static int write(Result result, OutputStream out)
+            throws IOException {
+        out.write(result.data, 0, result.length);
+        if (result.errors.length() > 0) {
+            System.err.print(result.errors);
+        }
+        return result.failed;
+    }
+
+    private Callable<Result> createTask(final Chunk chunk) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                return encode(chunk);
+            }
+        };
+    }
+
+    /**
+     * Encode all devices of chunk. Called in worker threads.
+     */
+    private Result encode(Chunk chunk) {
+        Result result = new Result();
+        result.devices = chunk.lines.size();
+
+        // Hex dump: header line and one line of 12 characters per page
+        int deviceSize = mImageSize;
+        if (mFormat == Format.HEX) {
+            deviceSize = 128 + mImageSize / Type2TagImage.PAGE_SIZE * 16;
+        }
+        result.data = new byte[deviceSize * result.devices];
+        byte[] image = new byte[mImageSize];
+
+        for (int i = 0; i < result.devices; ++i) {
+            String line = chunk.lines.get(i);
+            try {
+                TagInformation info = mParser.parse(line);
+                byte[] payload = Type2TagImage.generatePayload(info,
+                        mLayout.getUserBytes());
+
+                if (mFormat == Format.BIN) {
+                    Type2TagImage.build(mLayout, payload, mReadOnly,
+                            result.data, result.length);
+                    result.length += mImageSize;
+                } else {
+                    Arrays.fill(image, (byte) 0);
+                    Type2TagImage.build(mLayout, payload, mReadOnly, image, 0);
+                    result.length = writeHex(info, image, result.data,
+                            result.length);
+                }
+            } catch (IllegalArgumentException e) {
+                fail(result, chunk.lineNumbers.get(i), e.getMessage());
+            } catch (OutOfSpaceException e) {
+                fail(result, chunk.lineNumbers.get(i), e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private void fail(Result result, int lineNumber, String message) {
+        result.errors.append("line ").append(lineNumber).append(": ")
+                .append(message).append('\n');
+        result.failed++;
+
+        // Placeholder keeps images of later devices at their index
+        if (mFormat == Format.BIN) {
+            Arrays.fill(result.data, result.length,
+                    result.length + mImageSize, (byte) 0);
+            result.length += mImageSize;
+        }
+    }
+
+    /**
+     * Append hex dump of image: "# address name" and "PP: XX XX XX XX" for
+     * each page
+     *
+     * @return New length of data
+     */
+    private static int writeHex(TagInformation info, byte[] image,
+                                byte[] data, int length) {
+        byte[] header = ("# " + info.address + " " + info.name + "\n")
+                .getBytes(UTF8);
+        // Limit long names to space reserved for header
+        int headerLength = Math.min(header.length, 127);
+        System.arraycopy(header, 0, data, length, headerLength);
+        length += headerLength;
+        if (header.length > headerLength) {
+            data[length++] = '\n';
+        }
+
+        for (int page = 0; page < image.length / Type2TagImage.PAGE_SIZE; ++page) {
+            data[length++] = (byte) HEX_DIGITS[(page >> 4) & 0x0F];
+            data[length++] = (byte) HEX_DIGITS[page & 0x0F];
+            data[length++] = ':';
+            for (int i = 0; i < Type2TagImage.PAGE_SIZE; ++i) {
+                int value = image[page * Type2TagImage.PAGE_SIZE + i];
+                data[length++] = ' ';
+                data[length++] = (byte) HEX_DIGITS[(value >> 4) & 0x0F];
+                data[length++] = (byte) HEX_DIGITS[value & 0x0F];
+            }
+            data[length++] = '\n';
+        }
+        return length;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * TagReader.java (BT Tag Writer)
+ *
+ * https://github.com/alump/BtTagWriter
+ *
+ * Copyright 2011-2013 Sami Viitanen <sami.viitanen@gmail.com>
+ * All rights reserved.
+ */
+package fi.siika.bttagwriter.tools;
+
+import java.io.IOException;
+
+import fi.siika.bttagwriter.writers.Ntag21xLayout;
+import fi.siika.bttagwriter.writers.Type2TagIo;
+
+/**
+ * NFC reader attached to provisioning station. Page commands of the tag
+ * presented are the same as MifareUltralight offers in Android, so tags are
+ * written with Type2TagWriter as in the application. Each reader is used
+ * only by one thread.
+ */
+public interface TagReader extends Type2TagIo {
+
+    /**
+     * @return Name of reader used in reports
+     */
+    String getName();
+
+    /**
+     * Wait until new tag is presented to the reader
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return Layout of the tag, or null if no tag was presented in time
+     * @throws IOException          If reader failed
+     * @throws InterruptedException If waiting was interrupted
+     */
+    Ntag21xLayout waitForTag(long timeoutMs) throws IOException,
+            InterruptedException;
+
+    /**
+     * Tag is done, it can be removed from the reader
+     */
+    void release();
+
+    /**
+     * Close reader
+     */
+    void close();
+}